@@ -0,0 +1,96 @@
+package fr.inria.diversify.syringe;
+
+import fr.inria.diversify.syringe.detectors.Detector;
+import spoon.processing.Processor;
+import spoon.processing.TraversalStrategy;
+import spoon.reflect.declaration.CtElement;
+import spoon.reflect.visitor.CtScanner;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runs several detectors in a single traversal of the model.
+ * <p>
+ * Each element is handed to every detector processing its type, following the traversal strategy of the detector,
+ * exactly as a processing manager would do in one traversal per detector. The detectors interested in each element
+ * class are computed once.
+ * <p>
+ * Elements are given to the detectors in traversal order, not one detector after the other, so IDs are handed out in
+ * that order.
+ */
+public class DetectorScanner extends CtScanner {
+
+    private final Detector[] detectors;
+
+    //Time spent in each detector
+    private final long[] times;
+
+    //Indexes of the detectors processing an element class, before and after its children
+    private final HashMap<Class<?>, int[][]> routes = new HashMap<>();
+
+    public DetectorScanner(Collection<Detector> detectors) {
+        this.detectors = detectors.toArray(new Detector[detectors.size()]);
+        this.times = new long[this.detectors.length];
+    }
+
+    /**
+     * Time spent in a detector, including its listeners, in nanoseconds
+     *
+     * @param index Index of the detector in the collection given to the constructor
+     */
+    public long getTime(int index) {
+        return times[index];
+    }
+
+    @Override
+    public void scan(CtElement element) {
+        if (element == null) return;
+        int[][] route = route(element.getClass());
+        dispatch(route[0], element);
+        super.scan(element);
+        dispatch(route[1], element);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void dispatch(int[] indexes, CtElement element) {
+        for (int i : indexes) {
+            long start = System.nanoTime();
+            Processor<CtElement> d = detectors[i];
+            if (d.isToBeProcessed(element) && detectors[i].accepts(element)) d.process(element);
+            times[i] += System.nanoTime() - start;
+        }
+    }
+
+    private int[][] route(Class<?> elementClass) {
+        int[][] result = routes.get(elementClass);
+        if (result == null) {
+            List<Integer> pre = new ArrayList<>();
+            List<Integer> post = new ArrayList<>();
+            for (int i = 0; i < detectors.length; i++) {
+                if (!processes(detectors[i], elementClass)) continue;
+                if (detectors[i].getTraversalStrategy() == TraversalStrategy.PRE_ORDER) pre.add(i);
+                else post.add(i);
+            }
+            result = new int[][]{toArray(pre), toArray(post)};
+            routes.put(elementClass, result);
+        }
+        return result;
+    }
+
+    private boolean processes(Detector detector, Class<?> elementClass) {
+        Set<Class<? extends CtElement>> types = detector.getProcessedElementTypes();
+        if (types == null) return false;
+        for (Class<?> t : types) if (t.isAssignableFrom(elementClass)) return true;
+        return false;
+    }
+
+    private int[] toArray(List<Integer> list) {
+        int[] result = new int[list.size()];
+        for (int i = 0; i < result.length; i++) result[i] = list.get(i);
+        return result;
+    }
+}
@@ -1,9 +1,12 @@
 package fr.inria.diversify.syringe;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 
 /**
  * Created by marodrig on 12/12/2014.
+ *
+ * The map is shared among all the workers of a parallel instrumentation, therefore all accesses are synchronized.
  */
 public class IdMap extends HashMap <String, Integer> {
 
@@ -11,21 +14,74 @@ public class IdMap extends HashMap <String, Integer> {
      * Returns the last index given
      * @return
      */
-    public int getLastIndex() {
+    public synchronized int getLastIndex() {
         return index;
     }
 
     private int index = 0;
 
+    //Ids added to the map, in the order they were given an index
+    private ArrayList<String> added = new ArrayList<>();
+
     /**
      * Adds to the map an auto-incremental index
      * @param id
      */
-    public void addToMap(String id) {
+    public synchronized void addToMap(String id) {
         if ( !containsKey(id) ) {
             index++;
             put(id, index);
+            added.add(id);
+        }
+    }
+
+    /**
+     * Puts back an id with the index it was given in a previous run
+     * @param id Id to restore
+     * @param value Index given in the previous run
+     */
+    public synchronized void restore(String id, int value) {
+        put(id, value);
+        reserve(value);
+    }
+
+    /**
+     * Makes sure no index lower or equal to the given one is handed out again
+     * @param lastIndex Last index given in a previous run
+     */
+    public synchronized void reserve(int lastIndex) {
+        if (index < lastIndex) index = lastIndex;
+    }
+
+    /**
+     * Ids added to the map with an index greater than the given one
+     * @param lastIndex Value of getLastIndex() before the additions
+     * @return The ids added after lastIndex with their index
+     */
+    public synchronized HashMap<String, Integer> addedAfter(int lastIndex) {
+        HashMap<String, Integer> result = new HashMap<>();
+        for (int i = added.size() - 1; i >= 0; i--) {
+            String id = added.get(i);
+            int value = super.get(id);
+            if (value <= lastIndex) break;
+            result.put(id, value);
         }
+        return result;
+    }
+
+    @Override
+    public synchronized Integer get(Object key) {
+        return super.get(key);
+    }
+
+    @Override
+    public synchronized boolean containsKey(Object key) {
+        return super.containsKey(key);
+    }
+
+    @Override
+    public synchronized Integer put(String key, Integer value) {
+        return super.put(key, value);
     }
 
 }
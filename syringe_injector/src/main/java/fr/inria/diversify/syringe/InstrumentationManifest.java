@@ -0,0 +1,253 @@
+package fr.inria.diversify.syringe;
+
+import fr.inria.diversify.syringe.detectors.Detector;
+import fr.inria.diversify.syringe.events.DetectionListener;
+import fr.inria.diversify.syringe.injectors.GenericInjector;
+import fr.inria.diversify.syringe.injectors.IndexedInjector;
+import fr.inria.diversify.syringe.injectors.Injector;
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Manifest of an incremental instrumentation, stored in the output dir of a source root.
+ * <p>
+ * Holds the content hash of each source file, the IDs its instrumentation got and the files printed for it, together
+ * with a fingerprint of the configuration. A later run with the same fingerprint can skip the unchanged sources and
+ * reuse their previous output and IDs.
+ */
+public class InstrumentationManifest {
+
+    final static Logger logger = Logger.getLogger(InstrumentationManifest.class);
+
+    public static final String FILE_NAME = ".syringe-manifest.json";
+
+    /**
+     * Instrumentation data of a source file
+     */
+    public static class FileEntry {
+
+        private String hash;
+
+        private HashMap<String, Integer> ids;
+
+        //Printed files, relative to the output dir of the root
+        private List<String> outputs;
+
+        public FileEntry(String hash, HashMap<String, Integer> ids) {
+            this.hash = hash;
+            this.ids = ids;
+            this.outputs = new ArrayList<>();
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public HashMap<String, Integer> getIds() {
+            return ids;
+        }
+
+        public List<String> getOutputs() {
+            return outputs;
+        }
+
+        /**
+         * Indicates if all the files printed for this source are still in the output dir
+         */
+        public boolean outputsExist(String outputRoot) {
+            for (String s : outputs) if (!new File(outputRoot, s).exists()) return false;
+            return true;
+        }
+
+        /**
+         * Deletes the files printed for this source
+         */
+        public void deleteOutputs(String outputRoot) {
+            for (String s : outputs) {
+                File f = new File(outputRoot, s);
+                if (f.exists() && !f.delete()) logger.warn("Unable to delete " + f.getAbsolutePath());
+            }
+        }
+    }
+
+    private String fingerprint;
+
+    private int lastIndex;
+
+    private int probeCount;
+
+    //Source files by path relative to the source root
+    private TreeMap<String, FileEntry> files;
+
+    public InstrumentationManifest(String fingerprint) {
+        this.fingerprint = fingerprint;
+        this.files = new TreeMap<>();
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Last index given by the ID map when the manifest was saved
+     */
+    public int getLastIndex() {
+        return lastIndex;
+    }
+
+    public void setLastIndex(int lastIndex) {
+        this.lastIndex = lastIndex;
+    }
+
+    /**
+     * Number of sampled probes given when the manifest was saved
+     */
+    public int getProbeCount() {
+        return probeCount;
+    }
+
+    public void setProbeCount(int probeCount) {
+        this.probeCount = probeCount;
+    }
+
+    public TreeMap<String, FileEntry> getFiles() {
+        return files;
+    }
+
+    public FileEntry getFile(String relativePath) {
+        return files.get(relativePath);
+    }
+
+    public void putFile(String relativePath, FileEntry entry) {
+        files.put(relativePath, entry);
+    }
+
+    /**
+     * Hex SHA-1 of some content
+     */
+    public static String hash(byte[] content) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest(content)) sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Fingerprint of a configuration: detectors with their filters and settings, injector templates, positions,
+     * sampling, switches and batches. A change in any of them invalidates the whole manifest.
+     */
+    public static String fingerprint(Configuration configuration, int complianceLevel) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("compliance:").append(complianceLevel).append("\n");
+        for (Detector d : configuration.getDetectors()) {
+            sb.append("detector:").append(d.getClass().getName());
+            if (d.getSignature() != null) sb.append(":").append(d.getSignature().getClass().getName());
+            if (d.getFilter() != null) sb.append(":filter:").append(d.getFilter().getSettings());
+            sb.append(":").append(d.getSettings());
+            sb.append("\n");
+        }
+        //Sorted by event so the fingerprint does not depend on the map's order
+        TreeMap<String, Collection<DetectionListener>> injectors = new TreeMap<>(configuration.getInjectors());
+        for (Map.Entry<String, Collection<DetectionListener>> e : injectors.entrySet()) {
+            for (DetectionListener l : e.getValue()) {
+                sb.append("injector:").append(e.getKey()).append(":").append(l.getClass().getName());
+                if (l instanceof Injector) sb.append(":").append(((Injector) l).getInjectionTemplate());
+                if (l instanceof GenericInjector) {
+                    GenericInjector g = (GenericInjector) l;
+                    sb.append(":").append(g.getInjectAt());
+                    if (g.getParameterCollector() != null)
+                        sb.append(":").append(g.getParameterCollector().getClass().getName());
+                    if (g.getSampling() != null) sb.append(":sampling:").append(g.getSampling().getMode());
+                    if (g.getProbeSwitch() != null) sb.append(":switch:").append(g.getProbeSwitch().getMode());
+                    if (g.getBatch() != null)
+                        sb.append(":batch:").append(g.getBatch().getTemplate()).append(":").append(g.getBatchItem());
+                }
+                if (l instanceof IndexedInjector) sb.append(":prefix:").append(((IndexedInjector) l).getPrefix());
+                sb.append("\n");
+            }
+        }
+        return hash(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Loads a manifest
+     *
+     * @param file File of the manifest
+     * @return The manifest, or null if there is none or it cannot be read
+     */
+    public static InstrumentationManifest load(File file) {
+        if (!file.exists()) return null;
+        try {
+            JSONObject json = new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+            InstrumentationManifest result = new InstrumentationManifest(json.getString("fingerprint"));
+            result.setLastIndex(json.getInt("lastIndex"));
+            result.setProbeCount(json.optInt("probeCount"));
+            JSONObject files = json.getJSONObject("files");
+            Iterator<?> it = files.keys();
+            while (it.hasNext()) {
+                String path = (String) it.next();
+                JSONObject f = files.getJSONObject(path);
+                HashMap<String, Integer> ids = new HashMap<>();
+                JSONObject jsonIds = f.getJSONObject("ids");
+                Iterator<?> idIt = jsonIds.keys();
+                while (idIt.hasNext()) {
+                    String id = (String) idIt.next();
+                    ids.put(id, jsonIds.getInt(id));
+                }
+                FileEntry entry = new FileEntry(f.getString("hash"), ids);
+                JSONArray outputs = f.getJSONArray("outputs");
+                for (int i = 0; i < outputs.length(); i++) entry.getOutputs().add(outputs.getString(i));
+                result.putFile(path, entry);
+            }
+            return result;
+        } catch (IOException | JSONException e) {
+            logger.warn("Unable to read manifest " + file.getAbsolutePath() + ". Instrumenting everything");
+            return null;
+        }
+    }
+
+    /**
+     * Saves the manifest
+     *
+     * @param file File of the manifest
+     */
+    public void save(File file) throws IOException {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("fingerprint", fingerprint);
+            json.put("lastIndex", lastIndex);
+            json.put("probeCount", probeCount);
+            JSONObject jsonFiles = new JSONObject();
+            for (Map.Entry<String, FileEntry> e : files.entrySet()) {
+                JSONObject f = new JSONObject();
+                f.put("hash", e.getValue().getHash());
+                f.put("ids", new JSONObject(e.getValue().getIds()));
+                f.put("outputs", new JSONArray(e.getValue().getOutputs()));
+                jsonFiles.put(e.getKey(), f);
+            }
+            json.put("files", jsonFiles);
+
+            file.getParentFile().mkdirs();
+            FileWriter fw = new FileWriter(file);
+            fw.write(json.toString(2));
+            fw.close();
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+    }
+}
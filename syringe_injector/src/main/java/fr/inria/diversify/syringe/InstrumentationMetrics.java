@@ -0,0 +1,259 @@
+package fr.inria.diversify.syringe;
+
+import fr.inria.diversify.syringe.events.DetectionEvent;
+import fr.inria.diversify.syringe.events.DetectionListener;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+
+/**
+ * Costs of an instrumentation: wall and CPU time per phase, time and elements detected per detector, time and calls
+ * per injector and processing time per source file.
+ * <p>
+ * Times are in nanoseconds. CPU times are the sum of the CPU times of all the threads involved. Detectors share a
+ * single traversal, so only their wall time is measured, which includes the time of the injectors listening to them.
+ * <p>
+ * All methods are synchronized since the workers of a parallel instrumentation share the metrics.
+ */
+public class InstrumentationMetrics {
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    /**
+     * Accumulated costs of a phase, detector or injector
+     */
+    public static class Counter {
+        private long wallNanos;
+        private long cpuNanos;
+        private long count;
+        private long elements;
+
+        public long getWallNanos() {
+            return wallNanos;
+        }
+
+        public long getCpuNanos() {
+            return cpuNanos;
+        }
+
+        /**
+         * Number of times the phase was run, or the injector called
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Elements detected
+         */
+        public long getElements() {
+            return elements;
+        }
+
+        private JSONObject toJSON() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("wallNanos", wallNanos);
+            json.put("cpuNanos", cpuNanos);
+            json.put("count", count);
+            json.put("elements", elements);
+            return json;
+        }
+    }
+
+    /**
+     * Measures a phase from its creation until stop() is called
+     */
+    public class Stopwatch {
+        private final String phase;
+        private final long wall;
+        private final long cpu;
+
+        private Stopwatch(String phase) {
+            this.phase = phase;
+            this.wall = System.nanoTime();
+            this.cpu = cpuTime();
+        }
+
+        public void stop() {
+            addPhase(phase, System.nanoTime() - wall, cpuTime() - cpu);
+        }
+    }
+
+    /**
+     * Listener measuring the time spent by the listener it wraps
+     */
+    private class TimedListener implements DetectionListener {
+        private final String name;
+        private final DetectionListener listener;
+
+        private TimedListener(String name, DetectionListener listener) {
+            this.name = name;
+            this.listener = listener;
+        }
+
+        @Override
+        public void listen(DetectionEvent data) {
+            long wall = System.nanoTime();
+            long cpu = cpuTime();
+            try {
+                listener.listen(data);
+            } finally {
+                add(injectors, name, System.nanoTime() - wall, cpuTime() - cpu, 1);
+            }
+        }
+    }
+
+    private TreeMap<String, Counter> phases = new TreeMap<>();
+
+    private TreeMap<String, Counter> detectors = new TreeMap<>();
+
+    private TreeMap<String, Counter> injectors = new TreeMap<>();
+
+    private HashMap<String, Long> files = new HashMap<>();
+
+    //Number of files listed in the report
+    private int slowestFiles = 20;
+
+    /**
+     * CPU time of the current thread, or 0 if the JVM cannot measure it
+     */
+    public static long cpuTime() {
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : 0;
+    }
+
+    private synchronized void add(TreeMap<String, Counter> map, String name, long wallNanos, long cpuNanos,
+                                  long count) {
+        Counter c = map.get(name);
+        if (c == null) {
+            c = new Counter();
+            map.put(name, c);
+        }
+        c.wallNanos += wallNanos;
+        c.cpuNanos += cpuNanos;
+        c.count += count;
+    }
+
+    /**
+     * Starts measuring a phase
+     */
+    public Stopwatch start(String phase) {
+        return new Stopwatch(phase);
+    }
+
+    public synchronized void addPhase(String phase, long wallNanos, long cpuNanos) {
+        add(phases, phase, wallNanos, cpuNanos, 1);
+    }
+
+    public synchronized void addDetector(String name, long wallNanos, long cpuNanos, int elements) {
+        add(detectors, name, wallNanos, cpuNanos, 1);
+        detectors.get(name).elements += elements;
+    }
+
+    public synchronized void addFile(String file, long wallNanos) {
+        Long t = files.get(file);
+        files.put(file, t == null ? wallNanos : t + wallNanos);
+    }
+
+    /**
+     * Wraps a listener to measure the time spent on it
+     *
+     * @param name     Name of the injector in the report
+     * @param listener Listener to measure
+     */
+    public DetectionListener timed(String name, DetectionListener listener) {
+        return new TimedListener(name, listener);
+    }
+
+    public synchronized Map<String, Counter> getPhases() {
+        return new TreeMap<>(phases);
+    }
+
+    public synchronized Map<String, Counter> getDetectors() {
+        return new TreeMap<>(detectors);
+    }
+
+    public synchronized Map<String, Counter> getInjectors() {
+        return new TreeMap<>(injectors);
+    }
+
+    /**
+     * Processed files, slowest first
+     */
+    public synchronized List<Map.Entry<String, Long>> getSlowestFiles(int n) {
+        List<Map.Entry<String, Long>> result = new ArrayList<>(files.entrySet());
+        Collections.sort(result, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> o1, Map.Entry<String, Long> o2) {
+                return o2.getValue().compareTo(o1.getValue());
+            }
+        });
+        return new ArrayList<>(result.subList(0, Math.min(n, result.size())));
+    }
+
+    /**
+     * Number of files listed in the report
+     */
+    public int getSlowestFilesCount() {
+        return slowestFiles;
+    }
+
+    public void setSlowestFilesCount(int slowestFiles) {
+        this.slowestFiles = slowestFiles;
+    }
+
+    public synchronized void reset() {
+        phases.clear();
+        detectors.clear();
+        injectors.clear();
+        files.clear();
+    }
+
+    private JSONObject toJSON(Map<String, Counter> counters) throws JSONException {
+        JSONObject json = new JSONObject();
+        for (Map.Entry<String, Counter> e : counters.entrySet()) json.put(e.getKey(), e.getValue().toJSON());
+        return json;
+    }
+
+    public synchronized JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("phases", toJSON(phases));
+        json.put("detectors", toJSON(detectors));
+        json.put("injectors", toJSON(injectors));
+
+        long total = 0;
+        for (Long t : files.values()) total += t;
+        JSONArray slowest = new JSONArray();
+        for (Map.Entry<String, Long> e : getSlowestFiles(slowestFiles)) {
+            JSONObject f = new JSONObject();
+            f.put("file", e.getKey());
+            f.put("wallNanos", e.getValue().longValue());
+            slowest.put(f);
+        }
+        JSONObject jsonFiles = new JSONObject();
+        jsonFiles.put("count", files.size());
+        jsonFiles.put("wallNanos", total);
+        jsonFiles.put("slowest", slowest);
+        json.put("files", jsonFiles);
+        return json;
+    }
+
+    /**
+     * Writes the report as JSON
+     */
+    public void write(File file) throws IOException {
+        try {
+            FileWriter fw = new FileWriter(file);
+            fw.write(toJSON().toString(2));
+            fw.close();
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package fr.inria.diversify.syringe;
+
+import org.apache.log4j.Logger;
+import spoon.compiler.Environment;
+import spoon.reflect.cu.CompilationUnit;
+import spoon.reflect.cu.SourcePosition;
+import spoon.reflect.declaration.CtElement;
+import spoon.reflect.declaration.CtPackage;
+import spoon.reflect.declaration.CtType;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.factory.FactoryImpl;
+import spoon.reflect.visitor.CtScanner;
+import spoon.support.DefaultCoreFactory;
+import spoon.support.StandardEnvironment;
+import spoon.support.reflect.cu.SourcePositionImpl;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent cache of a built model. The model is serialized together with the environment settings used to build
+ * it, under a key made of the hashes of the sources, the classpath and the compliance level. A later build with the
+ * same inputs can load the model instead of compiling the sources again.
+ */
+public class ModelCache {
+
+    final static Logger logger = Logger.getLogger(ModelCache.class);
+
+    public static final String FILE_NAME = ".syringe-model.ser";
+
+    private final File file;
+
+    public ModelCache(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Key of a model
+     *
+     * @param src             Sources of the model (files or dirs)
+     * @param classpath       Classpath used to build the model
+     * @param complianceLevel Java version
+     */
+    public static String key(List<String> src, String[] classpath, int complianceLevel) throws IOException {
+        final List<String> hashes = new ArrayList<>();
+        for (String s : src) {
+            Files.walkFileTree(Paths.get(s), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (file.toString().endsWith(".java"))
+                        hashes.add(file.toAbsolutePath() + ":" + InstrumentationManifest.hash(Files.readAllBytes(file)));
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        Collections.sort(hashes);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("compliance:").append(complianceLevel).append("\n");
+        for (String s : classpath) sb.append("cp:").append(s).append("\n");
+        for (String s : hashes) sb.append(s).append("\n");
+        return InstrumentationManifest.hash(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Loads the cached model
+     *
+     * @param key Key of the wanted model
+     * @return The factory of the model with its environment restored, or null if there is no model for that key
+     */
+    public Factory load(String key) {
+        if (!file.exists()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (!in.readUTF().equals(key)) return null;
+            Factory factory = new FactoryImpl(new DefaultCoreFactory(), new StandardEnvironment());
+            Environment env = factory.getEnvironment();
+            env.setComplianceLevel(in.readInt());
+            env.setNoClasspath(in.readBoolean());
+            env.setAutoImports(in.readBoolean());
+            String[] classpath = new String[in.readInt()];
+            for (int i = 0; i < classpath.length; i++) classpath[i] = in.readUTF();
+            env.setSourceClasspath(classpath);
+
+            LinkedHashMap<String, List<String>> units = new LinkedHashMap<>();
+            int unitCount = in.readInt();
+            for (int i = 0; i < unitCount; i++) {
+                String path = in.readUTF();
+                List<String> types = new ArrayList<>();
+                int typeCount = in.readInt();
+                for (int j = 0; j < typeCount; j++) types.add(in.readUTF());
+                units.put(path, types);
+            }
+            CtPackage root = (CtPackage) new ObjectInputStream(in).readObject();
+            restore(factory, root, units);
+            logger.info("Model loaded from " + file.getAbsolutePath());
+            return factory;
+        } catch (Exception | StackOverflowError e) {
+            logger.warn("Unable to load the cached model " + file.getAbsolutePath() + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Saves a model. Must be done before processing it, as processing modifies the model.
+     * <p>
+     * Only the packages of the model are serialized, since the factory is not serializable. The files of the
+     * compilation units are kept aside, as the positions are serialized without their unit. The model is written to
+     * a temporary file moved over the cache once complete, so a failed save, i.e. a model too deep to serialize,
+     * leaves no partial cache behind.
+     *
+     * @param key       Key of the model
+     * @param factory   Factory of the model
+     * @param classpath Classpath used to build the model
+     */
+    public void save(String key, Factory factory, String[] classpath) {
+        file.getParentFile().mkdirs();
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        Environment env = factory.getEnvironment();
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeUTF(key);
+                out.writeInt(env.getComplianceLevel());
+                out.writeBoolean(env.getNoClasspath());
+                out.writeBoolean(env.isAutoImports());
+                out.writeInt(classpath.length);
+                for (String s : classpath) out.writeUTF(s);
+
+                LinkedHashMap<String, List<String>> units = new LinkedHashMap<>();
+                for (CtType<?> t : factory.Type().getAll()) {
+                    SourcePosition position = t.getPosition();
+                    if (position == null || position.getFile() == null) continue;
+                    String path = position.getFile().getPath();
+                    if (!units.containsKey(path)) units.put(path, new ArrayList<String>());
+                    units.get(path).add(t.getQualifiedName());
+                }
+                out.writeInt(units.size());
+                for (Map.Entry<String, List<String>> e : units.entrySet()) {
+                    out.writeUTF(e.getKey());
+                    out.writeInt(e.getValue().size());
+                    for (String s : e.getValue()) out.writeUTF(s);
+                }
+                ObjectOutputStream objects = new ObjectOutputStream(out);
+                objects.writeObject(factory.getModel().getRootPackage());
+                objects.flush();
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException | StackOverflowError e) {
+            logger.warn("Unable to save the model to " + file.getAbsolutePath() + ": " + e);
+            temp.delete();
+        }
+    }
+
+    /**
+     * Puts the deserialized packages in the model of a factory, giving back to the elements their factory and to the
+     * positions their compilation unit
+     */
+    private static void restore(final Factory factory, CtPackage root, Map<String, List<String>> units) {
+        CtPackage target = factory.getModel().getRootPackage();
+        for (CtPackage p : new ArrayList<>(root.getPackages())) target.addPackage(p);
+        for (CtType<?> t : new ArrayList<>(root.getTypes())) target.addType(t);
+        new CtScanner() {
+            @Override
+            protected void enter(CtElement e) {
+                e.setFactory(factory);
+            }
+        }.scan(target);
+
+        for (Map.Entry<String, List<String>> e : units.entrySet()) {
+            final CompilationUnit unit = factory.CompilationUnit().create(e.getKey());
+            List<CtType<?>> types = new ArrayList<>();
+            for (String name : e.getValue()) {
+                CtType<?> t = factory.Type().get(name);
+                if (t == null) throw new IllegalStateException("Type " + name + " missing from the cached model");
+                types.add(t);
+                new CtScanner() {
+                    @Override
+                    protected void enter(CtElement element) {
+                        if (element.getPosition() instanceof SourcePositionImpl)
+                            ((SourcePositionImpl) element.getPosition()).setCompilationUnit(unit);
+                    }
+                }.scan(t);
+            }
+            unit.setDeclaredTypes(types);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package fr.inria.diversify.syringe;
+
+import fr.inria.diversify.syringe.events.DetectionEvent;
+import fr.inria.diversify.syringe.events.DetectionListener;
+import spoon.reflect.cu.SourcePosition;
+import spoon.reflect.declaration.CtElement;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Source files of the compilation units modified by the injectors since they were last written.
+ * <p>
+ * Only files are kept, not the elements, so the set does not retain the models. Shared among the workers of a
+ * parallel instrumentation.
+ */
+public class ModifiedUnits {
+
+    /**
+     * Listener marking the unit of each detected element as modified once the listener it wraps handled the event
+     */
+    private class TrackingListener implements DetectionListener {
+        private final DetectionListener listener;
+
+        private TrackingListener(DetectionListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void listen(DetectionEvent data) {
+            listener.listen(data);
+            add(data.getDetected());
+        }
+    }
+
+    private Set<String> files = Collections.synchronizedSet(new HashSet<String>());
+
+    /**
+     * Wraps a listener so the units it listens to are marked as modified
+     */
+    public DetectionListener tracking(DetectionListener listener) {
+        return new TrackingListener(listener);
+    }
+
+    /**
+     * Marks the unit of an element as modified
+     */
+    public void add(CtElement element) {
+        //Elements created by the injectors have no position, but their enclosing elements do
+        SourcePosition position = null;
+        while (element != null && (position = element.getPosition()) == null)
+            element = element.isParentInitialized() ? element.getParent() : null;
+        if (position != null && position.getFile() != null) files.add(position.getFile().getAbsolutePath());
+    }
+
+    public boolean contains(File file) {
+        return files.contains(file.getAbsolutePath());
+    }
+
+    /**
+     * Forgets a unit once it has been written
+     */
+    public void remove(File file) {
+        files.remove(file.getAbsolutePath());
+    }
+
+    public int size() {
+        return files.size();
+    }
+}
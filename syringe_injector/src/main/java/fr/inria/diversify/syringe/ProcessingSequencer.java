@@ -0,0 +1,41 @@
+package fr.inria.diversify.syringe;
+
+/**
+ * Gives turns to the workers of a parallel file-by-file instrumentation.
+ * <p>
+ * Model building runs concurrently, but detection and injection are done in ticket order so the IDs are assigned in
+ * the same order as in a sequential run, no matter how many workers are used.
+ */
+public class ProcessingSequencer {
+
+    //Tickets already done
+    private final boolean[] done;
+
+    //Next ticket allowed to process
+    private int next = 0;
+
+    public ProcessingSequencer(int tickets) {
+        done = new boolean[tickets];
+    }
+
+    /**
+     * Blocks until all tickets lower than the given one are done
+     *
+     * @param ticket Ticket of the worker
+     */
+    public synchronized void await(int ticket) throws InterruptedException {
+        while (next < ticket) wait();
+    }
+
+    /**
+     * Marks a ticket as done. Releasing a ticket more than once has no effect.
+     *
+     * @param ticket Ticket of the worker
+     */
+    public synchronized void release(int ticket) {
+        if (done[ticket]) return;
+        done[ticket] = true;
+        while (next < done.length && done[next]) next++;
+        notifyAll();
+    }
+}
@@ -1,7 +1,6 @@
 package fr.inria.diversify.syringe;
 
-import java.lang.String;import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  * Created by marodrig on 21/12/2014.
@@ -12,6 +11,33 @@ import java.util.List;
 /// Source: http://www.catalysoft.com/articles/StrikeAMatch.html
 /// </summary>
 public class StringSimilarity {
+
+    /// <summary>
+    /// Letter pairs of a String, packed as ints (first letter in the high half) and sorted.
+    /// Computing it once for a String allows to compare it many times without allocating anything.
+    /// </summary>
+    public static final class Fingerprint {
+        private final int[] pairs;
+
+        private Fingerprint(int[] pairs) {
+            this.pairs = pairs;
+        }
+
+        /// <summary>
+        /// Number of letter pairs
+        /// </summary>
+        public int size() {
+            return pairs.length;
+        }
+
+        /// <summary>
+        /// Packed letter pair at a given index
+        /// </summary>
+        public int pairAt(int index) {
+            return pairs[index];
+        }
+    }
+
     /// <summary>
     /// Compares the two strings based on letter pair matches
     /// </summary>
@@ -19,69 +45,82 @@ public class StringSimilarity {
     /// <param name="str2"></param>
     /// <returns>The percentage match from 0.0 to 1.0 where 1.0 is 100%</returns>
     public static double CompareStrings(String str1, String str2) {
-        List<String> pairs1 = WordLetterPairs(str1.toUpperCase());
-        List<String> pairs2 = WordLetterPairs(str2.toUpperCase());
-
-        double intersection = 0;
-        double union = pairs1.size() + pairs2.size();
-
-        for (int i = 0; i < pairs1.size(); i++) {
-            for (int j = 0; j < pairs2.size(); j++) {
-                if (pairs1.get(i).equals(pairs2.get(j))) {
-                    intersection++;
-                    pairs2.remove(j);//Must remove the match to prevent "GGGG" from appearing to match "GG" with 100% success
-                    break;
-                }
-            }
+        return compare(fingerprint(str1), fingerprint(str2));
+    }
+
+    /// <summary>
+    /// Compares two fingerprints. Same result as CompareStrings over the Strings of the fingerprints.
+    /// </summary>
+    /// <returns>The percentage match from 0.0 to 1.0 where 1.0 is 100%</returns>
+    public static double compare(Fingerprint f1, Fingerprint f2) {
+        int[] pairs1 = f1.pairs;
+        int[] pairs2 = f2.pairs;
+
+        //Both are sorted: count the common pairs, each pair matching at most once
+        //so "GGGG" does not appear to match "GG" with 100% success
+        int intersection = 0;
+        int i = 0, j = 0;
+        while (i < pairs1.length && j < pairs2.length) {
+            if (pairs1[i] == pairs2[j]) {
+                intersection++;
+                i++;
+                j++;
+            } else if (pairs1[i] < pairs2[j]) i++;
+            else j++;
         }
 
+        double union = pairs1.length + pairs2.length;
         return (2.0 * intersection) / union;
     }
 
     /// <summary>
-    /// Gets all letter pairs for each
-    /// individual word in the String
+    /// Compares one fingerprint with many
     /// </summary>
-    /// <param name="str"></param>
-    /// <returns></returns>
-    private static List<String> WordLetterPairs(String str) {
-        List<String> AllPairs = new ArrayList<String>();
-
-        // Tokenize the String and put the tokens/words into an array
-        String[] Words = str.split("\\s");
-
-        // For each word
-        for (int w = 0; w < Words.length; w++) {
-            if (!(Words[w] == null || Words[w].equals(""))) {
-                // Find the pairs of characters
-                String[] PairsInWord = LetterPairs(Words[w]);
-                for (int p = 0; p < PairsInWord.length; p++) {
-                    AllPairs.add(PairsInWord[p]);
-                }
-            }
-        }
-
-        return AllPairs;
+    /// <param name="query">Fingerprint to compare</param>
+    /// <param name="candidates">Fingerprints to compare with</param>
+    /// <param name="result">Receives the match with each candidate. Must be at least as long as candidates</param>
+    public static void compare(Fingerprint query, Fingerprint[] candidates, double[] result) {
+        for (int i = 0; i < candidates.length; i++) result[i] = compare(query, candidates[i]);
     }
 
     /// <summary>
-    /// Generates an array containing every 
-    /// two consecutive letters in the input String
+    /// Gets the fingerprint of a String: all letter pairs
+    /// for each individual word in the String
     /// </summary>
     /// <param name="str"></param>
     /// <returns></returns>
-    private static String[] LetterPairs(String str) {
-
-        int numPairs = str.length() - 1;
+    public static Fingerprint fingerprint(String str) {
+        String upper = str.toUpperCase();
+        int[] pairs = new int[upper.length()];
+        int n = 0;
 
-        if ( numPairs == 0 ) return new String[]{str + "€"};
+        // Tokenize the String and for each word find the pairs of characters
+        int wordStart = -1;
+        for (int i = 0; i <= upper.length(); i++) {
+            if (i < upper.length() && !isSpace(upper.charAt(i))) {
+                if (wordStart < 0) wordStart = i;
+                continue;
+            }
+            if (wordStart >= 0) {
+                if (i - wordStart == 1) pairs[n++] = pack(upper.charAt(wordStart), '€');
+                for (int j = wordStart; j < i - 1; j++) pairs[n++] = pack(upper.charAt(j), upper.charAt(j + 1));
+            }
+            wordStart = -1;
+        }
 
-        String[] pairs = new String[numPairs];
+        pairs = Arrays.copyOf(pairs, n);
+        Arrays.sort(pairs);
+        return new Fingerprint(pairs);
+    }
 
-        for (int i = 0; i < numPairs; i++) {
-            pairs[i] = str.substring(i, i + 2);
-        }
+    private static int pack(char first, char second) {
+        return (first << 16) | second;
+    }
 
-        return pairs;
+    /// <summary>
+    /// Whitespace as matched by \s
+    /// </summary>
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
     }
 }
@@ -1,6 +1,7 @@
 package fr.inria.diversify.syringe;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Properties;
 
 /**
@@ -9,8 +10,18 @@ import java.util.Properties;
 public interface SyringeInstrumenter {
     void instrument(Configuration configuration) throws Exception;
 
+    /**
+     * Instrument several configurations sharing a single model of the project
+     */
+    void instrument(Collection<Configuration> configurations) throws Exception;
+
     void writeIdFile(String idName) throws IOException;
 
+    /**
+     * Writes the costs of the instrumentation as a JSON report, next to the Id file
+     */
+    void writeMetricsFile(String metricsName) throws IOException;
+
     void clean();
 
     void runTests(boolean verbose, String[] phases) throws Exception;
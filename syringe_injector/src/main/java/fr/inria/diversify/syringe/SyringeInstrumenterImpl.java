@@ -4,15 +4,33 @@ import fr.inria.diversify.buildSystem.maven.MavenBuilder;
 import fr.inria.diversify.syringe.dependencies.DependencyResolver;
 import fr.inria.diversify.syringe.detectors.Detector;
 import fr.inria.diversify.syringe.events.DetectionListener;
+import fr.inria.diversify.syringe.injectors.CounterInjector;
+import fr.inria.diversify.syringe.injectors.GenericInjector;
+import fr.inria.diversify.syringe.injectors.IndexedInjector;
+import fr.inria.diversify.syringe.injectors.ProbeSwitch;
+import fr.inria.diversify.syringe.injectors.Injector;
+import fr.inria.diversify.syringe.injectors.Sampling;
+import fr.inria.diversify.syringe.injectors.SnippetBatch;
+import fr.inria.diversify.syringe.injectors.TimingInjector;
 import org.apache.commons.io.FileUtils;
 import org.apache.log4j.Logger;
 import org.eclipse.jdt.internal.compiler.problem.AbortCompilation;
 import spoon.Launcher;
+import spoon.reflect.cu.SourcePosition;
+import spoon.reflect.declaration.CtPackage;
+import spoon.reflect.declaration.CtType;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.visitor.DefaultJavaPrettyPrinter;
+import spoon.support.QueueProcessingManager;
 
 import java.io.*;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The Process class is the central manager in charge
@@ -23,6 +41,9 @@ public class SyringeInstrumenterImpl implements SyringeInstrumenter {
 
     final static Logger logger = Logger.getLogger(SyringeInstrumenterImpl.class);
 
+    //Rough heap taken by the model of one byte of source
+    private static final long MODEL_BYTES_PER_SOURCE_BYTE = 40;
+
     private String pomPath;
 
     /**
@@ -42,15 +63,40 @@ public class SyringeInstrumenterImpl implements SyringeInstrumenter {
     //Directory where the production code is
     private String productionDir;
 
-    //MavenDependencyResolver resolver = null;
+    //Resolves the classpath of the project once per pom change
+    private DependencyResolver dependencyResolver;
+
+    //Classpath of the project, shared by all the launchers
+    private List<String> resolvedClasspath;
 
     //Map with all the IDs of the detected elements
     private IdMap idMap;
 
+    //Numbers of the sampled probes, shared by all the samplings of the instrumentation
+    private AtomicInteger sampledProbes;
+
     //Properties to be written to the property file of the logger
     private Properties loggerProperties;
     private String loggerPropertiesFile;
 
+    //Source roots holding a sampler class, which reads the property file of the logger
+    private Set<String> samplerRoots = new LinkedHashSet<>();
+
+    //Source roots holding a switch class, which reads the property file of the logger
+    private Set<String> switchRoots = new LinkedHashSet<>();
+
+    //Some injector switches its snippets through a call site
+    private boolean callSiteSwitch;
+
+    //Source roots holding a counters class, sized from the ID map
+    private Set<String> counterRoots = new LinkedHashSet<>();
+
+    //Some counter injector counts atomically
+    private boolean atomicCounters;
+
+    //Source roots holding a timer class, sized from the ID map
+    private Set<String> timerRoots = new LinkedHashSet<>();
+
     //Time out of the maven build
     private int buildTimeOut;
 
@@ -63,14 +109,43 @@ public class SyringeInstrumenterImpl implements SyringeInstrumenter {
 
     private boolean fileByFile;
 
-    private HashSet<String> failedDirs;
+    //Number of workers instrumenting files in parallel when in file by file mode
+    private int workerCount;
+
+    //Instrument only the sources changed since the last run
+    private boolean incremental;
 
+    //Isolate the units that do not compile when the model of a whole source root fails
+    private boolean isolateFailures;
+
+    //Keep the built models of the source roots in the output dir
+    private boolean modelCache;
+
+    //Heap budget of a chunk of the source root, in bytes. Zero to build the model of the whole root at once
+    private long chunkHeapBudget;
+
+    private Set<String> failedDirs;
+
+    //Costs of the instrumentation
+    private InstrumentationMetrics metrics;
+
+    //Units modified by the injectors and not yet written
+    private ModifiedUnits modifiedUnits;
+
+    //Hard link the unmodified sources into the output instead of copying them
+    private boolean linkUnmodified;
 
     public SyringeInstrumenterImpl() {
         complianceLevel = 8;
         useClasspath = true;
+        workerCount = 1;
+        isolateFailures = true;
+        dependencyResolver = new DependencyResolver();
         idMap = new IdMap();
-        failedDirs = new HashSet<>();
+        sampledProbes = new AtomicInteger();
+        metrics = new InstrumentationMetrics();
+        modifiedUnits = new ModifiedUnits();
+        failedDirs = Collections.synchronizedSet(new HashSet<String>());
     }
 
     /**
@@ -130,13 +205,8 @@ public class SyringeInstrumenterImpl implements SyringeInstrumenter {
         updateLogger(configuration);
 
         //Resolve dependencies of the project
-        if ( useClasspath ) {
-            DependencyResolver resolver = new DependencyResolver();
-            resolver.resolve(configuration, getPomPath(), getManualClassPath());
-        }
+        if ( useClasspath ) resolvedClasspath = resolveClasspath(configuration);
 
-        System.out.println("@@@@@@@@@@@@@@@@ output dir: " + getOutputDir());
-        System.out.println("@@@@@@@@@@@@@@@@ project dir: " + getProjectDir());
         //This is done only once.
         // if (outPutDirReady == false) {
         //     File dir = new File(getOutputDir());
@@ -145,27 +215,21 @@ public class SyringeInstrumenterImpl implements SyringeInstrumenter {
         // }
         //Don't initialize twice
         outPutDirReady = true;
-        System.out.println("&&&&&&&&&&&&&&&&&&&&&&&&& is file by file: " + isFileByFile());
+        logger.debug("File by file: " + isFileByFile());
 
 
         //Build the factory for the part of the project being instrumented
         ArrayList<String> src = new ArrayList<>();
         src.add(projectDir + configuration.getSourceDir()); //Always add all the source code in the production dir.
         // src.add(configuration.getSourceDir()); //Always add all the source code in the production dir.
-        System.out.println("source dir: " + configuration.getSourceDir());
-        System.out.println("dectors: " + configuration.getDetectors());
+        logger.debug("Source dir: " + configuration.getSourceDir());
+        logger.debug("Detectors: " + configuration.getDetectors());
         //If the configuration source dir don't lies within the production, then add it:
         //String s = projectDir + configuration.getSourceDir();
         //if (!src.get(0).startsWith(s) && !s.startsWith(src.get(0))) src.add(s);
 
         //Link the detectors with the injectors listening to their particular events
-        for (Detector d : configuration.getDetectors()) {
-            d.setIdMap(idMap);
-            //Collect relevant injectors to the events this detector will detect
-            for (Map.Entry<String, Collection<DetectionListener>> e : configuration.getInjectors().entrySet())
-                for (DetectionListener eventListener : e.getValue())
-                    d.addListener(e.getKey(), eventListener);
-        }
+        for (Detector d : configuration.getDetectors()) linkDetector(d, configuration);
 
         //Detect and listen
         if (isFileByFile()) {
@@ -175,91 +239,775 @@ public class SyringeInstrumenterImpl implements SyringeInstrumenter {
             if ( failedDirs.size() > 0 ) walk(configuration, src, failedDirs);
             setUseClassPath(useClasspath);
         }
+        else if (isIncremental()) {
+            launchIncrementalInjection(configuration, src.get(0));
+        }
+        else if (getChunkHeapBudget() > 0) {
+            launchChunkedInjection(configuration, src.get(0));
+        }
         else {
+            try {
+                launchInjection(configuration, src);
+            } catch (Exception ex) {
+                if (!isIsolateFailures()) throw ex;
+                logger.warn("Unable to inject " + src.get(0) + " at once. Isolating the units that do not compile");
+                isolateFailingUnits(configuration, src.get(0));
+            }
+        }
+
+        writeSampler(configuration);
+        writeProbeArrays(configuration);
+    }
+
+    /**
+     * Writes the sampler and switch classes along the instrumented sources if some injector samples or switches its
+     * snippets
+     */
+    private void writeSampler(Configuration configuration) throws IOException {
+        for (Collection<DetectionListener> listeners : configuration.getInjectors().values()) {
+            for (DetectionListener l : listeners) {
+                if (!(l instanceof GenericInjector)) continue;
+                GenericInjector injector = (GenericInjector) l;
+                if (injector.getSampling() != null) samplerRoots.add(outputDir + configuration.getSourceDir());
+                if (injector.getProbeSwitch() != null) {
+                    switchRoots.add(outputDir + configuration.getSourceDir());
+                    if (injector.getProbeSwitch().getMode() == ProbeSwitch.Mode.CALL_SITE) callSiteSwitch = true;
+                }
+            }
+        }
+        writeSamplers();
+    }
+
+    private void writeSamplers() throws IOException {
+        String properties = loggerPropertiesFile == null || loggerPropertiesFile.isEmpty() ?
+                null : "log/" + loggerPropertiesFile;
+        for (String root : samplerRoots) Sampling.writeSampler(new File(root), properties, sampledProbes.get());
+        for (String root : switchRoots) ProbeSwitch.writeSwitch(new File(root), properties, callSiteSwitch);
+    }
+
+    /**
+     * Writes the counters and timer classes along the instrumented sources if some injector counts hits or times
+     * methods. The classes written by previous instrumentations are rewritten too, since the ID map has grown.
+     */
+    private void writeProbeArrays(Configuration configuration) throws IOException {
+        for (Collection<DetectionListener> listeners : configuration.getInjectors().values()) {
+            for (DetectionListener l : listeners) {
+                if (l instanceof CounterInjector) {
+                    counterRoots.add(outputDir + configuration.getSourceDir());
+                    if (((CounterInjector) l).getMode() == CounterInjector.Mode.ATOMIC) atomicCounters = true;
+                } else if (l instanceof TimingInjector) timerRoots.add(outputDir + configuration.getSourceDir());
+            }
+        }
+        int size = idMap.getLastIndex() + 1;
+        for (String root : counterRoots) CounterInjector.writeCounters(new File(root), size, atomicCounters);
+        for (String root : timerRoots) TimingInjector.writeTimer(new File(root), size);
+    }
+
+    /**
+     * Recovers from a source root whose model cannot be built. The sources are split recursively, first by package and
+     * then by halves, until the units that do not compile are isolated. The rest is injected in the large batches
+     * that built successfully along the way, and the broken units are injected in no classpath mode.
+     * <p>
+     * A batch resolves the types of the other batches through the project's compiled classes. Without them,
+     * units depending on other batches are considered broken.
+     */
+    private void isolateFailingUnits(Configuration configuration, String root) throws IOException {
+        isolateFailingUnits(configuration, new ArrayList<>(packagesOf(root).values()));
+    }
+
+    /**
+     * Isolates the units that do not compile in a list of packages whose injection at once failed
+     */
+    private void isolateFailingUnits(Configuration configuration, List<List<String>> packages) {
+        for (Detector d : configuration.getDetectors()) d.reset();
+
+        List<String> broken = new ArrayList<>();
+        bisectPackages(configuration, packages, broken, true);
+        if (broken.isEmpty()) return;
+
+        logger.warn(broken.size() + " units do not compile. Injecting them in no classpath mode");
+        boolean use = useClasspath;
+        setUseClassPath(false);
+        try {
+            if (!tryInjection(configuration, broken))
+                for (String s : broken)
+                    if (!tryInjection(configuration, Arrays.asList(s))) logger.warn("Unable to inject " + s);
+        } finally {
+            setUseClassPath(use);
+        }
+    }
+
+    /**
+     * Sources of a root grouped by package dir, both sorted
+     */
+    private TreeMap<String, List<String>> packagesOf(String root) throws IOException {
+        TreeMap<String, List<String>> byPackage = new TreeMap<>();
+        for (File f : javaFiles(new File(root))) {
+            String pack = f.getParent();
+            if (!byPackage.containsKey(pack)) byPackage.put(pack, new ArrayList<String>());
+            byPackage.get(pack).add(f.getAbsolutePath());
+        }
+        for (List<String> files : byPackage.values()) Collections.sort(files);
+        return byPackage;
+    }
+
+    /**
+     * Injects a source root chunk by chunk, so the heap needed does not depend on the size of the root. The packages
+     * are grouped into chunks whose models should fit in the heap budget, and the model of a chunk is released before
+     * the next one is built.
+     * <p>
+     * A chunk resolves the types of the other chunks through the project's compiled classes. Without them the chunks
+     * are built in no classpath mode.
+     */
+    private void launchChunkedInjection(Configuration configuration, String root) throws IOException {
+        List<List<List<String>>> chunks = chunksOf(packagesOf(root).values());
+        logger.info("Injecting " + root + " in " + chunks.size() + " chunks");
+
+        boolean use = useClasspath;
+        if (useClasspath && compiledClassesDirs().isEmpty()) {
+            logger.warn("No compiled classes in " + projectDir + "/target. Injecting the chunks in no classpath mode");
+            setUseClassPath(false);
+        }
+        try {
+            for (List<List<String>> chunk : chunks) {
+                List<String> files = new ArrayList<>();
+                for (List<String> p : chunk) files.addAll(p);
+                try {
+                    launchInjection(configuration, files);
+                } catch (Exception ex) {
+                    if (!isIsolateFailures()) throw ex;
+                    logger.warn("Unable to inject a chunk of " + root + ". Isolating the units that do not compile");
+                    isolateFailingUnits(configuration, chunk);
+                }
+            }
+        } finally {
+            setUseClassPath(use);
+        }
+    }
+
+    /**
+     * Splits packages into chunks whose models should fit in the heap budget. Packages are kept whole unless one
+     * alone exceeds the budget, in which case it is split by files.
+     */
+    private List<List<List<String>>> chunksOf(Collection<List<String>> packages) {
+        long budget = Math.max(1, getChunkHeapBudget() / MODEL_BYTES_PER_SOURCE_BYTE);
+        List<List<List<String>>> result = new ArrayList<>();
+        List<List<String>> chunk = new ArrayList<>();
+        long size = 0;
+        for (List<String> pack : packages) {
+            long packSize = 0;
+            for (String f : pack) packSize += new File(f).length();
+            if (size + packSize > budget && !chunk.isEmpty()) {
+                result.add(chunk);
+                chunk = new ArrayList<>();
+                size = 0;
+            }
+            if (packSize <= budget) {
+                chunk.add(pack);
+                size += packSize;
+                continue;
+            }
+            List<String> part = new ArrayList<>();
+            for (String f : pack) {
+                long fileSize = new File(f).length();
+                if (size + fileSize > budget && !part.isEmpty()) {
+                    chunk.add(part);
+                    result.add(chunk);
+                    chunk = new ArrayList<>();
+                    part = new ArrayList<>();
+                    size = 0;
+                }
+                part.add(f);
+                size += fileSize;
+            }
+            chunk.add(part);
+        }
+        if (!chunk.isEmpty()) result.add(chunk);
+        return result;
+    }
+
+    /**
+     * Injects a list of packages, splitting the list by halves when it fails
+     *
+     * @param failed Indicates if the injection of the whole list is already known to fail, so it is split right away
+     */
+    private void bisectPackages(Configuration configuration, List<List<String>> packages, List<String> broken,
+                                boolean failed) {
+        if (packages.size() == 1) {
+            bisectFiles(configuration, packages.get(0), broken, failed);
+            return;
+        }
+        if (!failed) {
+            List<String> files = new ArrayList<>();
+            for (List<String> p : packages) files.addAll(p);
+            if (tryInjection(configuration, files)) return;
+        }
+        int half = packages.size() / 2;
+        bisectPackages(configuration, packages.subList(0, half), broken, false);
+        bisectPackages(configuration, packages.subList(half, packages.size()), broken, false);
+    }
+
+    /**
+     * Injects a list of files, splitting it by halves when it fails until the failing files are isolated
+     *
+     * @param failed Indicates if the injection of the whole list is already known to fail, so it is split right away
+     */
+    private void bisectFiles(Configuration configuration, List<String> files, List<String> broken, boolean failed) {
+        if (files.isEmpty() || !failed && tryInjection(configuration, files)) return;
+        if (files.size() == 1) {
+            broken.add(files.get(0));
+            return;
+        }
+        int half = files.size() / 2;
+        bisectFiles(configuration, files.subList(0, half), broken, false);
+        bisectFiles(configuration, files.subList(half, files.size()), broken, false);
+    }
+
+    /**
+     * Injects a set of sources
+     *
+     * @return True if the injection succeeded
+     */
+    private boolean tryInjection(Configuration configuration, List<String> src) {
+        try {
             launchInjection(configuration, src);
+            return true;
+        } catch (Exception ex) {
+            //Leave the detectors ready for the next try
+            for (Detector d : configuration.getDetectors()) d.reset();
+            return false;
+        }
+    }
+
+    /**
+     * Instrument several configurations of the same project in one session.
+     * <p>
+     * The model is built only once over all the source roots, so types shared among the roots (i.e. production
+     * classes used by the tests) are parsed and resolved a single time. Each configuration's detectors only see the
+     * compilation units lying under its source dir, and each root is written to its own output dir.
+     * <p>
+     * When the model cannot be built and failures are isolated, the roots are instrumented one by one as by
+     * {@link #instrument(Configuration)}.
+     *
+     * @param configurations Configurations of the session
+     * @throws IllegalStateException in file by file, incremental, chunked or model cache mode, which build several
+     *                               models
+     */
+    @Override
+    public void instrument(Collection<Configuration> configurations) throws Exception {
+        //These modes build several models of a root, which a session cannot share
+        List<String> modes = new ArrayList<>();
+        if (isFileByFile()) modes.add("file by file");
+        if (isIncremental()) modes.add("incremental");
+        if (getChunkHeapBudget() > 0) modes.add("chunks");
+        if (isModelCache()) modes.add("model cache");
+        if (!modes.isEmpty())
+            throw new IllegalStateException("A session builds a single model, it does not support " + modes);
+
+        logger.info("Project Dir " + projectDir);
+        logger.info("Output Dir " + outputDir);
+
+        ArrayList<String> src = new ArrayList<>();
+        LinkedHashSet<String> classpath = new LinkedHashSet<>();
+        for (Configuration configuration : configurations) {
+            logger.info("Instrumenting " + configuration.getDescription());
+            updateLogger(configuration);
+            if ( useClasspath ) classpath.addAll(resolveClasspath(configuration));
+            src.add(projectDir + configuration.getSourceDir());
+        }
+        if ( useClasspath ) resolvedClasspath = new ArrayList<>(classpath);
+        outPutDirReady = true;
+
+        //Build the model shared by all configurations
+        Launcher launcher = createLauncher(src, outputDir);
+        InstrumentationMetrics.Stopwatch build = metrics.start("buildModel");
+        boolean built = false;
+        try {
+            launcher.buildModel();
+            built = true;
+        } catch (Exception ex) {
+            failedDirs.addAll(src);
+            logger.warn("Error: " + ex.getMessage());
+            if (!isIsolateFailures()) throw ex;
+        } finally {
+            build.stop();
+        }
+        if (!built) {
+            //Each root on its own, isolating its units that do not compile
+            logger.warn("Unable to build the model of the session. Instrumenting the roots one by one");
+            for (Configuration configuration : configurations) instrument(configuration);
+            return;
         }
 
+        for (Configuration configuration : configurations) {
+            String root = projectDir + configuration.getSourceDir();
+            List<CtType<?>> types = typesUnder(launcher.getFactory(), root);
+            logger.info("Processing: " + root + " (" + types.size() + " types)");
 
+            for (Detector d : configuration.getDetectors()) linkDetector(d, configuration);
+            processModel(launcher.getFactory(), types, configuration.getDetectors());
+
+            int fragmentsInserted = 0;
+            for (Detector d : configuration.getDetectors()) {
+                fragmentsInserted += d.getElementsDetectedCount();
+                d.reset();
+            }
+
+            //If no new fragments where inserted no need for printing
+            if (fragmentsInserted > 0) {
+                writeTypes(launcher.getFactory(), types, outputDir + configuration.getSourceDir());
+                logger.info("Elements detected: " + fragmentsInserted);
+            } else {
+                logger.info("No fragments. Sources unmodified");
+            }
+
+            writeSampler(configuration);
+            writeProbeArrays(configuration);
+        }
+    }
+
+    /**
+     * Top level types of the model whose compilation unit lies under the given source root
+     */
+    private List<CtType<?>> typesUnder(Factory factory, String root) throws IOException {
+        String rootPath = new File(root).getCanonicalPath();
+        List<CtType<?>> result = new ArrayList<>();
+        for (CtType<?> t : factory.Type().getAll()) {
+            SourcePosition position = t.getPosition();
+            if (position == null || position.getFile() == null) continue;
+            String path = position.getFile().getCanonicalPath();
+            if (path.equals(rootPath) || path.startsWith(rootPath + File.separator)) result.add(t);
+        }
+        return result;
+    }
+
+    /**
+     * Writes the given types to an output dir. Only the compilation units modified by the injectors are pretty
+     * printed, the sources of the others are copied (or linked, see isLinkUnmodified()).
+     *
+     * @return The files written, relative to the output dir
+     */
+    private List<String> writeTypes(Factory factory, Collection<CtType<?>> types, String output) throws IOException {
+        List<CtType<?>> modified = new ArrayList<>();
+        LinkedHashMap<File, String> unmodified = new LinkedHashMap<>();
+        List<String> result = new ArrayList<>();
+        for (CtType<?> t : types) {
+            File file = sourceFile(t);
+            if (file == null || modifiedUnits.contains(file)) {
+                modified.add(t);
+                result.add(packagePath(t) + t.getSimpleName() + ".java");
+            } else if (!unmodified.containsKey(file)) {
+                unmodified.put(file, packagePath(t) + file.getName());
+                result.add(unmodified.get(file));
+            }
+        }
+        if (modified.size() > 0) printTypes(factory, modified, output);
+
+        InstrumentationMetrics.Stopwatch copy = metrics.start("copy");
+        for (Map.Entry<File, String> e : unmodified.entrySet()) copyUnit(e.getKey(), new File(output, e.getValue()));
+        copy.stop();
+
+        for (CtType<?> t : types) {
+            File file = sourceFile(t);
+            if (file != null) modifiedUnits.remove(file);
+        }
+        logger.info(modified.size() + " types printed, " + unmodified.size() + " sources copied");
+        return result;
+    }
+
+    /**
+     * Source file of a type, or null if it has no position
+     */
+    private File sourceFile(CtType<?> type) {
+        SourcePosition position = type.getPosition();
+        return position == null ? null : position.getFile();
+    }
+
+    /**
+     * Path of the package of a type, relative to a source root and ending with a separator
+     */
+    private String packagePath(CtType<?> type) {
+        CtPackage pack = type.getPackage();
+        if (pack == null || pack.getQualifiedName().equals(CtPackage.TOP_LEVEL_PACKAGE_NAME)) return "";
+        return pack.getQualifiedName().replace('.', File.separatorChar) + File.separator;
+    }
+
+    /**
+     * Copies or links an unmodified source to the output
+     */
+    private void copyUnit(File source, File target) throws IOException {
+        if (source.getCanonicalFile().equals(target.getCanonicalFile())) return;
+        target.getParentFile().mkdirs();
+        Files.deleteIfExists(target.toPath());
+        if (isLinkUnmodified()) {
+            try {
+                Files.createLink(target.toPath(), source.toPath());
+                return;
+            } catch (IOException | UnsupportedOperationException ex) {
+                logger.debug("Unable to link " + source + ". Copying it: " + ex.getMessage());
+            }
+        }
+        Files.copy(source.toPath(), target.toPath());
+    }
+
+    /**
+     * Pretty prints the given types to an output dir, once their batched snippets are merged
+     */
+    private void printTypes(Factory factory, Collection<CtType<?>> types, String output) throws IOException {
+        InstrumentationMetrics.Stopwatch batch = metrics.start("batch");
+        int merged = 0;
+        for (CtType<?> t : types) merged += SnippetBatch.merge(t);
+        batch.stop();
+        if (merged > 0) logger.info(merged + " snippets merged into their batches");
+
+        InstrumentationMetrics.Stopwatch print = metrics.start("print");
+        HashSet<String> names = new HashSet<>();
+        for (CtType<?> t : types) {
+            names.add(t.getSimpleName());
+            //The previous output may be a link to the source, which must not be overwritten
+            Files.deleteIfExists(new File(output, packagePath(t) + t.getSimpleName() + ".java").toPath());
+        }
+        JavaOutputProcessorWithFilter printer = new JavaOutputProcessorWithFilter(new File(output),
+                new DefaultJavaPrettyPrinter(factory.getEnvironment()), names);
+        QueueProcessingManager pm = new QueueProcessingManager(factory);
+        pm.addProcessor(printer);
+        pm.process(types);
+        print.stop();
+    }
+
+    /**
+     * Runs the detectors over the given types in a single traversal, measuring each detector and each source file
+     */
+    private void processModel(Factory factory, Collection<CtType<?>> types, Collection<Detector> detectors) {
+        InstrumentationMetrics.Stopwatch process = metrics.start("process");
+
+        //Group the types by compilation unit
+        LinkedHashMap<String, List<CtType<?>>> units = new LinkedHashMap<>();
+        for (CtType<?> t : types) {
+            SourcePosition position = t.getPosition();
+            String file = position == null || position.getFile() == null ?
+                    t.getQualifiedName() : position.getFile().getPath();
+            if (!units.containsKey(file)) units.put(file, new ArrayList<CtType<?>>());
+            units.get(file).add(t);
+        }
+
+        List<Detector> list = new ArrayList<>(detectors);
+        int[] detected = new int[list.size()];
+        for (int i = 0; i < detected.length; i++) {
+            detected[i] = list.get(i).getElementsDetectedCount();
+            list.get(i).setFactory(factory);
+            list.get(i).init();
+        }
+
+        DetectorScanner scanner = new DetectorScanner(list);
+        for (Map.Entry<String, List<CtType<?>>> unit : units.entrySet()) {
+            long start = System.nanoTime();
+            for (CtType<?> t : unit.getValue()) scanner.scan(t);
+            metrics.addFile(unit.getKey(), System.nanoTime() - start);
+        }
+
+        for (int i = 0; i < detected.length; i++) {
+            Detector d = list.get(i);
+            d.processingDone();
+            metrics.addDetector(d.getClass().getName(), scanner.getTime(i), 0,
+                    d.getElementsDetectedCount() - detected[i]);
+        }
+        process.stop();
+    }
+
+    /**
+     * Links a detector with the ID map and the injectors listening to its events
+     */
+    private void linkDetector(Detector d, Configuration configuration) {
+        d.setIdMap(idMap);
+        //Collect relevant injectors to the events this detector will detect
+        for (Map.Entry<String, Collection<DetectionListener>> e : configuration.getInjectors().entrySet())
+            for (DetectionListener eventListener : e.getValue()) {
+                if (eventListener instanceof IndexedInjector) ((IndexedInjector) eventListener).setIds(idMap);
+                if (eventListener instanceof GenericInjector && ((GenericInjector) eventListener).getSampling() != null)
+                    ((GenericInjector) eventListener).getSampling().setProbes(sampledProbes);
+                d.addListener(e.getKey(), modifiedUnits.tracking(
+                        metrics.timed(injectorName(e.getKey(), eventListener), eventListener)));
+            }
+    }
+
+    /**
+     * Name of an injector in the metrics
+     */
+    private String injectorName(String event, DetectionListener listener) {
+        String name = event + " " + listener.getClass().getSimpleName();
+        if (listener instanceof Injector) name += " " + ((Injector) listener).getInjectionTemplate();
+        return name;
+    }
+
+    /**
+     * Creates the launcher for a set of sources, with the environment used by all injections
+     *
+     * @param src    Sources to build the model from
+     * @param output Directory where the launcher prints the sources
+     */
+    private Launcher createLauncher(List<String> src, String output) {
+        final Launcher launcher = LauncherBuilder.build(src, output);
+        launcher.getEnvironment().setNoClasspath(!useClasspath);
+        launcher.getEnvironment().setAutoImports(true);
+        launcher.getEnvironment().setSourceClasspath(sourceClasspath());
+        return launcher;
+    }
+
+    /**
+     * Classpath used to build the models of the project
+     */
+    private String[] sourceClasspath() {
+        List<String> cp = new ArrayList<>();
+        if (resolvedClasspath != null) cp.addAll(resolvedClasspath);
+        else if (getManualClassPath() != null) cp.addAll(getManualClassPath());
+        //Compiled classes of the project resolve the types of the sources left out of the model
+        cp.addAll(compiledClassesDirs());
+        return cp.toArray(new String[cp.size()]);
+    }
+
+    /**
+     * Resolves the classpath of the project offline. The result is kept in the target dir of the project, out of the
+     * instrumented output, and only resolved again when the pom changes.
+     */
+    private List<String> resolveClasspath(Configuration configuration) {
+        InstrumentationMetrics.Stopwatch resolve = metrics.start("dependencies");
+        try {
+            return dependencyResolver.resolve(configuration, getPomPath(), getManualClassPath(),
+                    new File(projectDir + "/target", DependencyResolver.CLASSPATH_FILE));
+        } finally {
+            resolve.stop();
+        }
+    }
+
+    /**
+     * Existing output dirs of the project's compiled classes
+     */
+    private List<String> compiledClassesDirs() {
+        List<String> result = new ArrayList<>();
+        for (String s : new String[]{"/target/classes", "/target/test-classes"}) {
+            File f = new File(projectDir + s);
+            if (f.isDirectory()) result.add(f.getAbsolutePath());
+        }
+        return result;
     }
 
     /**
      * Inject a given configuration and a set of sources, launchInjection them
      */
-    private void launchInjection(Configuration configuration, List<String> src) {
+    private void launchInjection(Configuration configuration, List<String> src) throws IOException {
+        launchInjection(configuration, src, configuration.getDetectors(), null, 0);
+    }
+
+    /**
+     * Inject a given configuration and a set of sources using the given detectors.
+     *
+     * @param sequencer If not null, detection waits for the turn given by the ticket, so IDs are assigned in order
+     * @param ticket    Turn of this injection in the sequencer
+     */
+    private void launchInjection(Configuration configuration, List<String> src, Collection<Detector> detectors,
+                                 ProcessingSequencer sequencer, int ticket) throws IOException {
 
         if (logger.isInfoEnabled()) for (String s : src) logger.info("Processing: " + s);
 
-        final Launcher launcher = LauncherBuilder.build(src, outputDir + configuration.getSourceDir());
-        // Environment env = launcher.getEnvironment();
-        // env.setComplianceLevel(getComplianceLevel());
-        // env.setNoClasspath(!useClasspath);
-        // env.setAutoImports(true);
-        // java.util.List<String> cp = new java.util.ArrayList<>();
-        String cp_str = "/home/jovyan/.m2/repository/com/google/code/gson/gson/2.8.9/gson-2.8.9.jar:/home/jovyan/.m2/repository/com/squareup/moshi/moshi/1.11.0/moshi-1.11.0.jar:/home/jovyan/.m2/repository/com/esotericsoftware/kryo/5.0.3/kryo-5.0.3.jar:/home/jovyan/.m2/repository/com/esotericsoftware/reflectasm/1.11.9/reflectasm-1.11.9.jar:/home/jovyan/.m2/repository/org/objenesis/objenesis/3.1/objenesis-3.1.jar:/home/jovyan/.m2/repository/com/esotericsoftware/minlog/1.3.1/minlog-1.3.1.jar:/home/jovyan/.m2/repository/org/openjdk/jmh/jmh-core/1.37-SNAPSHOT/jmh-core-1.37-SNAPSHOT.jar:/home/jovyan/.m2/repository/net/sf/jopt-simple/jopt-simple/5.0.4/jopt-simple-5.0.4.jar:/home/jovyan/.m2/repository/org/apache/commons/commons-math3/3.6.1/commons-math3-3.6.1.jar:/home/jovyan/.m2/repository/org/openjdk/jmh/jmh-generator-annprocess/1.37-SNAPSHOT/jmh-generator-annprocess-1.37-SNAPSHOT.jar:/home/jovyan/.m2/repository/com/google/protobuf/protobuf-java/3.14.0/protobuf-java-3.14.0.jar:/home/jovyan/.m2/repository/io/zipkin/zipkin-server/2.24.0-SNAPSHOT/zipkin-server-2.24.0-SNAPSHOT.jar:/home/jovyan/.m2/repository/org/springframework/boot/spring-boot-starter/2.5.14/spring-boot-starter-2.5.14.jar:/home/jovyan/.m2/repository/org/springframework/boot/spring-boot/2.5.14/spring-boot-2.5.14.jar:/home/jovyan/.m2/repository/org/springframework/spring-context/5.3.20/spring-context-5.3.20.jar:/home/jovyan/.m2/repository/org/springframework/spring-aop/5.3.20/spring-aop-5.3.20.jar:/home/jovyan/.m2/repository/org/springframework/spring-beans/5.3.20/spring-beans-5.3.20.jar:/home/jovyan/.m2/repository/org/springframework/spring-expression/5.3.20/spring-expression-5.3.20.jar:/home/jovyan/.m2/repository/org/springframework/boot/spring-boot-autoconfigure/2.5.14/spring-boot-autoconfigure-2.5.14.jar:/home/jovyan/.m2/repository/jakarta/annotation/jakarta.annotation-api/1.3.5/jakarta.annotation-api-1.3.5.jar:/home/jovyan/.m2/repository/org/springframework/spring-core/5.3.20/spring-core-5.3.20.jar:/home/jovyan/.m2/repository/org/springframework/spring-jcl/5.3.20/spring-jcl-5.3.20.jar:/home/jovyan/.m2/repository/org/springframework/boot/spring-boot-starter-actuator/2.5.14/spring-boot-starter-actuator-2.5.14.jar:/home/jovyan/.m2/repository/org/springframework/boot/spring-boot-actuator-autoconfigure/2.5.14/spring-boot-actuator-autoconfigure-2.5.14.jar:/home/jovyan/.m2/repository/org/springframework/boot/spring-boot-actuator/2.5.14/spring-boot-actuator-2.5.14.jar:/home/jovyan/.m2/repository/com/fasterxml/jackson/datatype/jackson-datatype-jsr310/2.14.0/jackson-datatype-jsr310-2.14.0.jar:/home/jovyan/.m2/repository/org/yaml/snakeyaml/1.33/snakeyaml-1.33.jar:/home/jovyan/.m2/repository/org/apache/logging/log4j/log4j-api/2.17.1/log4j-api-2.17.1.jar:/home/jovyan/.m2/repository/org/apache/logging/log4j/log4j-core/2.17.1/log4j-core-2.17.1.jar:/home/jovyan/.m2/repository/org/apache/logging/log4j/log4j-slf4j-impl/2.17.1/log4j-slf4j-impl-2.17.1.jar:/home/jovyan/.m2/repository/org/apache/logging/log4j/log4j-jul/2.17.1/log4j-jul-2.17.1.jar:/home/jovyan/.m2/repository/org/springframework/boot/spring-boot-starter-log4j2/2.5.14/spring-boot-starter-log4j2-2.5.14.jar:/home/jovyan/.m2/repository/com/linecorp/armeria/armeria-spring-boot2-autoconfigure/1.17.2/armeria-spring-boot2-autoconfigure-1.17.2.jar:/home/jovyan/.m2/repository/javax/inject/javax.inject/1/javax.inject-1.jar:/home/jovyan/.m2/repository/com/google/code/findbugs/jsr305/3.0.2/jsr305-3.0.2.jar:/home/jovyan/.m2/repository/com/linecorp/armeria/armeria-brave/1.17.2/armeria-brave-1.17.2.jar:/home/jovyan/.m2/repository/io/zipkin/brave/brave/5.13.9/brave-5.13.9.jar:/home/jovyan/.m2/repository/io/zipkin/reporter2/zipkin-reporter-brave/2.16.3/zipkin-reporter-brave-2.16.3.jar:/home/jovyan/.m2/repository/io/zipkin/reporter2/zipkin-reporter/2.16.3/zipkin-reporter-2.16.3.jar:/home/jovyan/.m2/repository/io/zipkin/brave/brave-instrumentation-http/5.13.9/brave-instrumentation-http-5.13.9.jar:/home/jovyan/.m2/repository/com/linecorp/armeria/armeria-grpc-protocol/1.17.2/armeria-grpc-protocol-1.17.2.jar:/home/jovyan/.m2/repository/io/micrometer/micrometer-registry-prometheus/1.9.3/micrometer-registry-prometheus-1.9.3.jar:/home/jovyan/.m2/repository/io/prometheus/simpleclient_common/0.15.0/simpleclient_common-0.15.0.jar:/home/jovyan/.m2/repository/io/prometheus/simpleclient/0.15.0/simpleclient-0.15.0.jar:/home/jovyan/.m2/repository/io/prometheus/simpleclient_tracer_otel/0.15.0/simpleclient_tracer_otel-0.15.0.jar:/home/jovyan/.m2/repository/io/prometheus/simpleclient_tracer_common/0.15.0/simpleclient_tracer_common-0.15.0.jar:/home/jovyan/.m2/repository/io/prometheus/simpleclient_tracer_otel_agent/0.15.0/simpleclient_tracer_otel_agent-0.15.0.jar:/home/jovyan/.m2/repository/com/netflix/concurrency-limits/concurrency-limits-core/0.3.6/concurrency-limits-core-0.3.6.jar:/home/jovyan/.m2/repository/io/micrometer/micrometer-core/1.9.3/micrometer-core-1.9.3.jar:/home/jovyan/.m2/repository/org/latencyutils/LatencyUtils/2.0.3/LatencyUtils-2.0.3.jar:/home/jovyan/.m2/repository/io/zipkin/zipkin2/zipkin/2.24.0-SNAPSHOT/zipkin-2.24.0-SNAPSHOT.jar:/home/jovyan/.m2/repository/io/zipkin/zipkin2/zipkin-collector/2.24.0-SNAPSHOT/zipkin-collector-2.24.0-SNAPSHOT.jar:/home/jovyan/.m2/repository/org/slf4j/slf4j-api/1.7.30/slf4j-api-1.7.30.jar:/home/jovyan/.m2/repository/org/slf4j/jul-to-slf4j/1.7.30/jul-to-slf4j-1.7.30.jar:/home/jovyan/.m2/repository/io/zipkin/zipkin-lens/2.24.0-SNAPSHOT/zipkin-lens-2.24.0-SNAPSHOT.jar:/home/jovyan/.m2/repository/io/zipkin/zipkin2/zipkin-storage-elasticsearch/2.24.0-SNAPSHOT/zipkin-storage-elasticsearch-2.24.0-SNAPSHOT.jar:/home/jovyan/.m2/repository/com/linecorp/armeria/armeria/1.17.2/armeria-1.17.2.jar:/home/jovyan/.m2/repository/com/fasterxml/jackson/core/jackson-annotations/2.14.0/jackson-annotations-2.14.0.jar:/home/jovyan/.m2/repository/io/netty/netty-transport/4.1.78.Final/netty-transport-4.1.78.Final.jar:/home/jovyan/.m2/repository/io/netty/netty-common/4.1.78.Final/netty-common-4.1.78.Final.jar:/home/jovyan/.m2/repository/io/netty/netty-buffer/4.1.78.Final/netty-buffer-4.1.78.Final.jar:/home/jovyan/.m2/repository/io/netty/netty-resolver/4.1.78.Final/netty-resolver-4.1.78.Final.jar:/home/jovyan/.m2/repository/io/netty/netty-codec-http2/4.1.78.Final/netty-codec-http2-4.1.78.Final.jar:/home/jovyan/.m2/repository/io/netty/netty-codec/4.1.78.Final/netty-codec-4.1.78.Final.jar:/home/jovyan/.m2/repository/io/netty/netty-handler/4.1.78.Final/netty-handler-4.1.78.Final.jar:/home/jovyan/.m2/repository/io/netty/netty-codec-http/4.1.78.Final/netty-codec-http-4.1.78.Final.jar:/home/jovyan/.m2/repository/io/netty/netty-codec-haproxy/4.1.78.Final/netty-codec-haproxy-4.1.78.Final.jar:/home/jovyan/.m2/repository/io/netty/netty-resolver-dns/4.1.78.Final/netty-resolver-dns-4.1.78.Final.jar:/home/jovyan/.m2/repository/io/netty/netty-codec-dns/4.1.78.Final/netty-codec-dns-4.1.78.Final.jar:/home/jovyan/.m2/repository/io/netty/netty-resolver-dns-native-macos/4.1.78.Final/netty-resolver-dns-native-macos-4.1.78.Final-osx-x86_64.jar:/home/jovyan/.m2/repository/io/netty/netty-resolver-dns-classes-macos/4.1.78.Final/netty-resolver-dns-classes-macos-4.1.78.Final.jar:/home/jovyan/.m2/repository/io/netty/netty-resolver-dns-native-macos/4.1.78.Final/netty-resolver-dns-native-macos-4.1.78.Final-osx-aarch_64.jar:/home/jovyan/.m2/repository/io/netty/netty-transport-native-unix-common/4.1.78.Final/netty-transport-native-unix-common-4.1.78.Final-linux-x86_64.jar:/home/jovyan/.m2/repository/io/netty/netty-transport-native-epoll/4.1.78.Final/netty-transport-native-epoll-4.1.78.Final-linux-x86_64.jar:/home/jovyan/.m2/repository/io/netty/netty-transport-native-unix-common/4.1.78.Final/netty-transport-native-unix-common-4.1.78.Final.jar:/home/jovyan/.m2/repository/io/netty/netty-transport-classes-epoll/4.1.78.Final/netty-transport-classes-epoll-4.1.78.Final.jar:/home/jovyan/.m2/repository/io/netty/netty-tcnative-boringssl-static/2.0.53.Final/netty-tcnative-boringssl-static-2.0.53.Final-linux-x86_64.jar:/home/jovyan/.m2/repository/io/netty/netty-tcnative-classes/2.0.53.Final/netty-tcnative-classes-2.0.53.Final.jar:/home/jovyan/.m2/repository/io/netty/netty-tcnative-boringssl-static/2.0.53.Final/netty-tcnative-boringssl-static-2.0.53.Final-linux-aarch_64.jar:/home/jovyan/.m2/repository/io/netty/netty-tcnative-boringssl-static/2.0.53.Final/netty-tcnative-boringssl-static-2.0.53.Final-osx-x86_64.jar:/home/jovyan/.m2/repository/io/netty/netty-tcnative-boringssl-static/2.0.53.Final/netty-tcnative-boringssl-static-2.0.53.Final-osx-aarch_64.jar:/home/jovyan/.m2/repository/io/netty/netty-tcnative-boringssl-static/2.0.53.Final/netty-tcnative-boringssl-static-2.0.53.Final-windows-x86_64.jar:/home/jovyan/.m2/repository/io/netty/netty-handler-proxy/4.1.78.Final/netty-handler-proxy-4.1.78.Final.jar:/home/jovyan/.m2/repository/io/netty/netty-codec-socks/4.1.78.Final/netty-codec-socks-4.1.78.Final.jar:/home/jovyan/.m2/repository/com/aayushatharva/brotli4j/brotli4j/1.7.1/brotli4j-1.7.1.jar:/home/jovyan/.m2/repository/com/aayushatharva/brotli4j/native-linux-x86_64/1.7.1/native-linux-x86_64-1.7.1.jar:/home/jovyan/.m2/repository/com/google/auto/value/auto-value-annotations/1.7.4/auto-value-annotations-1.7.4.jar:/home/jovyan/.m2/repository/com/squareup/wire/wire-runtime/3.0.2/wire-runtime-3.0.2.jar:/home/jovyan/.m2/repository/org/jetbrains/kotlin/kotlin-stdlib/1.3.50/kotlin-stdlib-1.3.50.jar:/home/jovyan/.m2/repository/org/jetbrains/annotations/13.0/annotations-13.0.jar:/home/jovyan/.m2/repository/org/jetbrains/kotlin/kotlin-stdlib-common/1.3.50/kotlin-stdlib-common-1.3.50.jar:/home/jovyan/.m2/repository/com/squareup/okio/okio/2.4.1/okio-2.4.1.jar:/home/jovyan/.m2/repository/io/zipkin/proto3/zipkin-proto3/1.0.0/zipkin-proto3-1.0.0.jar:/home/jovyan/.m2/repository/io/zipkin/zipkin2/zipkin-tests/2.24.0-SNAPSHOT/zipkin-tests-2.24.0-SNAPSHOT.jar:/home/jovyan/.m2/repository/io/zipkin/zipkin2/zipkin-storage-cassandra/2.24.0-SNAPSHOT/zipkin-storage-cassandra-2.24.0-SNAPSHOT.jar:/home/jovyan/.m2/repository/com/datastax/oss/java-driver-core/4.11.3/java-driver-core-4.11.3.jar:/home/jovyan/.m2/repository/com/datastax/oss/native-protocol/1.5.0/native-protocol-1.5.0.jar:/home/jovyan/.m2/repository/com/datastax/oss/java-driver-shaded-guava/25.1-jre-graal-sub-1/java-driver-shaded-guava-25.1-jre-graal-sub-1.jar:/home/jovyan/.m2/repository/com/typesafe/config/1.4.1/config-1.4.1.jar:/home/jovyan/.m2/repository/com/github/jnr/jnr-posix/3.1.5/jnr-posix-3.1.5.jar:/home/jovyan/.m2/repository/com/github/jnr/jnr-ffi/2.2.2/jnr-ffi-2.2.2.jar:/home/jovyan/.m2/repository/com/github/jnr/jffi/1.3.1/jffi-1.3.1.jar:/home/jovyan/.m2/repository/com/github/jnr/jffi/1.3.1/jffi-1.3.1-native.jar:/home/jovyan/.m2/repository/org/ow2/asm/asm/9.1/asm-9.1.jar:/home/jovyan/.m2/repository/org/ow2/asm/asm-commons/9.1/asm-commons-9.1.jar:/home/jovyan/.m2/repository/org/ow2/asm/asm-analysis/9.1/asm-analysis-9.1.jar:/home/jovyan/.m2/repository/org/ow2/asm/asm-tree/9.1/asm-tree-9.1.jar:/home/jovyan/.m2/repository/org/ow2/asm/asm-util/9.1/asm-util-9.1.jar:/home/jovyan/.m2/repository/com/github/jnr/jnr-a64asm/1.0.0/jnr-a64asm-1.0.0.jar:/home/jovyan/.m2/repository/com/github/jnr/jnr-x86asm/1.0.2/jnr-x86asm-1.0.2.jar:/home/jovyan/.m2/repository/com/github/jnr/jnr-constants/0.10.1/jnr-constants-0.10.1.jar:/home/jovyan/.m2/repository/io/dropwizard/metrics/metrics-core/4.1.18/metrics-core-4.1.18.jar:/home/jovyan/.m2/repository/org/hdrhistogram/HdrHistogram/2.1.12/HdrHistogram-2.1.12.jar:/home/jovyan/.m2/repository/com/esri/geometry/esri-geometry-api/1.2.1/esri-geometry-api-1.2.1.jar:/home/jovyan/.m2/repository/org/json/json/20090211/json-20090211.jar:/home/jovyan/.m2/repository/org/codehaus/jackson/jackson-core-asl/1.9.12/jackson-core-asl-1.9.12.jar:/home/jovyan/.m2/repository/com/fasterxml/jackson/core/jackson-core/2.14.0/jackson-core-2.14.0.jar:/home/jovyan/.m2/repository/com/fasterxml/jackson/core/jackson-databind/2.14.0/jackson-databind-2.14.0.jar:/home/jovyan/.m2/repository/org/reactivestreams/reactive-streams/1.0.3/reactive-streams-1.0.3.jar:/home/jovyan/.m2/repository/com/github/stephenc/jcip/jcip-annotations/1.0-1/jcip-annotations-1.0-1.jar:/home/jovyan/.m2/repository/com/github/spotbugs/spotbugs-annotations/3.1.12/spotbugs-annotations-3.1.12.jar:/home/jovyan/.m2/repository/io/zipkin/zipkin2/zipkin-storage-mysql-v1/2.24.0-SNAPSHOT/zipkin-storage-mysql-v1-2.24.0-SNAPSHOT.jar:/home/jovyan/.m2/repository/org/jooq/jooq/3.14.4/jooq-3.14.4.jar:/home/jovyan/.m2/repository/javax/xml/bind/jaxb-api/2.3.1/jaxb-api-2.3.1.jar:/home/jovyan/.m2/repository/javax/activation/javax.activation-api/1.2.0/javax.activation-api-1.2.0.jar:/home/jovyan/.m2/repository/org/mariadb/jdbc/mariadb-java-client/2.7.1/mariadb-java-client-2.7.1.jar:/home/jovyan/.m2/repository/com/zaxxer/HikariCP/3.4.5/HikariCP-3.4.5.jar:/home/jovyan/.m2/repository/org/testcontainers/testcontainers/1.15.1/testcontainers-1.15.1.jar:/home/jovyan/.m2/repository/org/apache/commons/commons-compress/1.20/commons-compress-1.20.jar:/home/jovyan/.m2/repository/org/rnorth/duct-tape/duct-tape/1.0.8/duct-tape-1.0.8.jar:/home/jovyan/.m2/repository/org/rnorth/visible-assertions/visible-assertions/2.1.2/visible-assertions-2.1.2.jar:/home/jovyan/.m2/repository/net/java/dev/jna/jna/5.2.0/jna-5.2.0.jar:/home/jovyan/.m2/repository/com/github/docker-java/docker-java-api/3.2.7/docker-java-api-3.2.7.jar:/home/jovyan/.m2/repository/com/github/docker-java/docker-java-transport-zerodep/3.2.7/docker-java-transport-zerodep-3.2.7.jar:/home/jovyan/.m2/repository/com/github/docker-java/docker-java-transport/3.2.7/docker-java-transport-3.2.7.jar:/home/jovyan/.m2/repository/junit/junit/4.13.1/junit-4.13.1.jar:/home/jovyan/.m2/repository/org/junit/jupiter/junit-jupiter/5.7.0/junit-jupiter-5.7.0.jar:/home/jovyan/.m2/repository/org/junit/jupiter/junit-jupiter-params/5.7.0/junit-jupiter-params-5.7.0.jar:/home/jovyan/.m2/repository/org/junit/vintage/junit-vintage-engine/5.7.0/junit-vintage-engine-5.7.0.jar:/home/jovyan/.m2/repository/org/apiguardian/apiguardian-api/1.1.0/apiguardian-api-1.1.0.jar:/home/jovyan/.m2/repository/org/junit/platform/junit-platform-engine/1.7.0/junit-platform-engine-1.7.0.jar:/home/jovyan/.m2/repository/org/junit/jupiter/junit-jupiter-api/5.7.0/junit-jupiter-api-5.7.0.jar:/home/jovyan/.m2/repository/org/opentest4j/opentest4j/1.2.0/opentest4j-1.2.0.jar:/home/jovyan/.m2/repository/org/junit/platform/junit-platform-commons/1.7.0/junit-platform-commons-1.7.0.jar:/home/jovyan/.m2/repository/org/junit/jupiter/junit-jupiter-engine/5.7.0/junit-jupiter-engine-5.7.0.jar:/home/jovyan/.m2/repository/org/assertj/assertj-core/3.18.1/assertj-core-3.18.1.jar:/home/jovyan/.m2/repository/org/mockito/mockito-core/3.6.28/mockito-core-3.6.28.jar:/home/jovyan/.m2/repository/net/bytebuddy/byte-buddy/1.10.18/byte-buddy-1.10.18.jar:/home/jovyan/.m2/repository/net/bytebuddy/byte-buddy-agent/1.10.18/byte-buddy-agent-1.10.18.jar:/home/jovyan/.m2/repository/org/hamcrest/hamcrest-core/1.3/hamcrest-core-1.3.jar:/usr/lib/jvm/java-1.8.0-openjdk-amd64/jre/lib/rt.jar";
-
-        // launcher.getEnvironment().setComplianceLevel(getComplianceLevel());
-        // launcher.getEnvironment().setComplianceLevel(8);
-        // Path jmods = Paths.get("/usr/lib/jvm/java-11-openjdk-amd64/jmods");
-        // Path jmods = Paths.get("/usr/lib/jvm/java-1.8.0-openjdk-amd64/")
-        // List<String> cp = new ArrayList<>();
-        // try {
-        //     DirectoryStream<Path> ds = Files.newDirectoryStream(jmods, "*.jmod");
-        //     for (Path p : ds) {
-        //         cp.add(p.toString());
-        //     }
-        // } catch (Exception ex) {
-        // }
-        // String cp2 = String.join(":", cp);
-        // System.out.println("cp2: " + cp2);
-        // String cp3 = cp_str + ":" + cp2;
-        String cp3 = cp_str ;
-        launcher.getEnvironment().setNoClasspath(false);
-        launcher.getEnvironment().setAutoImports(true);
-        launcher.getEnvironment().setSourceClasspath(cp3.split(":"));
-        System.out.println("Dectors: " + configuration.getDetectors());
+        String output = outputDir + configuration.getSourceDir();
+        final Launcher launcher = createLauncher(src, output);
+        logger.debug("Detectors: " + detectors);
         int fragmentsInserted = 0;
-        for (Detector d : configuration.getDetectors()) launcher.addProcessor(d);
+
+        //Only whole source roots are cached
+        ModelCache cache = null;
+        String key = null;
+        Factory cached = null;
+        if (isModelCache() && sequencer == null && src.equals(Arrays.asList(projectDir + configuration.getSourceDir()))) {
+            try {
+                cache = new ModelCache(new File(output, ModelCache.FILE_NAME));
+                key = ModelCache.key(src, sourceClasspath(), getComplianceLevel());
+                InstrumentationMetrics.Stopwatch load = metrics.start("modelCacheLoad");
+                cached = cache.load(key);
+                load.stop();
+            } catch (IOException ex) {
+                logger.warn("Unable to compute the key of the model: " + ex.getMessage());
+                cache = null;
+            }
+        }
 
         //Try to compile using the classpath first
         try {
-            launcher.buildModel();
-            launcher.process();
+            if (cached == null) {
+                InstrumentationMetrics.Stopwatch build = metrics.start("buildModel");
+                try {
+                    launcher.buildModel();
+                } finally {
+                    build.stop();
+                }
+                if (cache != null) {
+                    InstrumentationMetrics.Stopwatch save = metrics.start("modelCacheSave");
+                    cache.save(key, launcher.getFactory(), sourceClasspath());
+                    save.stop();
+                }
+                if (sequencer != null) sequencer.await(ticket);
+                processModel(launcher.getFactory(), launcher.getFactory().Type().getAll(), detectors);
+            } else {
+                processModel(cached, cached.Type().getAll(), detectors);
+            }
+            for (Detector d : detectors) {
+                fragmentsInserted += d.getElementsDetectedCount();
+                d.reset();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
         } catch (Exception ex) {
             failedDirs.add(src.get(0));
             logger.warn("Error: " + ex.getMessage());
             throw  ex;
+        } finally {
+            if (sequencer != null) sequencer.release(ticket);
         }
 
-        for (Detector d : configuration.getDetectors())
-            fragmentsInserted += d.getElementsDetectedCount();
-
         //If no new fragments where inserted no need for printing
         if (fragmentsInserted > 0) {
-            launcher.prettyprint();
+            Factory factory = cached == null ? launcher.getFactory() : cached;
+            writeTypes(factory, factory.Type().getAll(), output);
             logger.info("Elements detected: " + fragmentsInserted);
         } else {
             logger.info("No fragments. Sources unmodified");
         }
+    }
 
-        for (Detector d : configuration.getDetectors()) d.reset();
+    /**
+     * Injects only the sources of a root that changed since the last run, according to the manifest kept in the
+     * output dir. Unchanged sources are not even parsed: their previous output and IDs are reused.
+     * <p>
+     * Changed sources are modeled alone, therefore in no classpath mode when some sources were left out.
+     */
+    private void launchIncrementalInjection(Configuration configuration, String root) throws IOException {
+        String output = outputDir + configuration.getSourceDir();
+        File manifestFile = new File(output, InstrumentationManifest.FILE_NAME);
+        String fingerprint = InstrumentationManifest.fingerprint(configuration, getComplianceLevel());
+
+        InstrumentationManifest previous = InstrumentationManifest.load(manifestFile);
+        if (previous != null && !previous.getFingerprint().equals(fingerprint)) {
+            logger.info("Configuration changed since the last run. Instrumenting everything");
+            previous = null;
+        }
+        InstrumentationManifest manifest = new InstrumentationManifest(fingerprint);
+
+        //Hash the sources and find the changed ones
+        File rootFile = new File(root).getCanonicalFile();
+        HashMap<String, String> hashes = new HashMap<>();
+        List<String> changed = new ArrayList<>();
+        for (File file : javaFiles(rootFile)) {
+            String path = file.getCanonicalPath();
+            String relative = rootFile.toPath().relativize(file.getCanonicalFile().toPath()).toString();
+            String hash = InstrumentationManifest.hash(Files.readAllBytes(file.toPath()));
+            InstrumentationManifest.FileEntry old = previous == null ? null : previous.getFile(relative);
+            if (old != null && old.getHash().equals(hash) && old.outputsExist(output)) {
+                for (Map.Entry<String, Integer> e : old.getIds().entrySet()) idMap.restore(e.getKey(), e.getValue());
+                manifest.putFile(relative, old);
+            } else {
+                hashes.put(path, hash);
+                changed.add(path);
+            }
+        }
+
+        //Never hand out again the IDs and probes of the previous run and remove the output of changed or deleted
+        //sources
+        if (previous != null) {
+            idMap.reserve(previous.getLastIndex());
+            if (sampledProbes.get() < previous.getProbeCount()) sampledProbes.set(previous.getProbeCount());
+            for (Map.Entry<String, InstrumentationManifest.FileEntry> e : previous.getFiles().entrySet())
+                if (manifest.getFile(e.getKey()) == null) e.getValue().deleteOutputs(output);
+        }
+
+        logger.info(changed.size() + " changed sources, " + manifest.getFiles().size() + " unchanged");
+        if (changed.size() > 0) {
+            Collections.sort(changed);
+            Launcher launcher = createLauncher(changed, output);
+            if (manifest.getFiles().size() > 0) launcher.getEnvironment().setNoClasspath(true);
+            InstrumentationMetrics.Stopwatch build = metrics.start("buildModel");
+            try {
+                launcher.buildModel();
+            } catch (Exception ex) {
+                failedDirs.add(root);
+                logger.warn("Error: " + ex.getMessage());
+                throw ex;
+            } finally {
+                build.stop();
+            }
+
+            //Process and print unit by unit to know which IDs belong to each source
+            TreeMap<String, List<CtType<?>>> units = typesByFile(launcher.getFactory());
+            int fragmentsInserted = 0;
+            for (String path : changed) {
+                int lastIndex = idMap.getLastIndex();
+                List<CtType<?>> types = units.get(path);
+                InstrumentationManifest.FileEntry entry;
+                if (types != null) {
+                    processModel(launcher.getFactory(), types, configuration.getDetectors());
+                    List<String> outputs = writeTypes(launcher.getFactory(), types, output);
+                    entry = new InstrumentationManifest.FileEntry(hashes.get(path), idMap.addedAfter(lastIndex));
+                    entry.getOutputs().addAll(outputs);
+                } else {
+                    entry = new InstrumentationManifest.FileEntry(hashes.get(path), new HashMap<String, Integer>());
+                }
+                manifest.putFile(rootFile.toPath().relativize(Paths.get(path)).toString(), entry);
+            }
+            for (Detector d : configuration.getDetectors()) {
+                fragmentsInserted += d.getElementsDetectedCount();
+                d.reset();
+            }
+            logger.info("Elements detected: " + fragmentsInserted);
+        }
+
+        manifest.setLastIndex(idMap.getLastIndex());
+        manifest.setProbeCount(sampledProbes.get());
+        manifest.save(manifestFile);
+    }
+
+    /**
+     * All java files under a dir
+     */
+    private List<File> javaFiles(File dir) throws IOException {
+        final List<File> result = new ArrayList<>();
+        Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (file.toString().endsWith(".java")) result.add(file.toFile());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Top level types of the model grouped by the canonical path of their compilation unit
+     */
+    private TreeMap<String, List<CtType<?>>> typesByFile(Factory factory) throws IOException {
+        TreeMap<String, List<CtType<?>>> result = new TreeMap<>();
+        for (CtType<?> t : factory.Type().getAll()) {
+            SourcePosition position = t.getPosition();
+            if (position == null || position.getFile() == null) continue;
+            String path = position.getFile().getCanonicalPath();
+            if (!result.containsKey(path)) result.put(path, new ArrayList<CtType<?>>());
+            result.get(path).add(t);
+        }
+        return result;
     }
 
     /**
      * Walks file by file in in a given sources, injecting them
      */
     private void walk(final Configuration configuration, ArrayList<String> src,
-                      final HashSet<String> failed) throws IOException {
+                      final Set<String> failed) throws IOException, InterruptedException {
+        final List<String> files = new ArrayList<>();
         for (String s : src)
             Files.walkFileTree(Paths.get(s), new FileVisitor<Path>() {
                 @Override
                 public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                    try {
-                        String filePath = file.toAbsolutePath().toString();
-                        if (failed == null || failed.contains(filePath))
-                            launchInjection(configuration, Arrays.asList(filePath));
-                    } catch (Exception ex) {
-                        logger.warn("Error: " + ex.getMessage() + " at " + file.toString());
-                    }
+                    String filePath = file.toAbsolutePath().toString();
+                    if (failed == null || failed.contains(filePath)) files.add(filePath);
                     return FileVisitResult.CONTINUE;
                 }
 
@@ -278,6 +1026,52 @@ public class SyringeInstrumenterImpl implements SyringeInstrumenter {
                     return FileVisitResult.CONTINUE;
                 }
             });
+
+        if (getWorkerCount() > 1) {
+            walkInParallel(configuration, files);
+            return;
+        }
+        for (String filePath : files) {
+            try {
+                launchInjection(configuration, Arrays.asList(filePath));
+            } catch (Exception ex) {
+                logger.warn("Error: " + ex.getMessage() + " at " + filePath);
+            }
+        }
+    }
+
+    /**
+     * Injects the files using a pool of workers. The workers build the models concurrently, while detection is done in
+     * the order of the files to keep the IDs equal to the ones of a sequential run. Since a single worker detects at a
+     * time (see {@link ProcessingSequencer}), the workers share the configured detectors, with their filters and
+     * settings.
+     */
+    private void walkInParallel(final Configuration configuration, List<String> files) throws InterruptedException {
+        final ProcessingSequencer sequencer = new ProcessingSequencer(files.size());
+
+        ExecutorService pool = Executors.newFixedThreadPool(getWorkerCount());
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                final int ticket = i;
+                final String filePath = files.get(i);
+                pool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            launchInjection(configuration, Arrays.asList(filePath),
+                                    configuration.getDetectors(), sequencer, ticket);
+                        } catch (Exception ex) {
+                            logger.warn("Error: " + ex.getMessage() + " at " + filePath);
+                        } finally {
+                            sequencer.release(ticket);
+                        }
+                    }
+                });
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        }
     }
 
     /**
@@ -288,10 +1082,23 @@ public class SyringeInstrumenterImpl implements SyringeInstrumenter {
         File file = new File(getOutputDir() + "/log");
         file.mkdirs();
         FileWriter fw = new FileWriter(getOutputDir() + "/log/" + idName);
-        for (String s : idMap.keySet()) fw.write(idMap.get(s) + " " + s + "\n");
+        //Sorted by ID so the file does not depend on the map's history
+        TreeMap<Integer, String> sorted = new TreeMap<>();
+        for (Map.Entry<String, Integer> e : idMap.entrySet()) sorted.put(e.getValue(), e.getKey());
+        for (Map.Entry<Integer, String> e : sorted.entrySet()) fw.write(e.getKey() + " " + e.getValue() + "\n");
         fw.close();
     }
 
+    /**
+     * Writes the costs of the instrumentation as a JSON report, next to the Id file
+     */
+    @Override
+    public void writeMetricsFile(String metricsName) throws IOException {
+        File file = new File(getOutputDir() + "/log");
+        file.mkdirs();
+        metrics.write(new File(file, metricsName));
+    }
+
     /**
      * Return all names of files containing a java class
      *
@@ -341,7 +1148,7 @@ public class SyringeInstrumenterImpl implements SyringeInstrumenter {
         rb.setVerbose(verbose);
         rb.setPhase(phases);
         rb.setTimeOut(0);
-        System.out.println("pom file: " + getOutputDir() + "/pom.xml");
+        logger.debug("Pom file: " + getOutputDir() + "/pom.xml");
         // rb.initPom(getOutputDir() + "/pom.xml");
         // rb.runBuilder();
 
@@ -425,9 +1232,15 @@ public class SyringeInstrumenterImpl implements SyringeInstrumenter {
         if (loggerPropertiesFile != null && !loggerPropertiesFile.isEmpty()) {
             File logFile = new File(getOutputDir() + "/log/");
             if (!logFile.exists()) logFile.mkdir();
-            loggerProperties.store(new BufferedWriter(
-                    new FileWriter(logFile.getAbsolutePath() + "/" + loggerPropertiesFile)), "");
+            Writer writer = new BufferedWriter(new FileWriter(logFile.getAbsolutePath() + "/" + loggerPropertiesFile));
+            try {
+                loggerProperties.store(writer, "");
+            } finally {
+                writer.close();
+            }
         }
+        //The samplers and switches read the properties
+        writeSamplers();
     }
 
     @Override
@@ -435,6 +1248,13 @@ public class SyringeInstrumenterImpl implements SyringeInstrumenter {
         useClasspath = use;
     }
 
+    /**
+     * Costs of the instrumentations done so far: time per phase, detector, injector and file
+     */
+    public InstrumentationMetrics getMetrics() {
+        return metrics;
+    }
+
     public int getComplianceLevel() {
         return complianceLevel;
     }
@@ -455,6 +1275,82 @@ public class SyringeInstrumenterImpl implements SyringeInstrumenter {
         this.fileByFile = fileByFile;
     }
 
+    /**
+     * Keep a serialized copy of the model of each source root in its output dir. Later runs over the same sources,
+     * classpath and compliance level load it instead of building the model again. Defaults to false.
+     */
+    public boolean isModelCache() {
+        return modelCache;
+    }
+
+    public void setModelCache(boolean modelCache) {
+        this.modelCache = modelCache;
+    }
+
+    /**
+     * Hard link the sources not modified by the injectors into the output instead of copying them. Falls back to a
+     * copy when the file system does not support it. Defaults to false.
+     */
+    public boolean isLinkUnmodified() {
+        return linkUnmodified;
+    }
+
+    public void setLinkUnmodified(boolean linkUnmodified) {
+        this.linkUnmodified = linkUnmodified;
+    }
+
+    /**
+     * Heap budget of a chunk, in bytes. When greater than zero, source roots are injected in chunks of packages whose
+     * models should fit in the budget, one chunk at a time. Defaults to zero (the whole root at once). Ignored in file
+     * by file and incremental modes.
+     */
+    public long getChunkHeapBudget() {
+        return chunkHeapBudget;
+    }
+
+    public void setChunkHeapBudget(long chunkHeapBudget) {
+        if (chunkHeapBudget < 0) throw new IllegalArgumentException("The heap budget cannot be negative");
+        this.chunkHeapBudget = chunkHeapBudget;
+    }
+
+    /**
+     * When the model of a source root cannot be built, isolate the units that do not compile instead of failing.
+     * Defaults to true. Not used in file by file mode.
+     */
+    public boolean isIsolateFailures() {
+        return isolateFailures;
+    }
+
+    public void setIsolateFailures(boolean isolateFailures) {
+        this.isolateFailures = isolateFailures;
+    }
+
+    /**
+     * Instrument only the sources changed since the last run. A manifest with the hashes of the sources and the IDs
+     * given to them is kept in the output dir of each source root. Ignored in file by file mode.
+     */
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    /**
+     * Number of workers instrumenting files in parallel in file by file mode. Defaults to 1 (sequential).
+     * <p>
+     * The ID file is the same regardless of the number of workers.
+     */
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    public void setWorkerCount(int workerCount) {
+        if (workerCount < 1) throw new IllegalArgumentException("At least one worker is needed");
+        this.workerCount = workerCount;
+    }
+
     /**
      * Manual classpath that the maven resolver cannot resolve because is so stupid.
      */
@@ -0,0 +1,135 @@
+package fr.inria.diversify.syringe;
+
+import java.util.*;
+
+/**
+ * Index of transplant points for fuzzy matching of statements recorded against an older revision of the code.
+ * <p>
+ * Points are bucketed by class and line, so a statement is only compared to the points of its class lying within the
+ * line tolerance. Candidates are then filtered by the number of letter pairs of their source, which bounds their
+ * similarity, before computing the actual similarity with {@link StringSimilarity}. The fingerprints of the points are
+ * computed once, so matching a statement only computes the fingerprint of the statement.
+ */
+public class TransplantPointIndex {
+
+    /**
+     * A transplant point
+     */
+    public static class Point {
+        private final String className;
+        private final int line;
+        private final String source;
+        private final StringSimilarity.Fingerprint fingerprint;
+
+        private Point(String className, int line, String source) {
+            this.className = className;
+            this.line = line;
+            this.source = source;
+            this.fingerprint = StringSimilarity.fingerprint(source);
+        }
+
+        public String getClassName() {
+            return className;
+        }
+
+        public int getLine() {
+            return line;
+        }
+
+        public String getSource() {
+            return source;
+        }
+    }
+
+    //Points by class, then by line
+    private final HashMap<String, TreeMap<Integer, List<Point>>> points = new HashMap<>();
+
+    private final int lineTolerance;
+
+    private final double threshold;
+
+    private int size = 0;
+
+    /**
+     * @param lineTolerance A point matches a statement lying less than this number of lines away from it
+     * @param threshold     Minimal similarity of the source of a point and a statement
+     */
+    public TransplantPointIndex(int lineTolerance, double threshold) {
+        this.lineTolerance = lineTolerance;
+        this.threshold = threshold;
+    }
+
+    public int getLineTolerance() {
+        return lineTolerance;
+    }
+
+    public double getThreshold() {
+        return threshold;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void add(String className, int line, String source) {
+        TreeMap<Integer, List<Point>> lines = points.get(className);
+        if (lines == null) {
+            lines = new TreeMap<>();
+            points.put(className, lines);
+        }
+        List<Point> bucket = lines.get(line);
+        if (bucket == null) {
+            bucket = new ArrayList<>();
+            lines.put(line, bucket);
+        }
+        bucket.add(new Point(className, line, source));
+        size++;
+    }
+
+    /**
+     * Points of a class lying within the line tolerance of a line
+     */
+    private Collection<List<Point>> candidates(String className, int line) {
+        TreeMap<Integer, List<Point>> lines = points.get(className);
+        if (lines == null) return Collections.emptyList();
+        int window = Math.max(lineTolerance - 1, 0);
+        return lines.subMap(line - window, true, line + window, true).values();
+    }
+
+    /**
+     * Indicates if some point of the class lies within the line tolerance. Allows to reject a statement before
+     * computing its source.
+     */
+    public boolean hasCandidates(String className, int line) {
+        return !candidates(className, line).isEmpty();
+    }
+
+    /**
+     * Finds the point matching a statement
+     *
+     * @param className Class of the statement
+     * @param line      Line of the statement
+     * @param source    Source of the statement
+     * @return The matching point closest to the line of the statement, or null if none matches
+     */
+    public Point match(String className, int line, String source) {
+        Collection<List<Point>> candidates = candidates(className, line);
+        if (candidates.isEmpty()) return null;
+
+        StringSimilarity.Fingerprint fingerprint = StringSimilarity.fingerprint(source);
+
+        Point result = null;
+        for (List<Point> bucket : candidates) {
+            for (Point p : bucket) {
+                if (result != null && Math.abs(p.line - line) >= Math.abs(result.line - line)) continue;
+                //Upper bound of the similarity given the number of pairs, reached when the smaller fingerprint
+                //is contained in the larger one
+                int min = Math.min(p.fingerprint.size(), fingerprint.size());
+                int total = p.fingerprint.size() + fingerprint.size();
+                if (total == 0 || 2.0 * min / total < threshold) continue;
+                if (StringSimilarity.compare(p.fingerprint, fingerprint) >= threshold) result = p;
+            }
+        }
+        return result;
+    }
+}
@@ -1,19 +1,20 @@
 package fr.inria.diversify.syringe.dependencies;
 
 import fr.inria.diversify.syringe.Configuration;
+import fr.inria.diversify.syringe.InstrumentationManifest;
 import org.apache.log4j.Logger;
+import org.apache.maven.model.DependencyManagement;
 import org.apache.maven.model.Model;
 import org.apache.maven.model.io.xpp3.MavenXpp3Reader;
 import org.apache.maven.project.MavenProject;
 import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
+import org.eclipse.aether.DefaultRepositorySystemSession;
 import org.eclipse.aether.RepositorySystem;
-import org.eclipse.aether.RepositorySystemSession;
 import org.eclipse.aether.artifact.Artifact;
 import org.eclipse.aether.artifact.DefaultArtifact;
 import org.eclipse.aether.collection.CollectRequest;
 import org.eclipse.aether.graph.Dependency;
 import org.eclipse.aether.graph.DependencyFilter;
-import org.eclipse.aether.internal.impl.DefaultRepositorySystem;
 import org.eclipse.aether.resolution.ArtifactResult;
 import org.eclipse.aether.resolution.DependencyRequest;
 import org.eclipse.aether.resolution.DependencyResolutionException;
@@ -23,22 +24,40 @@ import org.eclipse.aether.util.filter.DependencyFilterUtils;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
 
 /**
  * Dependency resolver using Aether resolver... hope this one works... for good!
  * <p>
+ * The classpath is resolved offline, using only the local repository, and kept in a classpath file keyed by the hash
+ * of the pom. Resolution only runs again when the pom changes. The jars are made available through a single class
+ * loader over the context class loader, replaced each time the classpath changes.
+ * <p>
  * Created by elmarce on 26/08/16.
  */
 public class DependencyResolver {
 
     final static Logger logger = Logger.getLogger(DependencyResolver.class);
 
+    public static final String CLASSPATH_FILE = "syringe-classpath.txt";
+
+    //Key of the last classpath resolved
+    private String classpathKey;
+
+    //Last classpath resolved
+    private List<String> classpath;
+
+    //Class loader of the last classpath resolved and the context class loader it was installed over
+    private URLClassLoader loader;
+    private ClassLoader parentLoader;
 
     private MavenProject loadProject(File pomFile) throws IOException, XmlPullParserException {
         MavenXpp3Reader mavenReader = new MavenXpp3Reader();
@@ -50,10 +69,37 @@ public class DependencyResolver {
         return ret;
     }
 
-    private List<URL> doResolve(Configuration configuration, String pomPath) throws DependencyResolutionException, IOException, XmlPullParserException {
+    /**
+     * Replaces the ${...} properties of a pom value
+     */
+    private String interpolate(String value, MavenProject project) {
+        if (value == null || !value.contains("${")) return value;
+        Properties properties = project.getProperties();
+        value = value.replace("${project.version}", project.getVersion()).replace("${version}", project.getVersion());
+        value = value.replace("${project.groupId}", project.getGroupId());
+        for (String p : properties.stringPropertyNames()) value = value.replace("${" + p + "}", properties.getProperty(p));
+        return value;
+    }
+
+    /**
+     * Version of a dependency, looking into the dependency management section when the dependency has none
+     */
+    private String versionOf(org.apache.maven.model.Dependency d, MavenProject project) {
+        if (d.getVersion() != null) return interpolate(d.getVersion(), project);
+        DependencyManagement management = project.getDependencyManagement();
+        if (management == null) return null;
+        for (org.apache.maven.model.Dependency m : management.getDependencies())
+            if (m.getGroupId().equals(d.getGroupId()) && m.getArtifactId().equals(d.getArtifactId()))
+                return interpolate(m.getVersion(), project);
+        return null;
+    }
+
+    private List<URL> doResolve(Configuration configuration, String pomPath) throws IOException, XmlPullParserException {
         RepositorySystem system = Booter.newRepositorySystem();
 
-        RepositorySystemSession session = Booter.newRepositorySystemSession(system);
+        DefaultRepositorySystemSession session = Booter.newRepositorySystemSession(system);
+        //Only the local repository is used
+        session.setOffline(true);
 
         MavenProject project = loadProject(new File(pomPath));
 
@@ -65,53 +111,137 @@ public class DependencyResolver {
         DependencyFilter classpathFilter = DependencyFilterUtils.classpathFilter(configuration.getScopes());
         //DependencyFilter classpathFilter = DependencyFilterUtils.classpathFilter(JavaScopes.TEST);
 
+        //The project itself may not be installed, so we collect its declared dependencies
         CollectRequest collectRequest = new CollectRequest();
-        collectRequest.setRoot(new Dependency(artifact, JavaScopes.COMPILE));
-        //for ( String s : configuration.getScopes())
-        //    collectRequest.addDependency(new Dependency(artifact, s));
+        collectRequest.setRootArtifact(artifact);
+        for (org.apache.maven.model.Dependency d : project.getDependencies()) {
+            String version = versionOf(d, project);
+            if (version == null) {
+                logger.warn("No version found for " + d.getGroupId() + ":" + d.getArtifactId());
+                continue;
+            }
+            String classifier = d.getClassifier();
+            String extension = d.getType() == null ? "jar" : d.getType();
+            if (extension.equals("test-jar")) {
+                classifier = "tests";
+                extension = "jar";
+            }
+            collectRequest.addDependency(new Dependency(
+                    new DefaultArtifact(d.getGroupId(), interpolate(d.getArtifactId(), project), classifier,
+                            extension, version), d.getScope() == null ? JavaScopes.COMPILE : d.getScope()));
+        }
         collectRequest.setRepositories(Booter.newRepositories(system, session));
 
         DependencyRequest dependencyRequest = new DependencyRequest(collectRequest, classpathFilter);
 
-        List<ArtifactResult> artifactResults =
-                system.resolveDependencies(session, dependencyRequest).getArtifactResults();
+        List<ArtifactResult> artifactResults;
+        try {
+            artifactResults = system.resolveDependencies(session, dependencyRequest).getArtifactResults();
+        } catch (DependencyResolutionException e) {
+            //Keep what is in the local repository
+            logger.warn("Some dependencies are missing in the local repository: " + e.getMessage());
+            artifactResults = e.getResult() == null ? null : e.getResult().getArtifactResults();
+        }
         //Add them to the classpath
         List<URL> jarURL = new ArrayList<>();
-        for (ArtifactResult r : artifactResults) {
-            URL url = r.getArtifact().getFile().toURI().toURL();
-            jarURL.add(url);
-
-        }
+        if (artifactResults != null)
+            for (ArtifactResult r : artifactResults) {
+                if (!r.isResolved()) continue;
+                URL url = r.getArtifact().getFile().toURI().toURL();
+                jarURL.add(url);
+            }
 
         return jarURL;
+    }
 
-        //for ( URL url : jarURL) System.out.println("Found: " + url.toString());
-
+    /**
+     * Key of a classpath: the contents of the pom, the scopes and the manual classpath
+     */
+    private String key(Configuration configuration, String pomPath, List<String> manualClassPath) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        File pom = new File(pomPath);
+        if (pom.exists()) sb.append(new String(Files.readAllBytes(pom.toPath()), StandardCharsets.UTF_8));
+        for (String s : new TreeSet<>(configuration.getScopes())) sb.append("\nscope:").append(s);
+        if (manualClassPath != null) for (String s : manualClassPath) sb.append("\ncp:").append(s);
+        return InstrumentationManifest.hash(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
 
+    /**
+     * Reads a classpath file
+     *
+     * @return The classpath stored, or null if the file does not exists or was stored under another key
+     */
+    private List<String> readClasspathFile(File classpathFile, String key) throws IOException {
+        if (!classpathFile.exists()) return null;
+        List<String> lines = Files.readAllLines(classpathFile.toPath(), StandardCharsets.UTF_8);
+        if (lines.isEmpty() || !lines.get(0).equals(key)) return null;
+        return new ArrayList<>(lines.subList(1, lines.size()));
     }
 
+    private void writeClasspathFile(File classpathFile, String key, List<String> cp) throws IOException {
+        classpathFile.getAbsoluteFile().getParentFile().mkdirs();
+        List<String> lines = new ArrayList<>();
+        lines.add(key);
+        lines.addAll(cp);
+        Files.write(classpathFile.toPath(), lines, StandardCharsets.UTF_8);
+    }
 
     public void resolve(Configuration configuration, String pomPath, List<String> manualClassPath) {
+        resolve(configuration, pomPath, manualClassPath, null);
+    }
+
+    /**
+     * Resolves the classpath of a project and makes it available to the context class loader.
+     *
+     * @param classpathFile File where the classpath is kept between runs. Can be null.
+     * @return The classpath: the manual classpath followed by the jars of the dependencies
+     */
+    public List<String> resolve(Configuration configuration, String pomPath, List<String> manualClassPath,
+                                File classpathFile) {
 
         try {
-            logger.info("Resolving dependencies of: " + pomPath);
-            List<URL> jarURL = new ArrayList<>();
-            // jarURL.addAll(doResolve(configuration, pomPath));
-
-            if ( manualClassPath != null )
-                for (String s : manualClassPath) {
-                    jarURL.add(Paths.get(s).toUri().toURL());
-                    //jarURL.addAll(doResolve(configuration, s));
-                }
-            URLClassLoader child = new URLClassLoader(jarURL.toArray(new URL[jarURL.size()]),
-                    Thread.currentThread().getContextClassLoader());
-            Thread.currentThread().setContextClassLoader(child);
-
-            logger.info("Dependencies resolved " + pomPath);
+            String key = key(configuration, pomPath, manualClassPath);
+            if (key.equals(classpathKey)) return classpath;
+
+            List<String> cp = classpathFile == null ? null : readClasspathFile(classpathFile, key);
+            if (cp == null) {
+                logger.info("Resolving dependencies of: " + pomPath);
+                cp = new ArrayList<>();
+                if (manualClassPath != null) cp.addAll(manualClassPath);
+                if (new File(pomPath).exists())
+                    for (URL url : doResolve(configuration, pomPath)) cp.add(Paths.get(url.toURI()).toString());
+                else logger.warn("Cannot find " + pomPath + ". Using only the manual classpath");
+                if (classpathFile != null) writeClasspathFile(classpathFile, key, cp);
+                logger.info("Dependencies resolved " + pomPath);
+            }
+
+            installClassLoader(cp);
+
+            classpathKey = key;
+            classpath = cp;
+            return classpath;
         } catch (Exception ex) {
             logger.error("Unable to resolve dependencies");
             throw new RuntimeException(ex);
         }
     }
 
+    /**
+     * Makes a classpath available to the context class loader. The loader of the previous classpath is replaced, not
+     * chained, and closed.
+     */
+    private void installClassLoader(List<String> cp) throws IOException {
+        List<URL> jarURL = new ArrayList<>();
+        for (String s : cp) jarURL.add(Paths.get(s).toUri().toURL());
+
+        Thread thread = Thread.currentThread();
+        ClassLoader parent = thread.getContextClassLoader();
+        if (loader != null && parent == loader) parent = parentLoader;
+        URLClassLoader previous = loader;
+        loader = new URLClassLoader(jarURL.toArray(new URL[jarURL.size()]), parent);
+        parentLoader = parent;
+        thread.setContextClassLoader(loader);
+        if (previous != null) previous.close();
+    }
+
 }
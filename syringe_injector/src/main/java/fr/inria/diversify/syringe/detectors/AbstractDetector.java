@@ -11,8 +11,9 @@ import spoon.reflect.code.CtStatement;
 import spoon.reflect.declaration.CtElement;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.List;
 
 /**
  * Created by marodrig on 01/11/2015.
@@ -25,10 +26,17 @@ public abstract class AbstractDetector<E extends CtElement> extends AbstractProc
      */
     protected int elementsDetected = 0;
 
+    private static final DetectionListener[] NO_LISTENERS = new DetectionListener[0];
+
     /**
-     * Injectors listening to an event. Ordered by event.
+     * Events supported by this detector. The index of an event is its ordinal
      */
-    private HashMap<String, Collection<DetectionListener>> injectors;
+    private String[] events;
+
+    /**
+     * Injectors listening to an event. Indexed by the ordinal of the event.
+     */
+    private DetectionListener[][] injectors;
 
     /**
      * In order to uniquely identify an element is necessary to provide a signature. Default spoon signatures
@@ -57,15 +65,38 @@ public abstract class AbstractDetector<E extends CtElement> extends AbstractProc
 
     /**
      * Indicates which events are supported by this detector
-     * @return A collection of events supported by this detector
+     * @return A collection of events supported by this detector. The order of the events gives their ordinals
      */
     public abstract Collection<String> eventsSupported();
 
+    /**
+     * Ordinal of an event, this is, its index in eventsSupported(). Subclasses dispatch by ordinal to avoid looking up
+     * the event by name for each element.
+     *
+     * @param eventName Name of the event
+     * @return The ordinal of the event or -1 if the event is not supported
+     */
+    public int eventOrdinal(String eventName) {
+        if (events == null) {
+            Collection<String> supported = eventsSupported();
+            events = supported.toArray(new String[supported.size()]);
+            injectors = new DetectionListener[events.length][];
+            Arrays.fill(injectors, NO_LISTENERS);
+        }
+        for (int i = 0; i < events.length; i++) if (events[i].equals(eventName)) return i;
+        return -1;
+    }
+
     /**
      * Signature generator for the elements detected using this detector
      */
     SignatureGenerator signature = new DefaultSignature();
 
+    /**
+     * Filter of the elements to detect, null to detect them all
+     */
+    private ElementFilter filter;
+
     /**
      * Takes an event an puts the element's signature on ot
      * @param event Event to put the element's signature on
@@ -87,10 +118,11 @@ public abstract class AbstractDetector<E extends CtElement> extends AbstractProc
      * @throws RuntimeException when the eventName is not supported by the detector
      */
     public void addListener(String eventName, DetectionListener eventListener) {
-        if ( eventsSupported().contains(eventName) ) {
-            if (injectors == null) injectors = new HashMap<>();
-            if (!injectors.containsKey(eventName)) injectors.put(eventName, new ArrayList<DetectionListener>());
-            injectors.get(eventName).add(eventListener);
+        int event = eventOrdinal(eventName);
+        if ( event >= 0 ) {
+            DetectionListener[] listeners = Arrays.copyOf(injectors[event], injectors[event].length + 1);
+            listeners[listeners.length - 1] = eventListener;
+            injectors[event] = listeners;
         } else {
             throw new RuntimeException("Event not supported. Make sure your listerners are listening to the right event");
         }
@@ -103,21 +135,42 @@ public abstract class AbstractDetector<E extends CtElement> extends AbstractProc
      */
     public void removeListener(DetectionListener eventListener) {
         if (injectors == null) return;
-        for (Collection<DetectionListener> c : injectors.values()) {
-            if (c.contains(eventListener)) c.remove(eventListener);
+        for (int i = 0; i < injectors.length; i++) {
+            List<DetectionListener> listeners = new ArrayList<>(Arrays.asList(injectors[i]));
+            if (listeners.remove(eventListener))
+                injectors[i] = listeners.toArray(new DetectionListener[listeners.size()]);
         }
     }
 
     @Override
     public int listenerCount(String eventName) {
-        return injectors.containsKey(eventName) ? injectors.get(eventName).size() : 0;
+        int event = eventOrdinal(eventName);
+        return event >= 0 ? injectors[event].length : 0;
+    }
+
+    /**
+     * Number of listeners listening to an event
+     * @param event Ordinal of the event
+     */
+    protected int listenerCount(int event) {
+        return injectors == null ? 0 : injectors[event].length;
     }
 
     @Override
     public void notify(String eventName, DetectionEvent event) {
+        int ordinal = eventOrdinal(eventName);
+        if (ordinal >= 0) notify(ordinal, event);
+    }
+
+    /**
+     * Notify the injectors listening to an event of a detection
+     * @param event Ordinal of the event
+     * @param data MetaData of the detection
+     */
+    protected void notify(int event, DetectionEvent data) {
         if (injectors == null) return;
-        for (DetectionListener eventListener : injectors.get(eventName)) {
-            eventListener.listen(event);
+        for (DetectionListener eventListener : injectors[event]) {
+            eventListener.listen(data);
         }
     }
 
@@ -132,10 +185,21 @@ public abstract class AbstractDetector<E extends CtElement> extends AbstractProc
      * @return the number of listeners notified
      */
     protected int notifyStatementDetection(CtStatement statement, String eventName) {
-        int c = listenerCount(eventName);
+        int event = eventOrdinal(eventName);
+        return event >= 0 ? notifyStatementDetection(statement, event) : 0;
+    }
+
+    /**
+     * Performs the detection of the whole statement. Nothing is built if no one listens to the event.
+     * @param statement
+     * @param event Ordinal of the event
+     * @return the number of listeners notified
+     */
+    protected int notifyStatementDetection(CtStatement statement, int event) {
+        int c = listenerCount(event);
         if ( c > 0) {
-            DetectionEvent event = putSignatureIntoEvent(new StatementDetectionEvent(statement), statement);
-            notify(eventName, event);
+            DetectionEvent data = putSignatureIntoEvent(new StatementDetectionEvent(statement), statement);
+            notify(event, data);
             elementsDetected++;
         }
         return c;
@@ -163,6 +227,26 @@ public abstract class AbstractDetector<E extends CtElement> extends AbstractProc
         return signature;
     }
 
+    @Override
+    public void setFilter(ElementFilter filter) {
+        this.filter = filter;
+    }
+
+    @Override
+    public ElementFilter getFilter() {
+        return filter;
+    }
+
+    @Override
+    public boolean accepts(CtElement element) {
+        return filter == null || filter.accept(element);
+    }
+
+    @Override
+    public String getSettings() {
+        return "";
+    }
+
     /**
      * Number of elements detected
      * @return
@@ -16,6 +16,9 @@ public class AssertDetector extends AbstractDetector<CtInvocation<?>> {
 
     public static String ASSERT_DETECTED = "@ASSERT_DETECTED@";
 
+    //Ordinal of the event
+    private static final int DETECTED = 0;
+
     @Override
     public boolean isToBeProcessed(CtInvocation<?> candidate) {
         try {
@@ -26,9 +29,10 @@ public class AssertDetector extends AbstractDetector<CtInvocation<?>> {
     }
 
     public void process(CtInvocation<?> invocation) {
-        DetectionEvent event = putSignatureIntoEvent(new StatementDetectionEvent(invocation), invocation);
-        notify(ASSERT_DETECTED, event);
         elementsDetected++;
+        if (listenerCount(DETECTED) == 0) return;
+        DetectionEvent event = putSignatureIntoEvent(new StatementDetectionEvent(invocation), invocation);
+        notify(DETECTED, event);
     }
 
     @Override
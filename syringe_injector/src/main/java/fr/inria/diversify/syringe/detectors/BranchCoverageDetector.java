@@ -0,0 +1,89 @@
+package fr.inria.diversify.syringe.detectors;
+
+import fr.inria.diversify.syringe.IdMap;
+import fr.inria.diversify.syringe.events.StatementDetectionEvent;
+import spoon.reflect.code.CtBlock;
+import spoon.reflect.declaration.CtExecutable;
+import spoon.reflect.declaration.CtType;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Detects the minimal set of probes needed to count every branch of a method.
+ * <p>
+ * Instead of probing every branch body like the if, case and loop detectors, builds the control flow graph of each
+ * method and only notifies the edges outside its spanning tree (see {@link ControlFlowGraph}). The counts of the other
+ * edges are derived afterwards from the probe counts by the reader (BranchCoverage).
+ * <p>
+ * Each probe is registered in the ID map, its id is given to the snippets as the "id" parameter. The snippets must be
+ * injected before the detected statement. The graph of each method is registered in the ID map too, as:
+ * <pre>
+ * {@literal @}CFG@type#method:line|nodes|tree|0&gt;2,1&gt;0#15,...
+ * </pre>
+ * where each edge is "source>target", followed by "#id" for a probed edge or "?" for an edge that cannot be probed.
+ * The mode is "direct" instead of "tree" when the method handles exceptions: no count can be derived then.
+ */
+public class BranchCoverageDetector extends AbstractDetector<CtExecutable> {
+
+    public static String BRANCH_PROBE = "@Branch.Probe@";
+
+    public static final String GRAPH_PREFIX = "@CFG@";
+
+    public static final String PROBE_PREFIX = "@Probe@";
+
+    //Ordinal of the event
+    private static final int PROBE = 0;
+
+    @Override
+    public void process(CtExecutable element) {
+        if (listenerCount(PROBE) == 0 || element.getPosition() == null) return;
+        CtBlock<?> body = element.getBody();
+        if (body == null) return;
+        ControlFlowGraph graph = ControlFlowGraph.build(body);
+        if (graph == null) return;
+
+        IdMap ids = getIdMap();
+        if (ids == null) {
+            ids = new IdMap();
+            setIdMap(ids);
+        }
+        String method = methodKey(element);
+        StringBuilder key = new StringBuilder(GRAPH_PREFIX).append(method).append('|')
+                .append(graph.getNodeCount()).append('|').append(graph.isExceptional() ? "direct" : "tree").append('|');
+        for (ControlFlowGraph.Edge e : graph.getEdges()) {
+            if (e.getIndex() > 0) key.append(',');
+            key.append(e.getSource()).append('>').append(e.getTarget());
+            if (!e.isChord()) continue;
+            if (e.getHost() == null) {
+                key.append('?');
+                continue;
+            }
+            String probe = PROBE_PREFIX + method + "|" + e.getIndex();
+            ids.addToMap(probe);
+            int id = ids.get(probe);
+            key.append('#').append(id);
+
+            StatementDetectionEvent event = new StatementDetectionEvent(e.getHost());
+            event.setSignature(probe);
+            event.setParameter("id", id);
+            elementsDetected++;
+            notify(PROBE, event);
+        }
+        ids.addToMap(key.toString());
+    }
+
+    /**
+     * Key of a method in the ID map. Keys cannot contain spaces.
+     */
+    private String methodKey(CtExecutable<?> element) {
+        CtType<?> type = element.getParent(CtType.class);
+        String typeName = type == null ? "" : type.getQualifiedName();
+        return (typeName + "#" + element.getSimpleName() + ":" + element.getPosition().getLine()).replace(' ', '_');
+    }
+
+    @Override
+    public Collection<String> eventsSupported() {
+        return Arrays.asList(BRANCH_PROBE);
+    }
+}
@@ -19,6 +19,9 @@ public class BuiltInAssertDetector extends AbstractDetector<CtAssert<?>> {
 
     public static String ASSERT_DETECTED = "@Built.In.Assert.End@";
 
+    //Ordinal of the event
+    private static final int DETECTED = 0;
+
     @Override
     public boolean isToBeProcessed(CtAssert<?> candidate) {
         return true;
@@ -26,9 +29,10 @@ public class BuiltInAssertDetector extends AbstractDetector<CtAssert<?>> {
 
     @Override
     public void process(CtAssert ctAssert) {
-        DetectionEvent event = putSignatureIntoEvent(new StatementDetectionEvent(ctAssert), ctAssert);
-        notify(ASSERT_DETECTED, event);
         elementsDetected++;
+        if (listenerCount(DETECTED) == 0) return;
+        DetectionEvent event = putSignatureIntoEvent(new StatementDetectionEvent(ctAssert), ctAssert);
+        notify(DETECTED, event);
     }
 
     @Override
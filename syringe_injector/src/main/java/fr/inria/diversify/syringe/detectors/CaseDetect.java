@@ -17,8 +17,15 @@ public class CaseDetect extends AbstractDetector<CtCase> {
 
     public static String CASE_DETECTED = "@Case.Detected@";
 
+    //Ordinal of the event
+    private static final int DETECTED = 0;
+
     @Override
     public void process(CtCase element) {
+        if (listenerCount(DETECTED) == 0) {
+            elementsDetected++;
+            return;
+        }
         BlockEvent event = new BlockEvent();
         if ( element.getStatements().size() > 0 ) {
             event.setFirstStatement(element.getStatements().get(0));
@@ -28,7 +35,7 @@ public class CaseDetect extends AbstractDetector<CtCase> {
         event.setDetected(element);
         putSignatureIntoEvent(event, element);
         elementsDetected++;
-        notify(CASE_DETECTED, event);
+        notify(DETECTED, event);
     }
 
     @Override
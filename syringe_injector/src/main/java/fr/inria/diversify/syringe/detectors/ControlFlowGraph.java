@@ -0,0 +1,375 @@
+package fr.inria.diversify.syringe.detectors;
+
+import spoon.reflect.code.*;
+
+import java.util.*;
+
+/**
+ * Control flow graph of the body of a method, built from its statements, with the spanning tree used to place the
+ * minimal set of coverage probes (Ball & Larus, "Optimally profiling and tracing programs").
+ * <p>
+ * Nodes are the points where the flow splits or joins. Each edge may have a host: the statement before which a probe
+ * counts exactly the executions of the edge, that is, the first statement of a branch body or the jump statement of
+ * a break, continue, return or throw. Edges without a host (fall through to a join, loop exits...) are kept in the
+ * spanning tree, hosted edges outside the tree are the chords to probe. A virtual edge from EXIT to ENTRY, hosted
+ * before the first statement of the method, closes the graph so the flow is conserved at every node and the counts of
+ * the tree edges can be derived from those of the chords.
+ * <p>
+ * Exceptions thrown by invocations are not modeled: the counts derived for the executions leaving a method through
+ * an exception are approximate. Methods handling exceptions (try with catch or finally blocks) are flagged as
+ * exceptional: every hosted edge is probed and nothing is derived.
+ * <p>
+ * Branches and loops with an empty body have no statement to host a probe, their flow is merged with the other side.
+ */
+public class ControlFlowGraph {
+
+    public static final int ENTRY = 0;
+
+    public static final int EXIT = 1;
+
+    //Weight of the edges in a loop, per nesting level. Heavier edges are kept in the tree, so probes go to cold edges
+    private static final double LOOP_WEIGHT = 10;
+
+    /**
+     * An edge of the graph
+     */
+    public static class Edge {
+        private final int index;
+        private final int source;
+        private final int target;
+        private final CtStatement host;
+        private final double weight;
+        private boolean chord;
+
+        private Edge(int index, int source, int target, CtStatement host, double weight) {
+            this.index = index;
+            this.source = source;
+            this.target = target;
+            this.host = host;
+            this.weight = weight;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public int getSource() {
+            return source;
+        }
+
+        public int getTarget() {
+            return target;
+        }
+
+        /**
+         * Statement before which a probe counts the edge, null if none does
+         */
+        public CtStatement getHost() {
+            return host;
+        }
+
+        /**
+         * Indicates that the edge is not in the spanning tree and must be probed
+         */
+        public boolean isChord() {
+            return chord;
+        }
+    }
+
+    /**
+     * Statement a break or a continue can jump out of
+     */
+    private static class Target {
+        private final String label;
+        private final int breakNode;
+        //-1 if the statement is not a loop
+        private final int continueNode;
+        //Loops and switches are the targets of unlabeled breaks
+        private final boolean breakable;
+
+        private Target(String label, int breakNode, int continueNode, boolean breakable) {
+            this.label = label;
+            this.breakNode = breakNode;
+            this.continueNode = continueNode;
+            this.breakable = breakable;
+        }
+    }
+
+    private final List<Edge> edges = new ArrayList<>();
+
+    private final Deque<Target> targets = new ArrayDeque<>();
+
+    private int nodes = 2;
+
+    private int loopDepth = 0;
+
+    private boolean exceptional = false;
+
+    private ControlFlowGraph() {
+    }
+
+    /**
+     * Builds the graph of a method body and its spanning tree
+     *
+     * @return The graph, or null if the body has no statement to probe
+     */
+    public static ControlFlowGraph build(CtBlock<?> body) {
+        List<CtStatement> statements = body.getStatements();
+        //No probe can go before the call to this() or super() of a constructor
+        int first = 0;
+        if (!statements.isEmpty() && isConstructorCall(statements.get(0))) first = 1;
+        if (first >= statements.size()) return null;
+
+        ControlFlowGraph g = new ControlFlowGraph();
+        int start = g.node();
+        g.edge(EXIT, ENTRY, statements.get(first));
+        g.edge(ENTRY, start, null);
+        int end = g.block(statements.subList(first, statements.size()), start);
+        if (end >= 0) g.edge(end, EXIT, null);
+        g.spanningTree();
+        return g;
+    }
+
+    private static boolean isConstructorCall(CtStatement statement) {
+        return statement instanceof CtInvocation &&
+                "<init>".equals(((CtInvocation<?>) statement).getExecutable().getSimpleName());
+    }
+
+    public List<Edge> getEdges() {
+        return Collections.unmodifiableList(edges);
+    }
+
+    public int getNodeCount() {
+        return nodes;
+    }
+
+    /**
+     * Indicates that the method handles exceptions, so every hosted edge is probed and no count is derived
+     */
+    public boolean isExceptional() {
+        return exceptional;
+    }
+
+    private int node() {
+        return nodes++;
+    }
+
+    private void edge(int source, int target, CtStatement host) {
+        double weight = Math.pow(LOOP_WEIGHT, loopDepth);
+        //Jumps out of the normal flow are expected to be taken less often
+        if (host instanceof CtCFlowBreak) weight /= 2;
+        edges.add(new Edge(edges.size(), source, target, host, weight));
+    }
+
+    private boolean reached(int node) {
+        for (Edge e : edges) if (e.target == node) return true;
+        return false;
+    }
+
+    /**
+     * Adds the edges of a statement
+     *
+     * @param s       The statement
+     * @param current Node the statement starts at
+     * @return Node the statement completes normally at, -1 if it never does
+     */
+    private int statement(CtStatement s, int current) {
+        if (current < 0 || s == null) return current;
+        if (s instanceof CtLoop) return loop((CtLoop) s, current);
+        if (s.getLabel() != null) {
+            int exit = node();
+            targets.push(new Target(s.getLabel(), exit, -1, false));
+            int end = unlabeled(s, current);
+            targets.pop();
+            if (end >= 0) edge(end, exit, null);
+            return reached(exit) ? exit : -1;
+        }
+        return unlabeled(s, current);
+    }
+
+    private int unlabeled(CtStatement s, int current) {
+        if (s instanceof CtBlock) return block(((CtBlock<?>) s).getStatements(), current);
+        if (s instanceof CtIf) return ifStatement((CtIf) s, current);
+        if (s instanceof CtSwitch) return switchStatement((CtSwitch<?>) s, current);
+        if (s instanceof CtSynchronized) return statement(((CtSynchronized) s).getBlock(), current);
+        if (s instanceof CtTry) return tryStatement((CtTry) s, current);
+        if (s instanceof CtReturn || s instanceof CtThrow) {
+            edge(current, EXIT, s);
+            return -1;
+        }
+        if (s instanceof CtBreak) {
+            Target t = target(((CtBreak) s).getTargetLabel(), false);
+            if (t == null) return current;
+            edge(current, t.breakNode, s);
+            return -1;
+        }
+        if (s instanceof CtContinue) {
+            Target t = target(((CtContinue) s).getTargetLabel(), true);
+            if (t == null) return current;
+            edge(current, t.continueNode, s);
+            return -1;
+        }
+        return current;
+    }
+
+    private int block(List<CtStatement> statements, int current) {
+        for (CtStatement s : statements) current = statement(s, current);
+        return current;
+    }
+
+    /**
+     * Adds a branch: a node entered through an edge hosted by the first statement of the body
+     *
+     * @return Node the body completes at, or the starting node if the body is empty
+     */
+    private int branch(CtStatement body, int current) {
+        CtStatement first = body instanceof CtBlock ? firstOf(((CtBlock<?>) body).getStatements()) : body;
+        if (first == null) return current;
+        int n = node();
+        edge(current, n, first);
+        return statement(body, n);
+    }
+
+    private static CtStatement firstOf(List<CtStatement> statements) {
+        return statements.isEmpty() ? null : statements.get(0);
+    }
+
+    private int ifStatement(CtIf s, int current) {
+        CtStatement then = s.getThenStatement();
+        CtStatement otherwise = s.getElseStatement();
+        int thenEnd = then == null ? current : branch(then, current);
+        int elseEnd = otherwise == null ? current : branch(otherwise, current);
+        //Both sides empty: nothing to count
+        if (thenEnd == current && elseEnd == current) return current;
+        if (thenEnd < 0 && elseEnd < 0) return -1;
+        int join = node();
+        if (thenEnd >= 0) edge(thenEnd, join, null);
+        if (elseEnd >= 0) edge(elseEnd, join, null);
+        return join;
+    }
+
+    private int loop(CtLoop s, int current) {
+        if (s instanceof CtFor) current = block(((CtFor) s).getForInit(), current);
+        CtStatement body = s.getBody();
+        CtStatement first = body instanceof CtBlock ? firstOf(((CtBlock<?>) body).getStatements()) : body;
+        //Iterations of an empty body cannot be counted
+        if (first == null) return current;
+
+        int exit = node();
+        int cond = node();
+        if (s instanceof CtDo) {
+            //The body is entered both from before the loop and from the condition, a head node joins them
+            int head = node();
+            edge(current, head, null);
+            targets.push(new Target(s.getLabel(), exit, cond, true));
+            loopDepth++;
+            int end = branch(body, head);
+            if (end >= 0) edge(end, cond, null);
+            edge(cond, head, null);
+            loopDepth--;
+        } else {
+            edge(current, cond, null);
+            targets.push(new Target(s.getLabel(), exit, cond, true));
+            loopDepth++;
+            int end = branch(body, cond);
+            if (end >= 0) edge(end, cond, null);
+            loopDepth--;
+        }
+        targets.pop();
+        edge(cond, exit, null);
+        return exit;
+    }
+
+    private int switchStatement(CtSwitch<?> s, int current) {
+        List<? extends CtCase<?>> cases = s.getCases();
+        //Trailing cases without statements go straight out of the switch, as when no case matches
+        int last = cases.size() - 1;
+        while (last >= 0 && cases.get(last).getStatements().isEmpty()) last--;
+        if (last < 0) return current;
+
+        boolean toExit = true;
+        for (int i = 0; i <= last; i++) if (cases.get(i).getCaseExpression() == null) toExit = false;
+
+        int exit = node();
+        targets.push(new Target(null, exit, -1, true));
+        //Cases without statements share the head of the next case
+        int head = -1;
+        int previousEnd = -1;
+        for (int i = 0; i <= last; i++) {
+            if (head < 0) {
+                head = node();
+                edge(current, head, null);
+                if (previousEnd >= 0) edge(previousEnd, head, null);
+            }
+            List<CtStatement> statements = cases.get(i).getStatements();
+            if (statements.isEmpty()) continue;
+            int n = node();
+            edge(head, n, statements.get(0));
+            previousEnd = block(statements, n);
+            head = -1;
+        }
+        targets.pop();
+        if (previousEnd >= 0) edge(previousEnd, exit, null);
+        if (toExit) edge(current, exit, null);
+        return reached(exit) ? exit : -1;
+    }
+
+    private int tryStatement(CtTry s, int current) {
+        if (!s.getCatchers().isEmpty() || s.getFinalizer() != null) exceptional = true;
+        int end = statement(s.getBody(), current);
+        if (s.getCatchers().isEmpty() && s.getFinalizer() == null) return end;
+
+        //Catch blocks are entered from anywhere in the body. Only the edges of their bodies are probed
+        int join = node();
+        if (end >= 0) edge(end, join, null);
+        for (CtCatch c : s.getCatchers()) {
+            int catchEnd = branch(c.getBody(), current);
+            if (catchEnd >= 0) edge(catchEnd, join, null);
+        }
+        return statement(s.getFinalizer(), join);
+    }
+
+    private Target target(String label, boolean isContinue) {
+        for (Target t : targets) {
+            if (isContinue && t.continueNode < 0) continue;
+            if (label == null ? (isContinue || t.breakable) : label.equals(t.label)) return t;
+        }
+        return null;
+    }
+
+    /**
+     * Computes the spanning tree of maximal weight containing all the edges without a host, if possible.
+     * Edges outside the tree are chords.
+     */
+    private void spanningTree() {
+        if (exceptional) {
+            for (Edge e : edges) e.chord = true;
+            return;
+        }
+        List<Edge> sorted = new ArrayList<>(edges);
+        Collections.sort(sorted, new Comparator<Edge>() {
+            @Override
+            public int compare(Edge e1, Edge e2) {
+                if ((e1.host == null) != (e2.host == null)) return e1.host == null ? -1 : 1;
+                int c = Double.compare(e2.weight, e1.weight);
+                return c != 0 ? c : Integer.compare(e1.index, e2.index);
+            }
+        });
+        int[] parent = new int[nodes];
+        for (int i = 0; i < nodes; i++) parent[i] = i;
+        for (Edge e : sorted) {
+            int a = root(parent, e.source);
+            int b = root(parent, e.target);
+            if (a == b) e.chord = true;
+            else parent[a] = b;
+        }
+    }
+
+    private static int root(int[] parent, int n) {
+        while (parent[n] != n) {
+            parent[n] = parent[parent[n]];
+            n = parent[n];
+        }
+        return n;
+    }
+}
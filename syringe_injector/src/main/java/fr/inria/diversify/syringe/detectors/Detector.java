@@ -76,6 +76,24 @@ public interface Detector<E extends CtElement> extends Processor<E> {
      */
     void reset();
 
+    /**
+     * Sets the filter of the elements to detect, null to detect them all
+     */
+    void setFilter(ElementFilter filter);
+
+    ElementFilter getFilter();
+
+    /**
+     * Indicates if the filter of the detector lets an element be detected
+     */
+    boolean accepts(CtElement element);
+
+    /**
+     * Settings of the detector changing what it detects, besides its class, signature and filter. Incremental
+     * instrumentations are invalidated when they change.
+     */
+    String getSettings();
+
         /*
     @Deprecated
     void setInjectors(Collection<BaseInjector> injectors);
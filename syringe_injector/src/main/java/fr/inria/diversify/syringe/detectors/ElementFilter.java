@@ -0,0 +1,19 @@
+package fr.inria.diversify.syringe.detectors;
+
+import spoon.reflect.declaration.CtElement;
+
+/**
+ * Selects the elements a detector detects, on top of the elements the detector is interested in
+ */
+public interface ElementFilter {
+
+    boolean accept(CtElement element);
+
+    /**
+     * Settings of the filter, keyed in the fingerprint of incremental instrumentations. Filters deciding from data
+     * other than the element, such as a profile, must include it.
+     */
+    default String getSettings() {
+        return getClass().getName();
+    }
+}
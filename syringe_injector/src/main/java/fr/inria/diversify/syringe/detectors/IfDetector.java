@@ -20,9 +20,14 @@ public class IfDetector extends AbstractDetector<CtIf> {
     public static String IF_BODY = "@If.Body.Detected@";
     public static String ELSE_BODY = "@Else.Detected@";
 
-    private void notifyBlock(CtStatement st, String eventName) {
+    //Ordinals of the events
+    private static final int DETECTED = 0;
+    private static final int BODY = 1;
+    private static final int ELSE = 2;
 
-        if (listenerCount(eventName) <= 0 || st == null) return;
+    private void notifyBlock(CtStatement st, int ordinal) {
+
+        if (listenerCount(ordinal) <= 0 || st == null) return;
 
         BlockEvent event = new BlockEvent();
         if (st != null) {
@@ -43,14 +48,14 @@ public class IfDetector extends AbstractDetector<CtIf> {
         event.setDetected(st);
         putSignatureIntoEvent(event, st);
         elementsDetected++;
-        notify(eventName, event);
+        notify(ordinal, event);
     }
 
     @Override
     public void process(CtIf element) {
-        notifyStatementDetection(element, IF_DETECTED);
-        notifyBlock(element.getThenStatement(), IF_BODY);
-        notifyBlock(element.getElseStatement(), ELSE_BODY);
+        notifyStatementDetection(element, DETECTED);
+        notifyBlock(element.getThenStatement(), BODY);
+        notifyBlock(element.getElseStatement(), ELSE);
     }
 
     @Override
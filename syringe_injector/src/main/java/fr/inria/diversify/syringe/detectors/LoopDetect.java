@@ -1,13 +1,19 @@
 package fr.inria.diversify.syringe.detectors;
 
 import fr.inria.diversify.syringe.events.BlockEvent;
+import fr.inria.diversify.syringe.events.StatementDetectionEvent;
 import org.apache.log4j.Logger;
 import spoon.reflect.code.CtBlock;
 import spoon.reflect.code.CtLoop;
 import spoon.reflect.code.CtReturn;
+import spoon.reflect.code.CtStatement;
+import spoon.reflect.code.CtTry;
+import spoon.reflect.factory.Factory;
 import spoon.reflect.visitor.filter.TypeFilter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 
 /**
  * Detect the begin of a method
@@ -24,16 +30,39 @@ public class LoopDetect extends AbstractDetector<CtLoop> {
     //Injectos to listen just before the loop
     public static String LOOP_DETECTED = "@Loop.DETECTED@";
 
+    //Injectors to listen once the loop is over, however it exits, with the number of iterations in the "trips" parameter
+    public static String LOOP_TRIPS = "@Loop.TRIPS@";
+
+    //Ordinals of the events
+    private static final int BLOCK = 0;
+    private static final int DETECTED = 1;
+    private static final int TRIPS = 2;
+
+    //Prefix of the local counters of iterations
+    private static final String TRIPS_COUNTER = "__syringeTrips";
+
+    //Number of counters declared, so nested loops have different counters
+    private int counters = 0;
+
+    //Loops to move into their counting block, and those blocks. The statements of the parent of a loop cannot change
+    //while they are scanned, so the loops are moved once the traversal is over
+    private final List<CtLoop> counted = new ArrayList<>();
+    private final List<CtBlock<?>> wrappers = new ArrayList<>();
+
     @Override
     public void process(CtLoop element) {
         try {
-            int statementListeners = notifyStatementDetection(element, LOOP_DETECTED);
-            if (listenerCount(LOOP_BLOCK) > 0) {
+            int statementListeners = notifyStatementDetection(element, DETECTED);
+            if (listenerCount(BLOCK) > 0) {
                 BlockEvent event = new BlockEvent(element, element.getBody());
                 putSignatureIntoEvent(event, element);
-                notify(LOOP_BLOCK, event);
+                notify(BLOCK, event);
                 if ( statementListeners == 0) elementsDetected++;
             }
+            if (listenerCount(TRIPS) > 0) {
+                notify(TRIPS, countTrips(element));
+                if (statementListeners == 0 && listenerCount(BLOCK) == 0) elementsDetected++;
+            }
         } catch (Exception e) {
             logger.warn(e);
             throw e;
@@ -41,8 +70,70 @@ public class LoopDetect extends AbstractDetector<CtLoop> {
     }
 
 
+    /**
+     * Counts the iterations of a loop in a local counter, so its listeners are called only once per execution:
+     * <pre>
+     * {
+     *     long counter = 0;
+     *     try {
+     *         while (...) { counter++; ... }
+     *     } finally {
+     *         //Injected snippets
+     *     }
+     * }
+     * </pre>
+     * The loop is moved into the try when the processing is done.
+     *
+     * @return Event detecting the finally block, with the name of the counter as the "trips" parameter
+     */
+    private StatementDetectionEvent countTrips(CtLoop element) {
+        Factory factory = element.getFactory();
+        String counter = TRIPS_COUNTER + counters++;
+
+        CtStatement body = element.getBody();
+        CtStatement increment = factory.Code().createCodeSnippetStatement(counter + "++");
+        if (body instanceof CtBlock) ((CtBlock<?>) body).insertBegin(increment);
+        else {
+            CtBlock<?> block = factory.Core().createBlock();
+            block.addStatement(increment);
+            if (body != null) block.addStatement(body);
+            element.setBody(block);
+        }
+
+        CtBlock<?> wrapper = factory.Core().createBlock();
+        CtTry tryStatement = factory.Core().createTry();
+        CtBlock<?> tryBody = factory.Core().createBlock();
+        CtBlock<?> finalizer = factory.Core().createBlock();
+        wrapper.addStatement(factory.Code().createCodeSnippetStatement("long " + counter + " = 0"));
+        wrapper.addStatement(tryStatement);
+        tryStatement.setBody(tryBody);
+        tryStatement.setFinalizer(finalizer);
+        //Until then, the snippets of the finally block find their compilation unit through the parent of the loop
+        wrapper.setParent(element.getParent());
+        counted.add(element);
+        wrappers.add(wrapper);
+
+        StatementDetectionEvent event = new StatementDetectionEvent(finalizer);
+        putSignatureIntoEvent(event, element);
+        event.setParameter("trips", counter);
+        return event;
+    }
+
+    @Override
+    public void processingDone() {
+        super.processingDone();
+        for (int i = 0; i < counted.size(); i++) {
+            CtLoop loop = counted.get(i);
+            CtBlock<?> wrapper = wrappers.get(i);
+            loop.replace(wrapper);
+            ((CtTry) wrapper.getLastStatement()).getBody().addStatement(loop);
+        }
+        counted.clear();
+        wrappers.clear();
+    }
+
     @Override
     public Collection<String> eventsSupported() {
-        return Arrays.asList(LOOP_BLOCK, LOOP_DETECTED);
+        return Arrays.asList(LOOP_BLOCK, LOOP_DETECTED, LOOP_TRIPS);
     }
 }
@@ -1,12 +1,19 @@
 package fr.inria.diversify.syringe.detectors;
 
-import fr.inria.diversify.syringe.events.BlockEvent;
 import fr.inria.diversify.syringe.events.StatementDetectionEvent;
+import spoon.reflect.code.CtBlock;
+import spoon.reflect.code.CtInvocation;
 import spoon.reflect.code.CtStatement;
+import spoon.reflect.code.CtTry;
+import spoon.reflect.declaration.CtConstructor;
 import spoon.reflect.declaration.CtExecutable;
+import spoon.reflect.declaration.CtMethod;
+import spoon.reflect.factory.Factory;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 
 /**
  * Detect the first and last statement of a method (including constructors)
@@ -18,19 +25,41 @@ public class MethodDetect extends AbstractDetector<CtExecutable> {
     public static String METHOD_BEGIN = "@Method.Begin@";
     public static String METHOD_END = "@Method.End@";
 
+    //Injectors to listen once the method is over, however it exits, with the variable holding the System.nanoTime()
+    //of its entry in the "start" parameter
+    public static String METHOD_TIMED = "@Method.Timed@";
+
+    //Ordinals of the events
+    protected static final int BEGIN = 0;
+    protected static final int END = 1;
+    protected static final int TIMED = 2;
+
+    //Prefix of the local variables holding the entry time
+    private static final String START_VARIABLE = "__syringeStart";
+
+    //Number of entry times declared, so the variables of nested classes have different names
+    private int starts = 0;
+
     @Override
     public Collection<String> eventsSupported() {
-        return Arrays.asList(METHOD_BEGIN, METHOD_END);
+        return Arrays.asList(METHOD_BEGIN, METHOD_END, METHOD_TIMED);
     }
 
     @Override
     public void process(CtExecutable ex) {
+        if (listenerCount(BEGIN) == 0 && listenerCount(END) == 0 && listenerCount(TIMED) == 0) return;
         try {
-            if (ex.getBody().getStatements().size() > 0) {
-                if (listenerCount(METHOD_BEGIN) > 0)
-                    notifyStatementDetection(ex.getBody().getStatement(0), METHOD_BEGIN);
-                if (listenerCount(METHOD_END) > 0)
-                    notifyStatementDetection(ex.getBody().getLastStatement(), METHOD_END);
+            int detected = elementsDetected;
+            if (ex.getBody() != null && ex.getBody().getStatements().size() > 0) {
+                if (listenerCount(BEGIN) > 0)
+                    notifyStatementDetection(ex.getBody().getStatement(0), BEGIN);
+                if (listenerCount(END) > 0)
+                    notifyStatementDetection(ex.getBody().getLastStatement(), END);
+            }
+            if (listenerCount(TIMED) > 0 && (ex instanceof CtMethod || ex instanceof CtConstructor) &&
+                    ex.getBody() != null) {
+                notify(TIMED, time(ex));
+                if (elementsDetected == detected) elementsDetected++;
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -38,6 +67,42 @@ public class MethodDetect extends AbstractDetector<CtExecutable> {
         }
     }
 
+    /**
+     * Wraps the body of an executable in a try/finally taking the entry time before the try
+     *
+     * @return The event of the finally block
+     */
+    private StatementDetectionEvent time(CtExecutable<?> ex) {
+        Factory factory = ex.getFactory();
+        CtBlock<?> body = ex.getBody();
+        List<CtStatement> statements = new ArrayList<>(body.getStatements());
+        //The call to this() or super() of a constructor must remain its first statement
+        int first = 0;
+        if (ex instanceof CtConstructor && !statements.isEmpty() && isConstructorCall(statements.get(0))) first = 1;
+
+        String start = START_VARIABLE + starts++;
+        CtTry tryStatement = factory.Core().createTry();
+        CtBlock<?> tryBody = factory.Core().createBlock();
+        CtBlock<?> finalizer = factory.Core().createBlock();
+        for (CtStatement st : statements.subList(first, statements.size())) tryBody.addStatement(st);
+        tryStatement.setBody(tryBody);
+        tryStatement.setFinalizer(finalizer);
+
+        body.setStatements(new ArrayList<>(statements.subList(0, first)));
+        body.addStatement(factory.Code().createCodeSnippetStatement("final long " + start + " = System.nanoTime()"));
+        body.addStatement(tryStatement);
+
+        StatementDetectionEvent event = new StatementDetectionEvent(finalizer);
+        putSignatureIntoEvent(event, ex);
+        event.setParameter("start", start);
+        return event;
+    }
+
+    private static boolean isConstructorCall(CtStatement statement) {
+        return statement instanceof CtInvocation &&
+                "<init>".equals(((CtInvocation<?>) statement).getExecutable().getSimpleName());
+    }
+
 
     @Override
     public int getElementsDetectedCount() {
@@ -0,0 +1,164 @@
+package fr.inria.diversify.syringe.detectors;
+
+import fr.inria.diversify.syringe.InstrumentationManifest;
+import fr.inria.diversify.syringe.processor.HitCounter;
+import fr.inria.diversify.syringe.processor.IdEntryFactory;
+import fr.inria.diversify.syringe.processor.LoadingException;
+import fr.inria.diversify.syringe.processor.SyringeDataReader;
+import fr.inria.diversify.syringe.signature.MethodSignature;
+import fr.inria.diversify.syringe.signature.SignatureGenerator;
+import spoon.reflect.declaration.CtElement;
+
+import java.io.FileNotFoundException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Selects the elements to instrument from the profile of a previous run.
+ * <p>
+ * The hits of each signature are read from the logs and the ID file of the previous run. Each element is given the
+ * hits of its signature, as computed by the signature generator of the filter. By default this is the signature of
+ * its method, so the ID file must hold method signatures, as when the previous run was instrumented with a
+ * MethodSignature. Elements whose signature is not in the profile have no hits.
+ * <p>
+ * Example, timing only the ten hottest methods and covering only the methods called less than 100 times:
+ * <pre>
+ * Map&lt;String, Long&gt; hits = ProfileFilter.readHits("id.map", "log", null);
+ * timingDetector.setFilter(ProfileFilter.hottest(hits, 10));
+ * coverageDetector.setFilter(ProfileFilter.calledLessThan(hits, 100));
+ * </pre>
+ */
+public class ProfileFilter implements ElementFilter {
+
+    /**
+     * Decides from the hits of a signature whether to detect it
+     */
+    public interface Policy {
+        boolean accept(String signature, long hits);
+    }
+
+    private final Map<String, Long> hits;
+
+    private final Policy policy;
+
+    //Description of the policy, since policies are usually anonymous
+    private final String description;
+
+    private SignatureGenerator signature = new MethodSignature();
+
+    //Decision for each signature, since all the elements of a method share it. Workers may share the filter
+    private final Map<String, Boolean> decisions = new ConcurrentHashMap<>();
+
+    public ProfileFilter(Map<String, Long> hits, Policy policy) {
+        this(hits, policy, policy.getClass().getName());
+    }
+
+    private ProfileFilter(Map<String, Long> hits, Policy policy, String description) {
+        this.hits = hits;
+        this.policy = policy;
+        this.description = description;
+    }
+
+    /**
+     * Reads the hits of each signature of a previous run
+     *
+     * @param idFileName   ID file of the run
+     * @param logDirectory Directory of the logs of the run
+     * @param type         Type of the entries to count, null to count all of them
+     */
+    public static Map<String, Long> readHits(String idFileName, String logDirectory, String type)
+            throws FileNotFoundException, LoadingException {
+        HitCounter counter = new HitCounter(type);
+        new SyringeDataReader(new IdEntryFactory(), counter).read(idFileName, logDirectory);
+        return counter.getSignatureHits();
+    }
+
+    /**
+     * Reads the hits of each signature of a previous run counting its hits in a static array (see CounterInjector)
+     *
+     * @param idFileName       ID file of the run
+     * @param countersFileName Counters file dumped by the run
+     */
+    public static Map<String, Long> readCounters(String idFileName, String countersFileName) throws LoadingException {
+        return HitCounter.readCounters(idFileName, countersFileName).getSignatureHits();
+    }
+
+    /**
+     * Detects the elements whose signature was hit less than a number of times
+     */
+    public static ProfileFilter calledLessThan(Map<String, Long> hits, final long calls) {
+        return new ProfileFilter(hits, new Policy() {
+            @Override
+            public boolean accept(String signature, long h) {
+                return h < calls;
+            }
+        }, "calledLessThan:" + calls);
+    }
+
+    /**
+     * Detects the elements of the k most hit signatures
+     */
+    public static ProfileFilter hottest(Map<String, Long> hits, int k) {
+        List<Map.Entry<String, Long>> sorted = new ArrayList<>(hits.entrySet());
+        Collections.sort(sorted, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> o1, Map.Entry<String, Long> o2) {
+                int c = o2.getValue().compareTo(o1.getValue());
+                return c != 0 ? c : o1.getKey().compareTo(o2.getKey());
+            }
+        });
+        final HashSet<String> hot = new HashSet<>();
+        for (int i = 0; i < Math.min(k, sorted.size()); i++) hot.add(sorted.get(i).getKey());
+        return new ProfileFilter(hits, new Policy() {
+            @Override
+            public boolean accept(String signature, long h) {
+                return hot.contains(signature);
+            }
+        }, "hottest:" + k);
+    }
+
+    public SignatureGenerator getSignature() {
+        return signature;
+    }
+
+    /**
+     * Sets the signature generator giving the signature of the elements in the profile
+     */
+    public void setSignature(SignatureGenerator signature) {
+        this.signature = signature;
+        decisions.clear();
+    }
+
+    /**
+     * Hits of a signature in the profile, 0 if it is not in the profile
+     */
+    public long getHits(String signature) {
+        Long h = hits.get(signature);
+        return h == null ? 0 : h;
+    }
+
+    /**
+     * The policy, the signature generator and the profile
+     */
+    @Override
+    public String getSettings() {
+        StringBuilder profile = new StringBuilder();
+        for (Map.Entry<String, Long> e : new TreeMap<>(hits).entrySet())
+            profile.append(e.getKey()).append('=').append(e.getValue()).append('\n');
+        return getClass().getName() + ":" + description + ":" + signature.getClass().getName() + ":" +
+                InstrumentationManifest.hash(profile.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public boolean accept(CtElement element) {
+        if (element.getPosition() == null) return false;
+        String s = signature.getSignature(element);
+        Boolean result = decisions.get(s);
+        if (result == null) {
+            result = policy.accept(s, getHits(s));
+            decisions.put(s, result);
+        }
+        return result;
+    }
+}
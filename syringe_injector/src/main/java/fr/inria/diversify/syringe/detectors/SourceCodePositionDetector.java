@@ -1,12 +1,17 @@
 package fr.inria.diversify.syringe.detectors;
 
 import fr.inria.diversify.syringe.CodeFragmentEqualPrinter;
+import fr.inria.diversify.syringe.InstrumentationManifest;
+import fr.inria.diversify.syringe.TransplantPointIndex;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import spoon.reflect.code.*;
+import spoon.reflect.cu.CompilationUnit;
+import spoon.reflect.cu.SourcePosition;
 import spoon.reflect.declaration.CtElement;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 /**
@@ -20,6 +25,9 @@ public class SourceCodePositionDetector extends AbstractDetector<CtStatement> {
 
     public static String BEGIN_KEY = "@TP.Begin@";
 
+    //Minimal similarity of a statement with a transplant point lying within the line tolerance
+    private static final double SIMILARITY = 0.95;
+
     private final JSONArray persistence;
 
     //Defines how many lines of tolerance
@@ -32,6 +40,22 @@ public class SourceCodePositionDetector extends AbstractDetector<CtStatement> {
     //or if the signature has minimum changes like \n for \r\rn
     private HashMap<String, HashSet<String>> exactLocationInfo;
 
+    //The same signatures, indexed by class and then by line, so statements can be rejected before printing them
+    private HashMap<String, HashMap<Integer, HashSet<String>>> lineTables;
+
+    //Transplant points for the fuzzy matching, when there is a line tolerance
+    private TransplantPointIndex index;
+
+    //Main type of each compilation unit already seen. Units without main type map to an empty string
+    private IdentityHashMap<CompilationUnit, String> unitClasses = new IdentityHashMap<>();
+
+    //Line table of each compilation unit already seen. Units without transplant points map to an empty table
+    private IdentityHashMap<CompilationUnit, HashMap<Integer, HashSet<String>>> unitLineTables =
+            new IdentityHashMap<>();
+
+    //Printed form of the candidate statements
+    private IdentityHashMap<CtElement, String> printed = new IdentityHashMap<>();
+
     public SourceCodePositionDetector(JSONArray persistence, int lineTolerance) {
         this.persistence = persistence;
         statements = new ArrayList<>();
@@ -58,37 +82,93 @@ public class SourceCodePositionDetector extends AbstractDetector<CtStatement> {
 
 
 
-    public boolean isTP(CtStatement element) {
-        try {
-            CodeFragmentEqualPrinter pp = new CodeFragmentEqualPrinter(this.getEnvironment());
+    /**
+     * Signatures indexed by class and line
+     */
+    protected HashMap<String, HashMap<Integer, HashSet<String>>> getLineTables() throws JSONException {
+        if (lineTables == null) {
+            lineTables = new HashMap<>();
+            for (Map.Entry<String, HashSet<String>> e : getExactLocationInfo().entrySet()) {
+                int colon = e.getKey().lastIndexOf(':');
+                if (colon < 0) continue;
+                String className = e.getKey().substring(0, colon);
+                int line;
+                try {
+                    line = Integer.parseInt(e.getKey().substring(colon + 1).trim());
+                } catch (NumberFormatException ex) {
+                    continue;
+                }
+                if (!lineTables.containsKey(className)) lineTables.put(className, new HashMap<Integer, HashSet<String>>());
+                lineTables.get(className).put(line, e.getValue());
+            }
+        }
+        return lineTables;
+    }
 
-            element.accept(pp);
-            String equalString = pp.toString();
+    /**
+     * Index of the transplant points for the fuzzy matching
+     */
+    protected TransplantPointIndex getIndex() throws JSONException {
+        if (index == null) {
+            index = new TransplantPointIndex(lineTolerance, SIMILARITY);
+            for (Map.Entry<String, HashMap<Integer, HashSet<String>>> c : getLineTables().entrySet())
+                for (Map.Entry<Integer, HashSet<String>> l : c.getValue().entrySet())
+                    for (String source : l.getValue()) index.add(c.getKey(), l.getKey(), source);
+        }
+        return index;
+    }
 
-            String pos = element.getPosition().getCompilationUnit().getMainType().getQualifiedName()
-                    + ":" + element.getPosition().getLine();
-            return getExactLocationInfo().containsKey(pos) && getExactLocationInfo().get(pos).contains(equalString);
-            /*
-            int p = Integer.MAX_VALUE;
+    /**
+     * Qualified name of the main type of a compilation unit, computed once per unit
+     */
+    private String getUnitClass(CompilationUnit cu) {
+        String result = unitClasses.get(cu);
+        if (result == null) {
+            result = cu.getMainType() == null ? "" : cu.getMainType().getQualifiedName();
+            unitClasses.put(cu, result);
+        }
+        return result;
+    }
 
-            for (int i = 0; i < persistence.length(); i++) {
-                JSONObject o = persistence.getJSONObject(i);
-                String[] pPos = o.getString("position").split(":");
-                if (decType.equals(pPos[0])) {
-                    int pLine = Integer.parseInt(pPos[1]);
-                    String srcSig = o.has("sourceCode") ? o.getString("sourceCode") : o.getString("sourcecode");
-                    if ( StringSimilarity.CompareStrings(srcSig, equalString) >= 0.95 ) {
-                        if (pLine == elemPos) return true;
-                        else {
-                            int k = Math.abs(pLine - elemPos);
-                            if ( p > k ) p = k;
-                        }
-                    }
-                }
-            }
+    /**
+     * Line table of the compilation unit, computed once per unit
+     */
+    private HashMap<Integer, HashSet<String>> getLineTable(CompilationUnit cu) throws JSONException {
+        HashMap<Integer, HashSet<String>> result = unitLineTables.get(cu);
+        if (result == null) {
+            result = getLineTables().get(getUnitClass(cu));
+            if (result == null) result = new HashMap<>();
+            unitLineTables.put(cu, result);
+        }
+        return result;
+    }
 
-            if (p < lineTolerance) return true;
-            */
+    /**
+     * Printed form of a statement, computed once per statement
+     */
+    protected String print(CtStatement element) {
+        String result = printed.get(element);
+        if (result == null) {
+            CodeFragmentEqualPrinter pp = new CodeFragmentEqualPrinter(this.getEnvironment());
+            element.accept(pp);
+            result = pp.toString();
+            printed.put(element, result);
+        }
+        return result;
+    }
+
+    public boolean isTP(CtStatement element) {
+        try {
+            SourcePosition position = element.getPosition();
+            if (position == null || position.getCompilationUnit() == null) return false;
+            CompilationUnit cu = position.getCompilationUnit();
+            int line = position.getLine();
+            HashSet<String> signatures = getLineTable(cu).get(line);
+            if (signatures != null && signatures.contains(print(element))) return true;
+
+            //Fuzzy matching: a similar transplant point shifted less than lineTolerance lines
+            if (lineTolerance <= 0 || !getIndex().hasCandidates(getUnitClass(cu), line)) return false;
+            return getIndex().match(getUnitClass(cu), line, print(element)) != null;
         } catch (JSONException e) {
             throw new RuntimeException(e);
         }
@@ -150,6 +230,23 @@ public class SourceCodePositionDetector extends AbstractDetector<CtStatement> {
         }*/
     }
 
+    @Override
+    public void processingDone() {
+        super.processingDone();
+        unitClasses.clear();
+        unitLineTables.clear();
+        printed.clear();
+    }
+
+    /**
+     * The transplant points and the line tolerance
+     */
+    @Override
+    public String getSettings() {
+        return "lineTolerance:" + lineTolerance + ":" +
+                (persistence == null ? "" : InstrumentationManifest.hash(persistence.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
     @Override
     public Collection<String> eventsSupported() {
         return Arrays.asList(BEGIN_KEY);
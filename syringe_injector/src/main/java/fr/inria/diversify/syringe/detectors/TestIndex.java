@@ -0,0 +1,125 @@
+package fr.inria.diversify.syringe.detectors;
+
+import spoon.reflect.declaration.CtAnnotation;
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtElement;
+import spoon.reflect.declaration.CtExecutable;
+import spoon.reflect.declaration.CtType;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.reference.CtTypeReference;
+
+import java.util.*;
+
+/**
+ * Index of a model answering the questions of the test detectors in constant time: the resolved annotation types of
+ * each executable and the resolved ancestors of each type.
+ * <p>
+ * Built by a detector for the model it processes and dropped once the processing is done, since its elements keep
+ * the whole model alive. Types are indexed by qualified name, so the ancestors of a type shared by many classes are
+ * resolved once. Executables out of the index, such as the methods of anonymous
+ * classes, are resolved when asked for.
+ */
+public class TestIndex {
+
+    private final Factory factory;
+
+    //Resolved annotation types of the executables having some
+    private final IdentityHashMap<CtExecutable<?>, Set<String>> annotations = new IdentityHashMap<>();
+
+    //Ancestors of each type, itself included
+    private final HashMap<String, Set<String>> ancestors = new HashMap<>();
+
+    //Types whose hierarchy could not be entirely resolved
+    private final HashSet<String> unresolved = new HashSet<>();
+
+    public TestIndex(Factory factory) {
+        this.factory = factory;
+        for (CtType<?> type : factory.Type().getAll()) index(type);
+    }
+
+    /**
+     * The index of the model of an element, reusing a previous index if it was built for the same model
+     *
+     * @param previous Previous index, null if there is none
+     */
+    public static TestIndex of(TestIndex previous, CtElement element) {
+        Factory factory = element.getFactory();
+        return previous != null && previous.factory == factory ? previous : new TestIndex(factory);
+    }
+
+    private void index(CtType<?> type) {
+        ancestors(type.getReference());
+        for (CtExecutable<?> e : type.getMethods()) indexAnnotations(e);
+        if (type instanceof CtClass) for (CtExecutable<?> e : ((CtClass<?>) type).getConstructors()) indexAnnotations(e);
+        for (CtType<?> nested : type.getNestedTypes()) index(nested);
+    }
+
+    private void indexAnnotations(CtExecutable<?> e) {
+        if (!e.getAnnotations().isEmpty()) annotations.put(e, resolve(e));
+    }
+
+    private static Set<String> resolve(CtExecutable<?> e) {
+        HashSet<String> result = new HashSet<>();
+        for (CtAnnotation<?> a : e.getAnnotations()) {
+            CtTypeReference<?> t = a.getAnnotationType();
+            if (t != null) result.add(t.getQualifiedName());
+        }
+        return result;
+    }
+
+    /**
+     * Qualified names of the annotation types of an executable
+     */
+    public Set<String> getAnnotations(CtExecutable<?> executable) {
+        Set<String> result = annotations.get(executable);
+        if (result != null) return result;
+        return executable.getAnnotations().isEmpty() ? Collections.<String>emptySet() : resolve(executable);
+    }
+
+    /**
+     * Indicates if an executable has an annotation among some qualified names
+     */
+    public boolean isAnnotated(CtExecutable<?> executable, Set<String> annotationTypes) {
+        for (String a : getAnnotations(executable)) if (annotationTypes.contains(a)) return true;
+        return false;
+    }
+
+    /**
+     * Qualified names of the superclasses and interfaces of a type, the type included
+     */
+    public Set<String> getAncestors(CtTypeReference<?> type) {
+        return ancestors(type);
+    }
+
+    /**
+     * Indicates if some ancestor of a type could not be resolved, so its ancestors are only partially known
+     */
+    public boolean isUnresolved(CtTypeReference<?> type) {
+        ancestors(type);
+        return unresolved.contains(type.getQualifiedName());
+    }
+
+    private synchronized Set<String> ancestors(CtTypeReference<?> type) {
+        String name = type.getQualifiedName();
+        Set<String> result = ancestors.get(name);
+        if (result != null) return result;
+
+        result = new HashSet<>();
+        result.add(name);
+        //Guards cycles of broken hierarchies
+        ancestors.put(name, result);
+        List<CtTypeReference<?>> parents = new ArrayList<>();
+        try {
+            if (type.getSuperclass() != null) parents.add(type.getSuperclass());
+            parents.addAll(type.getSuperInterfaces());
+        } catch (Exception e) {
+            //Not in the model nor in the classpath
+            unresolved.add(name);
+        }
+        for (CtTypeReference<?> p : parents) {
+            result.addAll(ancestors(p));
+            if (unresolved.contains(p.getQualifiedName())) unresolved.add(name);
+        }
+        return result;
+    }
+}
@@ -1,6 +1,5 @@
 package fr.inria.diversify.syringe.detectors;
 
-import spoon.reflect.declaration.CtAnnotation;
 import spoon.reflect.declaration.CtClass;
 import spoon.reflect.declaration.CtExecutable;
 import spoon.reflect.reference.CtTypeReference;
@@ -12,6 +11,22 @@ import spoon.reflect.reference.CtTypeReference;
  */
 public class TestJunit3Detect extends MethodDetect {
 
+    private static final String TEST_CASE = "junit.framework.TestCase";
+
+    private TestIndex index;
+
+    @Override
+    public void init() {
+        super.init();
+        index = null;
+    }
+
+    @Override
+    public void processingDone() {
+        super.processingDone();
+        index = null;
+    }
+
     @Override
     public boolean isToBeProcessed(CtExecutable candidate) {
         /*
@@ -24,13 +39,12 @@ public class TestJunit3Detect extends MethodDetect {
             return false;
 
         if (candidate.getSimpleName().contains("test")) {
-            CtTypeReference ctClass = candidate.getParent(CtClass.class).getSuperclass();
-            while ( ctClass != null ) {
-                String qn = ctClass.getQualifiedName();
-                if ( qn != null && qn.equals("junit.framework.TestCase") ) return true;
-                else ctClass = ctClass.getSuperclass();
-            }
-            return true;
+            CtClass<?> ctClass = candidate.getParent(CtClass.class);
+            if (ctClass == null) return false;
+            index = TestIndex.of(index, candidate);
+            //A hierarchy that cannot be resolved may still extend TestCase
+            CtTypeReference<?> type = ctClass.getReference();
+            return index.getAncestors(type).contains(TEST_CASE) || index.isUnresolved(type);
         }
 
         return false;
@@ -1,8 +1,10 @@
 package fr.inria.diversify.syringe.detectors;
 
-import spoon.reflect.declaration.CtAnnotation;
 import spoon.reflect.declaration.CtExecutable;
-import spoon.reflect.reference.CtTypeReference;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * Detect the begin of a method
@@ -11,43 +13,34 @@ import spoon.reflect.reference.CtTypeReference;
  */
 public class TestJunit4Detect extends MethodDetect {
 
+    //Annotations of the tests and fixtures. Simple names stand for the annotations not resolved without classpath
+    private static final Set<String> ANNOTATIONS = new HashSet<>(Arrays.asList(
+            "org.junit.Test", "org.junit.Before", "org.junit.After", "org.junit.BeforeClass", "org.junit.AfterClass",
+            "Test", "Before", "After", "BeforeClass", "AfterClass"));
+
+    private TestIndex index;
+
+    @Override
+    public void init() {
+        super.init();
+        index = null;
+    }
+
+    @Override
+    public void processingDone() {
+        super.processingDone();
+        index = null;
+    }
+
     @Override
     public boolean isToBeProcessed(CtExecutable candidate) {
-        /*
-        if(!(isTestClass(candidate.getDeclaringType().getReference())))
-            return false;*/
-        try {
-
-            if (candidate.isImplicit()
-                    || candidate.getBody() == null
-                    || candidate.getBody().getStatements().size() == 0)
-                return false;
-
-            for (CtAnnotation<?> annotation : candidate.getAnnotations()) {
-                String a = annotation.toString();
-                if (a.startsWith("@Test") ||
-                        a.startsWith("@Before") ||
-                        a.startsWith("@After") ||
-                        a.startsWith("@org.junit.Test") ||
-                        a.startsWith("@org.junit.Before") ||
-                        a.startsWith("@org.junit.After"))
-                    return true;
-            }
+        if (candidate.isImplicit()
+                || candidate.getBody() == null
+                || candidate.getBody().getStatements().size() == 0
+                || candidate.getAnnotations().isEmpty())
             return false;
-        } catch ( Exception ex) {
-            ex.printStackTrace();
-            throw ex;
-        }
+
+        index = TestIndex.of(index, candidate);
+        return index.isAnnotated(candidate, ANNOTATIONS);
     }
-    /*
-    protected boolean isTestClass(CtTypeReference<?> type) {
-        if(type.getSimpleName().endsWith("Test") || type.getSimpleName().endsWith("Behaviour")) // Behaviour for jbehave
-            return true;
-        else {
-            try {
-                if (type.getSuperclass() != null) return isTestClass(type.getSuperclass());
-            } catch (Exception e) {}
-        }
-        return false;
-    }*/
 }
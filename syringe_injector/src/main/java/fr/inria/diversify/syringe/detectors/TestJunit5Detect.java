@@ -0,0 +1,49 @@
+package fr.inria.diversify.syringe.detectors;
+
+import spoon.reflect.declaration.CtExecutable;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Detect the first and last statement of JUnit 5 tests (including parameterized tests) and fixtures
+ */
+public class TestJunit5Detect extends MethodDetect {
+
+    //Annotations of the tests and fixtures. Simple names stand for the annotations not resolved without classpath
+    private static final Set<String> ANNOTATIONS = new HashSet<>(Arrays.asList(
+            "org.junit.jupiter.api.Test", "org.junit.jupiter.params.ParameterizedTest",
+            "org.junit.jupiter.api.RepeatedTest", "org.junit.jupiter.api.TestFactory",
+            "org.junit.jupiter.api.TestTemplate",
+            "org.junit.jupiter.api.BeforeEach", "org.junit.jupiter.api.AfterEach",
+            "org.junit.jupiter.api.BeforeAll", "org.junit.jupiter.api.AfterAll",
+            "ParameterizedTest", "RepeatedTest", "TestFactory", "TestTemplate",
+            "BeforeEach", "AfterEach", "BeforeAll", "AfterAll"));
+
+    private TestIndex index;
+
+    @Override
+    public void init() {
+        super.init();
+        index = null;
+    }
+
+    @Override
+    public void processingDone() {
+        super.processingDone();
+        index = null;
+    }
+
+    @Override
+    public boolean isToBeProcessed(CtExecutable candidate) {
+        if (candidate.isImplicit()
+                || candidate.getBody() == null
+                || candidate.getBody().getStatements().size() == 0
+                || candidate.getAnnotations().isEmpty())
+            return false;
+
+        index = TestIndex.of(index, candidate);
+        return index.isAnnotated(candidate, ANNOTATIONS);
+    }
+}
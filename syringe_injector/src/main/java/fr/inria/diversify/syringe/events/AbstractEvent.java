@@ -3,6 +3,8 @@ package fr.inria.diversify.syringe.events;
 import spoon.reflect.code.CtCase;
 import spoon.reflect.declaration.CtElement;
 
+import java.util.HashMap;
+
 /**
  * Created by marodrig on 14/12/2015.
  */
@@ -12,6 +14,9 @@ public abstract class AbstractEvent implements DetectionEvent {
 
     private CtElement element;
 
+    //Values given by the detector to the injected snippets, i.e. the id of a probe
+    private HashMap<String, Object> parameters;
+
     @Override
     public String getSignature() {
         return signature;
@@ -29,4 +34,16 @@ public abstract class AbstractEvent implements DetectionEvent {
     public CtElement getDetected() {
         return element;
     }
+
+    /**
+     * Parameters given by the detector to the injected snippets. Those collected by the injector take precedence.
+     */
+    public HashMap<String, Object> getParameters() {
+        if (parameters == null) parameters = new HashMap<>();
+        return parameters;
+    }
+
+    public void setParameter(String name, Object value) {
+        getParameters().put(name, value);
+    }
 }
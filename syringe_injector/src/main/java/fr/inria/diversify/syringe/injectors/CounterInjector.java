@@ -0,0 +1,115 @@
+package fr.inria.diversify.syringe.injectors;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Counts the hits of the detected elements in a static array instead of calling a logger.
+ * <p>
+ * Each detected element is given a counter in the ID map (see {@link IndexedInjector}) and the injected snippet
+ * increments that counter by constant index, like this:
+ * <p/>
+ * fr.inria.diversify.syringe.runtime.SyringeCounters.HITS[12]++
+ * <p/>
+ * The array lives in the counters class, written along the instrumented sources once the ID map is complete (see
+ * {@link #writeCounters(File, int, boolean)}). It is dumped once, by a shutdown hook, to the file given by the system
+ * property {@link #FILE_PROPERTY}, as "id hits" lines for the counters hit, so the ID file maps them back to their
+ * signatures. Modes:
+ * <ul>
+ * <li>PLAIN: a long[] incremented without synchronization. The cheapest, but hits racing on the same counter may be
+ * lost.</li>
+ * <li>ATOMIC: an AtomicLongArray, exact under contention.</li>
+ * </ul>
+ */
+public class CounterInjector extends IndexedInjector {
+
+    public static final String FILE_PROPERTY = "syringe.counters.file";
+
+    //Not in the log dir with a .log extension, so the log readers skip it
+    public static final String DEFAULT_FILE = "log/syringe.counters";
+
+    public static final String COUNTERS_PACKAGE = Sampling.SAMPLER_PACKAGE;
+
+    public static final String COUNTERS_CLASS = "SyringeCounters";
+
+    public enum Mode {
+        PLAIN, ATOMIC
+    }
+
+    private final Mode mode;
+
+    public CounterInjector() {
+        this(Mode.PLAIN);
+    }
+
+    public CounterInjector(Mode mode) {
+        super("counter");
+        this.mode = mode;
+        String counters = COUNTERS_PACKAGE + "." + COUNTERS_CLASS;
+        setInjectionTemplate(mode == Mode.PLAIN ?
+                counters + ".HITS[%counter%]++" : counters + ".ATOMIC.incrementAndGet(%counter%)");
+        setInjectAt(InjectionPosition.BEFORE);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Writes the counters class
+     *
+     * @param sourceRoot Root of the instrumented sources
+     * @param size       Number of counters, greater than the last index of the ID map
+     * @param atomic     Indicates if some injector counts in ATOMIC mode
+     */
+    public static void writeCounters(File sourceRoot, int size, boolean atomic) throws IOException {
+        File dir = new File(sourceRoot, COUNTERS_PACKAGE.replace('.', File.separatorChar));
+        dir.mkdirs();
+        FileWriter fw = new FileWriter(new File(dir, COUNTERS_CLASS + ".java"));
+        try {
+            fw.write("package " + COUNTERS_PACKAGE + ";\n\n" +
+                    "/**\n * Generated by Syringe. Counts the hits of the probes, indexed by their id in the ID file.\n */\n" +
+                    "public final class " + COUNTERS_CLASS + " {\n\n" +
+                    "    public static final long[] HITS = new long[" + size + "];\n\n" +
+                    "    public static final java.util.concurrent.atomic.AtomicLongArray ATOMIC =\n" +
+                    "            new java.util.concurrent.atomic.AtomicLongArray(" + (atomic ? size : 0) + ");\n\n" +
+                    "    private static boolean dumped = false;\n\n" +
+                    "    static {\n" +
+                    "        Runtime.getRuntime().addShutdownHook(new Thread() {\n" +
+                    "            @Override\n" +
+                    "            public void run() {\n" +
+                    "                dump();\n" +
+                    "            }\n" +
+                    "        });\n" +
+                    "    }\n\n" +
+                    "    private " + COUNTERS_CLASS + "() {\n" +
+                    "    }\n\n" +
+                    "    /**\n     * Writes the counters hit, once\n     */\n" +
+                    "    public static synchronized void dump() {\n" +
+                    "        if (dumped) return;\n" +
+                    "        dumped = true;\n" +
+                    "        java.io.File file = new java.io.File(System.getProperty(\"" + FILE_PROPERTY + "\", \"" +
+                    DEFAULT_FILE + "\"));\n" +
+                    "        if (file.getParentFile() != null) file.getParentFile().mkdirs();\n" +
+                    "        try {\n" +
+                    "            java.io.Writer writer = new java.io.BufferedWriter(new java.io.FileWriter(file));\n" +
+                    "            try {\n" +
+                    "                writer.write(\"#Syringe counters\\n\");\n" +
+                    "                for (int i = 0; i < HITS.length; i++) {\n" +
+                    "                    long hits = HITS[i] + (i < ATOMIC.length() ? ATOMIC.get(i) : 0);\n" +
+                    "                    if (hits != 0) writer.write(i + \" \" + hits + \"\\n\");\n" +
+                    "                }\n" +
+                    "            } finally {\n" +
+                    "                writer.close();\n" +
+                    "            }\n" +
+                    "        } catch (java.io.IOException e) {\n" +
+                    "            System.err.println(\"Unable to write the Syringe counters to \" + file + \": \" + e);\n" +
+                    "        }\n" +
+                    "    }\n" +
+                    "}\n");
+        } finally {
+            fw.close();
+        }
+    }
+}
@@ -4,7 +4,6 @@ import spoon.reflect.declaration.CtCodeSnippet;
 import spoon.support.reflect.code.CtCodeSnippetStatementImpl;
 
 import java.util.HashMap;
-import java.util.Map;
 
 /**
  * A parametrized code snippet.
@@ -19,7 +18,14 @@ public class CtParametrizedSnippetStatement extends CtCodeSnippetStatementImpl {
 
     private HashMap<String, Object> parameters = new HashMap<>();
 
-    private String templateString = "";
+    private SnippetTemplate template = SnippetTemplate.parse("");
+
+    //Batch merging this snippet with its batched neighbours, and its item in the merged snippet
+    private SnippetBatch batch;
+    private String batchItem;
+
+    //Condition of the guard wrapping the snippet, null if it has none
+    private String guard;
 
     /**
      * Returns the value of a given parameter
@@ -28,7 +34,7 @@ public class CtParametrizedSnippetStatement extends CtCodeSnippetStatementImpl {
      * @return
      */
     public Object getParameter(String parameter) {
-        return parameters;
+        return parameters.get(parameter);
     }
 
     /**
@@ -39,14 +45,48 @@ public class CtParametrizedSnippetStatement extends CtCodeSnippetStatementImpl {
      */
     public void setParameter(String parameter, Object value) {
         this.parameters.put(parameter, value);
-        String v = buildValue();
-        super.setValue(v);
+        super.setValue(template.render(parameters));
     }
 
     public void setParameters(HashMap<String, Object> parameters) {
         this.parameters = parameters;
-        String v = buildValue();
-        super.setValue(v);
+        super.setValue(template.render(parameters));
+    }
+
+    /**
+     * Sets an already parsed template and its parameters, rendering the snippet once
+     */
+    public void setTemplate(SnippetTemplate template, HashMap<String, Object> parameters) {
+        this.template = template;
+        this.parameters = parameters;
+        super.setValue(template.render(parameters));
+    }
+
+    public String getGuard() {
+        return guard;
+    }
+
+    public void setGuard(String guard) {
+        this.guard = guard;
+    }
+
+    public SnippetBatch getBatch() {
+        return batch;
+    }
+
+    public String getBatchItem() {
+        return batchItem;
+    }
+
+    /**
+     * Sets the batch merging this snippet with the snippets of the same batch injected next to it
+     *
+     * @param batch Batch of the snippet, null to leave it alone
+     * @param item  Item of the snippet in the merged snippet
+     */
+    public void setBatch(SnippetBatch batch, String item) {
+        this.batch = batch;
+        this.batchItem = item;
     }
 
     /**
@@ -66,24 +106,8 @@ public class CtParametrizedSnippetStatement extends CtCodeSnippetStatementImpl {
      */
     @Override
     public <C extends CtCodeSnippet> C setValue(String value) {
-        templateString = value;
-        String v = buildValue();
-        return super.setValue(v);
-    }
-
-    private String buildValue() {
-        String value = templateString;
-        for (Map.Entry<String, Object> e : parameters.entrySet()) {
-            String p = e.getKey();
-            try {
-                value = value.replaceAll("%" + p + "%", e.getValue().toString());
-            } catch (NullPointerException ex) {
-                throw new RuntimeException("Null value exception when obtaining value of parameter " + p , ex);
-            } catch (Exception ex) {
-                throw new RuntimeException("Unexpected exception when building snippet", ex);
-            }
-        }
-        return value;
+        template = SnippetTemplate.parse(value);
+        return super.setValue(template.render(parameters));
     }
 
     /**
@@ -92,7 +116,7 @@ public class CtParametrizedSnippetStatement extends CtCodeSnippetStatementImpl {
      * @return
      */
     public String getTemplateString() {
-        return templateString;
+        return template.getSource();
     }
 
 
@@ -1,12 +1,14 @@
 package fr.inria.diversify.syringe.injectors;
 
 import fr.inria.diversify.syringe.IdMap;
+import fr.inria.diversify.syringe.events.AbstractEvent;
 import fr.inria.diversify.syringe.events.DetectionEvent;
 import spoon.reflect.code.CtBlock;
 import spoon.reflect.code.CtStatement;
 import spoon.reflect.declaration.CtElement;
 
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Created by marodrig on 15/12/2015.
@@ -24,7 +26,20 @@ public class GenericInjector implements Injector {
     private String injection;
 
     /**
-     * Tells the GenericInjector where to inject
+     * The injected string, parsed once
+     */
+    private SnippetTemplate template = SnippetTemplate.parse("");
+
+    /**
+     * The condition of the guard of the snippets and the injected string wrapped in it, parsed once. Null until a
+     * guarded snippet is built
+     */
+    private SnippetTemplate guard;
+    private SnippetTemplate guarded;
+
+    /**
+     * Tells the GenericInjector where to inject. FIRST and LAST inject inside a detected block, as does any position
+     * when the block is the body of a statement.
      */
     public InjectionPosition injectAt;
 
@@ -33,6 +48,26 @@ public class GenericInjector implements Injector {
      */
     private ParameterCollector parameterCollector;
 
+    /**
+     * Sampling of the executions of the injected snippets, null to run them all
+     */
+    private Sampling sampling;
+
+    /**
+     * Switch turning the injected snippets on or off, null to always run them
+     */
+    private ProbeSwitch probeSwitch;
+
+    /**
+     * Batch merging the snippets injected next to each other, null to leave them alone
+     */
+    private SnippetBatch batch;
+
+    /**
+     * Item of the snippets in their batch
+     */
+    private SnippetTemplate batchItem;
+
     public enum InjectionPosition {
         BEFORE, FIRST, LAST, AFTER
     }
@@ -63,6 +98,43 @@ public class GenericInjector implements Injector {
         this.parameterCollector = parameterCollector;
     }
 
+    public Sampling getSampling() {
+        return sampling;
+    }
+
+    public void setSampling(Sampling sampling) {
+        this.sampling = sampling;
+        guarded = null;
+    }
+
+    public ProbeSwitch getProbeSwitch() {
+        return probeSwitch;
+    }
+
+    public void setProbeSwitch(ProbeSwitch probeSwitch) {
+        this.probeSwitch = probeSwitch;
+        guarded = null;
+    }
+
+    public SnippetBatch getBatch() {
+        return batch;
+    }
+
+    public String getBatchItem() {
+        return batchItem == null ? null : batchItem.getSource();
+    }
+
+    /**
+     * Sets the batch merging the snippets of this injector with those injected next to them
+     *
+     * @param batch Batch of the snippets, null to leave them alone
+     * @param item  Template of the item of each snippet in the batch, rendered with the parameters of the snippet
+     */
+    public void setBatch(SnippetBatch batch, String item) {
+        this.batch = batch;
+        this.batchItem = batch == null ? null : SnippetTemplate.parse(item);
+    }
+
     @Deprecated
     public IdMap getIdMap() {
         return idMap;
@@ -81,6 +153,8 @@ public class GenericInjector implements Injector {
     @Override
     public void setInjectionTemplate(String s) {
         injection = s;
+        template = SnippetTemplate.parse(s == null ? "" : s);
+        guarded = null;
     }
 
     @Override
@@ -88,23 +162,84 @@ public class GenericInjector implements Injector {
         CtElement element = data.getDetected();
         if ( element instanceof CtStatement) {
             CtStatement st = (CtStatement)element;
-            HashMap<String, Object> params;
-            if (parameterCollector != null)
-                params = parameterCollector.collectParameters(element);
-            else params = new HashMap<>();
-
-            CtParametrizedSnippetStatement pst = new CtParametrizedSnippetStatement();
-            pst.setFactory(st.getFactory());
-            pst.setParent(st.getParent());
-            pst.setValue(injection);
-            pst.setParameters(params);
-
-            if ( injectAt == InjectionPosition.BEFORE ) {
-                st.insertBefore(pst);
-            } else /*f ( injectAt == InjectionPosition.AFTER )*/ {
-                st.insertAfter(pst);
+            insert(st, buildStatement(st, collectParameters(data)));
+        } else throw new RuntimeException("Only statements allowed in injection");
+    }
+
+    /**
+     * Parameters of the snippet injected for an event: those of the collector, then those of the event
+     */
+    protected HashMap<String, Object> collectParameters(DetectionEvent data) {
+        HashMap<String, Object> params;
+        if (parameterCollector != null)
+            params = parameterCollector.collectParameters(data.getDetected());
+        else params = new HashMap<>();
+        if (data instanceof AbstractEvent) {
+            for (Map.Entry<String, Object> p : ((AbstractEvent) data).getParameters().entrySet())
+                if (!params.containsKey(p.getKey())) params.put(p.getKey(), p.getValue());
+        }
+        return params;
+    }
+
+    /**
+     * Builds the statement injected at a detected statement
+     */
+    protected CtStatement buildStatement(CtStatement st, HashMap<String, Object> params) {
+        CtParametrizedSnippetStatement pst = new CtParametrizedSnippetStatement();
+        pst.setFactory(st.getFactory());
+        pst.setParent(st.getParent());
+        if (probeSwitch == null && sampling == null) pst.setTemplate(template, params);
+        else {
+            if (guarded == null) {
+                String condition = guardConditionTemplate();
+                guard = SnippetTemplate.parse(condition);
+                guarded = SnippetTemplate.parse("if (" + condition + ") { " + injection + "; }");
             }
+            int probe = sampling == null ? -1 : sampling.nextProbe();
+            if (probe >= 0) params.put(Sampling.PROBE_PARAMETER, probe);
+            pst.setTemplate(guarded, params);
+            pst.setGuard(guard.render(params));
+        }
+        //Sampled snippets keep their own guard
+        if (batch != null && sampling == null) pst.setBatch(batch, batchItem.render(params));
+        return pst;
+    }
 
-        } else throw new RuntimeException("Only statements allowed in injection");
+    /**
+     * Condition of the guards of the snippets, with a slot for the number of the sampled probe
+     */
+    private String guardConditionTemplate() {
+        String condition = probeSwitch == null ? null : probeSwitch.condition();
+        if (sampling != null) condition = condition == null ? sampling.conditionTemplate() :
+                condition + " && " + sampling.conditionTemplate();
+        return condition;
+    }
+
+    /**
+     * Condition of the guard of a new snippet: the switch, then the sampling. Null if the snippet always runs
+     */
+    protected String guardCondition() {
+        String condition = probeSwitch == null ? null : probeSwitch.condition();
+        if (sampling != null) condition = condition == null ? sampling.condition() :
+                condition + " && " + sampling.condition();
+        return condition;
+    }
+
+    /**
+     * Inserts the injected statement at the detected statement, following the injection position
+     */
+    protected void insert(CtStatement st, CtStatement injected) {
+        if (st instanceof CtBlock && (injectAt == InjectionPosition.FIRST || injectAt == InjectionPosition.LAST ||
+                !(st.getParent() instanceof CtBlock))) {
+            //Nothing can be inserted around the body of a statement, the snippet goes in it
+            CtBlock<?> block = (CtBlock<?>) st;
+            if (injectAt == InjectionPosition.BEFORE || injectAt == InjectionPosition.FIRST)
+                block.insertBegin(injected);
+            else block.insertEnd(injected);
+        } else if ( injectAt == InjectionPosition.BEFORE ) {
+            st.insertBefore(injected);
+        } else /*f ( injectAt == InjectionPosition.AFTER )*/ {
+            st.insertAfter(injected);
+        }
     }
 }
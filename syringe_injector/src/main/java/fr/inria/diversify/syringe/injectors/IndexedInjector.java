@@ -0,0 +1,65 @@
+package fr.inria.diversify.syringe.injectors;
+
+import fr.inria.diversify.syringe.IdMap;
+import fr.inria.diversify.syringe.events.DetectionEvent;
+
+import java.util.HashMap;
+
+/**
+ * Injector whose snippets index a static array of a generated runtime class by the id of the detected element.
+ * <p>
+ * Each detected element is given an id in the ID map, keyed by the prefix of the injector followed by the signature
+ * of the event, and the id is given to the snippet as a parameter. The array is sized once the ID map is complete, so
+ * the instrumenter gives the injector its ID map and writes the runtime class at the end of the instrumentation.
+ * <p>
+ * Injectors listening to events of the same elements, such as the beginning and the end of a method, must be given
+ * different prefixes or they share their ids.
+ */
+public abstract class IndexedInjector extends GenericInjector {
+
+    //Parameter holding the id
+    private final String parameter;
+
+    private String prefix = "";
+
+    //ID map giving the ids
+    private IdMap ids;
+
+    protected IndexedInjector(String parameter) {
+        this.parameter = parameter;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Sets the prefix of the keys of the ids in the ID map
+     */
+    public void setPrefix(String prefix) {
+        this.prefix = prefix == null ? "" : prefix;
+    }
+
+    public IdMap getIds() {
+        return ids;
+    }
+
+    /**
+     * Sets the ID map giving the ids, shared with the detectors so a single ID file maps back all of them
+     */
+    public void setIds(IdMap ids) {
+        this.ids = ids;
+    }
+
+    @Override
+    protected HashMap<String, Object> collectParameters(DetectionEvent data) {
+        HashMap<String, Object> params = super.collectParameters(data);
+        if (ids == null) throw new RuntimeException("No ID map to index the probes");
+        if (data.getSignature() == null) throw new RuntimeException("No signature to key the probe of the event");
+        //The ID file splits its lines on spaces
+        String key = (prefix + data.getSignature()).replace(' ', '_');
+        ids.addToMap(key);
+        params.put(parameter, ids.get(key));
+        return params;
+    }
+}
@@ -0,0 +1,270 @@
+package fr.inria.diversify.syringe.injectors;
+
+import spoon.reflect.code.CtBlock;
+import spoon.reflect.code.CtExpression;
+import spoon.reflect.code.CtIf;
+import spoon.reflect.code.CtInvocation;
+import spoon.reflect.code.CtStatement;
+import spoon.reflect.declaration.CtMethod;
+import spoon.reflect.declaration.CtType;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.reference.CtExecutableReference;
+import spoon.reflect.reference.CtTypeReference;
+
+import java.util.*;
+
+/**
+ * Injects a call to a static method as real AST nodes instead of a code snippet.
+ * <p>
+ * The template is a static invocation whose arguments are literals or parameters, like this:
+ * <p/>
+ * fr.inria.Logger.logBranch(%id%, "%signature%", true)
+ * <p/>
+ * It is parsed when set, so a template that is not such an invocation fails right away. The invocation is built once
+ * per model and cloned for each detected element, then its parameter arguments are replaced by literals: parameters
+ * inside string literals are rendered into the string, bare parameters become literals of their value. A bare
+ * parameter holding a String is an expression, such as the name of a variable, and stays a snippet.
+ * <p>
+ * When the method is declared in the model, its name and number of arguments are checked the first time it is
+ * injected in the model, and the invocation refers to its declared parameter and return types.
+ */
+public class InvocationInjector extends GenericInjector {
+
+    /**
+     * An argument of the template
+     */
+    private static class Argument {
+        //Value of a constant literal, null for a parameter
+        private final Object constant;
+        //Parameter of a bare parameter argument
+        private final String parameter;
+        //Template of a string literal holding parameters
+        private final SnippetTemplate string;
+
+        private Argument(Object constant, String parameter, SnippetTemplate string) {
+            this.constant = constant;
+            this.parameter = parameter;
+            this.string = string;
+        }
+
+        private boolean isConstant() {
+            return parameter == null && string == null;
+        }
+    }
+
+    private String className;
+
+    private String methodName;
+
+    private List<Argument> arguments = Collections.emptyList();
+
+    //Invocation built for the model of the last element injected, rebuilt for the next model. Only one is kept, since
+    //an invocation references its whole model
+    private CtInvocation<?> prototype;
+
+    public InvocationInjector() {
+    }
+
+    public InvocationInjector(String template, ParameterCollector collector, InjectionPosition position) {
+        //Not through the super constructor: the template must be parsed once the fields are initialized
+        setInjectionTemplate(template);
+        setParameterCollector(collector);
+        setInjectAt(position);
+    }
+
+    /**
+     * @throws IllegalArgumentException when the template is not a static invocation with literal or parameter arguments
+     */
+    @Override
+    public void setInjectionTemplate(String s) {
+        if (s == null) className = null;
+        else parse(s.trim());
+        super.setInjectionTemplate(s);
+        synchronized (this) {
+            prototype = null;
+        }
+    }
+
+    private void parse(String template) {
+        if (template.endsWith(";")) template = template.substring(0, template.length() - 1).trim();
+        int open = template.indexOf('(');
+        if (open < 0 || !template.endsWith(")")) throw invalid(template, "not an invocation");
+        String callee = template.substring(0, open).trim();
+        int dot = callee.lastIndexOf('.');
+        if (dot <= 0) throw invalid(template, "the method must be qualified by its class");
+        className = callee.substring(0, dot);
+        methodName = callee.substring(dot + 1);
+
+        List<Argument> result = new ArrayList<>();
+        for (String a : split(template.substring(open + 1, template.length() - 1), template)) {
+            result.add(argument(a, template));
+        }
+        arguments = result;
+    }
+
+    /**
+     * Splits the arguments on the commas out of string and char literals
+     */
+    private static List<String> split(String args, String template) {
+        List<String> result = new ArrayList<>();
+        if (args.trim().isEmpty()) return result;
+        int start = 0;
+        char quote = 0;
+        for (int i = 0; i < args.length(); i++) {
+            char c = args.charAt(i);
+            if (quote != 0) {
+                if (c == '\\') i++;
+                else if (c == quote) quote = 0;
+            } else if (c == '"' || c == '\'') quote = c;
+            else if (c == '(' || c == ')') throw invalid(template, "arguments must be literals or parameters");
+            else if (c == ',') {
+                result.add(args.substring(start, i).trim());
+                start = i + 1;
+            }
+        }
+        if (quote != 0) throw invalid(template, "unterminated literal");
+        result.add(args.substring(start).trim());
+        return result;
+    }
+
+    private static Argument argument(String a, String template) {
+        if (a.length() > 2 && a.startsWith("%") && a.endsWith("%") && a.indexOf('%', 1) == a.length() - 1)
+            return new Argument(null, a.substring(1, a.length() - 1), null);
+        if (a.length() >= 2 && a.startsWith("\"") && a.endsWith("\"")) {
+            SnippetTemplate t = SnippetTemplate.parse(unescape(a.substring(1, a.length() - 1)));
+            return t.isConstant() ? new Argument(t.getSource(), null, null) : new Argument(null, null, t);
+        }
+        if (a.length() >= 3 && a.startsWith("'") && a.endsWith("'")) {
+            String c = unescape(a.substring(1, a.length() - 1));
+            if (c.length() == 1) return new Argument(c.charAt(0), null, null);
+        }
+        if (a.equals("true") || a.equals("false")) return new Argument(Boolean.valueOf(a), null, null);
+        try {
+            if (a.endsWith("L") || a.endsWith("l")) return new Argument(Long.valueOf(a.substring(0, a.length() - 1)), null, null);
+            if (a.matches("-?\\d+")) return new Argument(Integer.valueOf(a), null, null);
+            return new Argument(Double.valueOf(a), null, null);
+        } catch (NumberFormatException e) {
+            throw invalid(template, "argument " + a + " is neither a literal nor a parameter");
+        }
+    }
+
+    private static String unescape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c != '\\' || i + 1 == s.length()) {
+                sb.append(c);
+                continue;
+            }
+            char n = s.charAt(++i);
+            switch (n) {
+                case 'n': sb.append('\n'); break;
+                case 't': sb.append('\t'); break;
+                case 'r': sb.append('\r'); break;
+                default: sb.append(n);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static IllegalArgumentException invalid(String template, String reason) {
+        return new IllegalArgumentException("Invalid invocation template \"" + template + "\": " + reason);
+    }
+
+    /**
+     * The invocation of a model, with placeholders in place of the parameter arguments
+     */
+    private synchronized CtInvocation<?> prototype(Factory factory) {
+        if (className == null) throw new IllegalStateException("No invocation template");
+        if (prototype == null || prototype.getFactory() != factory) prototype = buildPrototype(factory);
+        return prototype;
+    }
+
+    private CtInvocation<?> buildPrototype(Factory factory) {
+        CtMethod<?> method = null;
+        CtType<?> declaration = factory.Type().get(className);
+        if (declaration != null) {
+            method = declaredMethod(declaration);
+            if (method == null) throw new IllegalStateException("No method " + methodName + " with " +
+                    arguments.size() + " parameters in " + className);
+        }
+
+        List<CtExpression<?>> args = new ArrayList<>();
+        CtTypeReference<?>[] types = new CtTypeReference<?>[arguments.size()];
+        for (int i = 0; i < arguments.size(); i++) {
+            Argument a = arguments.get(i);
+            args.add(factory.Code().createLiteral(a.constant));
+            //The types of the declared parameters, else the best known from the template
+            if (method != null) types[i] = method.getParameters().get(i).getType();
+            else types[i] = a.isConstant() ? factory.Type().createReference(a.constant.getClass()).unbox() :
+                    factory.Type().OBJECT;
+        }
+        CtTypeReference<?> type = factory.Type().createReference(className);
+        CtTypeReference<?> returnType = method == null ? factory.Type().VOID_PRIMITIVE : method.getType();
+        CtExecutableReference<?> executable = factory.Executable().createReference(
+                type, true, returnType, methodName, types);
+        return factory.Code().createInvocation(factory.Code().createTypeAccess(type), executable,
+                args.toArray(new CtExpression<?>[args.size()]));
+    }
+
+    /**
+     * The method of the template in its declaring type: the method with its name and number of parameters, the one
+     * whose parameters have the types of the constant arguments if there are overloads. Null if there is none.
+     */
+    private CtMethod<?> declaredMethod(CtType<?> declaration) {
+        CtMethod<?> result = null;
+        for (CtMethod<?> m : declaration.getMethods()) {
+            if (!m.getSimpleName().equals(methodName) || m.getParameters().size() != arguments.size()) continue;
+            if (result == null) result = m;
+            if (acceptsConstants(m)) return m;
+        }
+        return result;
+    }
+
+    private boolean acceptsConstants(CtMethod<?> method) {
+        for (int i = 0; i < arguments.size(); i++) {
+            Argument a = arguments.get(i);
+            if (!a.isConstant()) continue;
+            CtTypeReference<?> parameter = method.getParameters().get(i).getType();
+            CtTypeReference<?> constant = method.getFactory().Type().createReference(a.constant.getClass());
+            if (!parameter.getQualifiedName().equals(constant.unbox().getQualifiedName()) &&
+                    !parameter.getQualifiedName().equals(constant.getQualifiedName())) return false;
+        }
+        return true;
+    }
+
+    @Override
+    protected CtStatement buildStatement(CtStatement st, HashMap<String, Object> params) {
+        Factory factory = st.getFactory();
+        CtInvocation<?> invocation = factory.Core().clone(prototype(factory));
+        List<CtExpression<?>> args = new ArrayList<>(invocation.getArguments());
+        for (int i = 0; i < arguments.size(); i++) {
+            Argument a = arguments.get(i);
+            if (a.string != null) args.set(i, factory.Code().createLiteral(a.string.render(params)));
+            else if (a.parameter != null) args.set(i, expression(factory, a.parameter, params));
+        }
+        invocation.setArguments(args);
+
+        CtStatement result = invocation;
+        String condition = guardCondition();
+        if (condition != null) {
+            CtIf guard = factory.Core().createIf();
+            guard.setCondition(factory.Code().<Boolean>createCodeSnippetExpression(condition));
+            CtBlock<?> then = factory.Core().createBlock();
+            then.addStatement(invocation);
+            guard.setThenStatement(then);
+            result = guard;
+        }
+        result.setParent(st.getParent());
+        return result;
+    }
+
+    private CtExpression<?> expression(Factory factory, String parameter, HashMap<String, Object> params) {
+        Object value = params.get(parameter);
+        if (value == null)
+            throw new RuntimeException("Null value exception when obtaining value of parameter " + parameter);
+        if (value instanceof Number || value instanceof Boolean || value instanceof Character)
+            return factory.Code().createLiteral(value);
+        return factory.Code().createCodeSnippetExpression(value.toString());
+    }
+}
@@ -0,0 +1,101 @@
+package fr.inria.diversify.syringe.injectors;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Switches all the snippets of an instrumented build on or off, so the same build can run with or without its probes.
+ * <p>
+ * Each injected snippet is wrapped in a guard reading the switch class, a small class written along the instrumented
+ * sources. The probes are off unless the system property {@link #PROPERTY}, or else that property in the logger
+ * properties file, is "true". Modes:
+ * <ul>
+ * <li>STATIC_FINAL: the guard reads a static final boolean set when the switch class is loaded. The JIT compiles it
+ * as a constant, so disabled probes are removed from the compiled code. The switch cannot change while running.</li>
+ * <li>CALL_SITE: the guard calls enabled(), which reads a MutableCallSite through a constant method handle. The JIT
+ * also compiles it as a constant, and setEnabled(boolean) flips the probes while running by deoptimizing the code
+ * depending on it. Needs Java 7.</li>
+ * </ul>
+ * The guard of the switch is checked before the sampling, so disabled probes do not touch the sampler.
+ */
+public class ProbeSwitch {
+
+    public static final String PROPERTY = "syringe.probes";
+
+    public static final String SWITCH_PACKAGE = Sampling.SAMPLER_PACKAGE;
+
+    public static final String SWITCH_CLASS = "SyringeSwitch";
+
+    public enum Mode {
+        STATIC_FINAL, CALL_SITE
+    }
+
+    private final Mode mode;
+
+    public ProbeSwitch(Mode mode) {
+        this.mode = mode;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Condition of the guard of a snippet
+     */
+    public String condition() {
+        String name = SWITCH_PACKAGE + "." + SWITCH_CLASS;
+        return mode == Mode.STATIC_FINAL ? name + ".ENABLED" : name + ".enabled()";
+    }
+
+    /**
+     * Writes the switch class
+     *
+     * @param sourceRoot     Root of the instrumented sources
+     * @param propertiesFile Path of the logger properties file, relative to the directory the program runs in.
+     *                       Null if there is none.
+     * @param callSite       Indicates if some injector switches in CALL_SITE mode
+     */
+    public static void writeSwitch(File sourceRoot, String propertiesFile, boolean callSite) throws IOException {
+        File dir = new File(sourceRoot, SWITCH_PACKAGE.replace('.', File.separatorChar));
+        dir.mkdirs();
+        FileWriter fw = new FileWriter(new File(dir, SWITCH_CLASS + ".java"));
+        try {
+            fw.write("package " + SWITCH_PACKAGE + ";\n\n" +
+                    "/**\n * Generated by Syringe. Switches the probes on or off.\n */\n" +
+                    "public final class " + SWITCH_CLASS + " {\n\n" +
+                    "    public static final boolean ENABLED;\n\n" +
+                    (callSite ?
+                            "    private static final java.lang.invoke.MutableCallSite SITE;\n\n" +
+                            "    private static final java.lang.invoke.MethodHandle INVOKER;\n\n" : "") +
+                    "    static {\n" +
+                    Sampling.readProperty(PROPERTY, propertiesFile) +
+                    "        ENABLED = value != null && Boolean.parseBoolean(value.trim());\n" +
+                    (callSite ?
+                            "        SITE = new java.lang.invoke.MutableCallSite(\n" +
+                            "                java.lang.invoke.MethodHandles.constant(boolean.class, ENABLED));\n" +
+                            "        INVOKER = SITE.dynamicInvoker();\n" : "") +
+                    "    }\n\n" +
+                    "    private " + SWITCH_CLASS + "() {\n" +
+                    "    }\n" +
+                    (callSite ?
+                            "\n    /**\n     * Indicates if the probes are on. Starts as ENABLED, changes with setEnabled\n     */\n" +
+                            "    public static boolean enabled() {\n" +
+                            "        try {\n" +
+                            "            return (boolean) INVOKER.invokeExact();\n" +
+                            "        } catch (Throwable e) {\n" +
+                            "            throw new AssertionError(e);\n" +
+                            "        }\n" +
+                            "    }\n\n" +
+                            "    /**\n     * Switches the probes on or off. The code compiled with the previous value is deoptimized\n     */\n" +
+                            "    public static synchronized void setEnabled(boolean enabled) {\n" +
+                            "        SITE.setTarget(java.lang.invoke.MethodHandles.constant(boolean.class, enabled));\n" +
+                            "        java.lang.invoke.MutableCallSite.syncAll(new java.lang.invoke.MutableCallSite[]{SITE});\n" +
+                            "    }\n" : "") +
+                    "}\n");
+        } finally {
+            fw.close();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package fr.inria.diversify.syringe.injectors;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Samples the executions of the snippets of an injector, so only some of them run.
+ * <p>
+ * Each injected snippet is wrapped in a guard calling the sampler class, a small class written along the instrumented
+ * sources. Modes:
+ * <ul>
+ * <li>EVERY_NTH: each probe runs one hit out of 1/rate, counted per probe. Counters are not synchronized: under
+ * contention a few hits may be missed, which does not bias the sample.</li>
+ * <li>PROBABILITY: each hit runs with probability rate, drawn from a per thread xorshift generator.</li>
+ * </ul>
+ * The rate is read once, when the sampler class is loaded, from the system property {@link #RATE_PROPERTY}, or else
+ * from that property in the logger properties file (see SyringeInstrumenter.writeLoggerProperties). It defaults to 1,
+ * so the same instrumented build can run fully or sampled.
+ */
+public class Sampling {
+
+    public static final String RATE_PROPERTY = "syringe.sample.rate";
+
+    //System property giving the path of the properties file, overriding the logger properties file
+    public static final String PROPERTIES_PROPERTY = "syringe.properties";
+
+    public static final String SAMPLER_PACKAGE = "fr.inria.diversify.syringe.runtime";
+
+    public static final String SAMPLER_CLASS = "SyringeSampler";
+
+    //Parameter of the condition template giving the number of a probe
+    public static final String PROBE_PARAMETER = "syringe.probe";
+
+    public enum Mode {
+        EVERY_NTH, PROBABILITY
+    }
+
+    private final Mode mode;
+
+    //Numbers of the probes, shared by the samplings writing to the same sampler class
+    private AtomicInteger probes = new AtomicInteger();
+
+    public Sampling(Mode mode) {
+        this.mode = mode;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Counter numbering the probes. The instrumenter gives the same counter to all its samplings, so they can share
+     * the sampler class.
+     */
+    public AtomicInteger getProbes() {
+        return probes;
+    }
+
+    public void setProbes(AtomicInteger probes) {
+        this.probes = probes;
+    }
+
+    /**
+     * Number of probes guarded by an EVERY_NTH sampling sharing the counter of this one so far
+     */
+    public int getProbeCount() {
+        return probes.get();
+    }
+
+    /**
+     * Condition of the guard of a new probe
+     */
+    public String condition() {
+        String sampler = SAMPLER_PACKAGE + "." + SAMPLER_CLASS;
+        return mode == Mode.EVERY_NTH ? sampler + ".every(" + probes.getAndIncrement() + ")" : sampler + ".randomly()";
+    }
+
+    /**
+     * Condition of the guards of all the probes, with a {@link #PROBE_PARAMETER} slot for the number of the probe
+     * given by nextProbe()
+     */
+    public String conditionTemplate() {
+        String sampler = SAMPLER_PACKAGE + "." + SAMPLER_CLASS;
+        return mode == Mode.EVERY_NTH ? sampler + ".every(%" + PROBE_PARAMETER + "%)" : sampler + ".randomly()";
+    }
+
+    /**
+     * Number of a new probe, -1 if the probes of the mode are not numbered
+     */
+    public int nextProbe() {
+        return mode == Mode.EVERY_NTH ? probes.getAndIncrement() : -1;
+    }
+
+    /**
+     * Code of a static initializer declaring a "value" variable holding a property: the system property, or else the
+     * property in the properties file, or else null
+     *
+     * @param propertiesFile Path of the properties file, relative to the directory the program runs in. Null if there
+     *                       is none.
+     */
+    static String readProperty(String property, String propertiesFile) {
+        String file = propertiesFile == null ? "null" : "\"" + propertiesFile.replace("\\", "\\\\") + "\"";
+        return "        String value = System.getProperty(\"" + property + "\");\n" +
+                "        String file = System.getProperty(\"" + PROPERTIES_PROPERTY + "\", " + file + ");\n" +
+                "        if (value == null && file != null) {\n" +
+                "            java.util.Properties properties = new java.util.Properties();\n" +
+                "            try {\n" +
+                "                java.io.InputStream in = new java.io.FileInputStream(file);\n" +
+                "                try {\n" +
+                "                    properties.load(in);\n" +
+                "                } finally {\n" +
+                "                    in.close();\n" +
+                "                }\n" +
+                "                value = properties.getProperty(\"" + property + "\");\n" +
+                "            } catch (java.io.IOException e) {\n" +
+                "                //No properties file: the default value\n" +
+                "            }\n" +
+                "        }\n";
+    }
+
+    /**
+     * Writes the sampler class
+     *
+     * @param sourceRoot     Root of the instrumented sources
+     * @param propertiesFile Path of the logger properties file, relative to the directory the program runs in.
+     *                       Null if there is none.
+     * @param probeCount     Number of probes of the EVERY_NTH samplings
+     */
+    public static void writeSampler(File sourceRoot, String propertiesFile, int probeCount) throws IOException {
+        File dir = new File(sourceRoot, SAMPLER_PACKAGE.replace('.', File.separatorChar));
+        dir.mkdirs();
+        //A power of two, so stale probes of a previous instrumentation never fall out of the counters
+        int counters = Integer.highestOneBit(Math.max(probeCount, 1) * 2 - 1);
+
+        FileWriter fw = new FileWriter(new File(dir, SAMPLER_CLASS + ".java"));
+        try {
+            fw.write("package " + SAMPLER_PACKAGE + ";\n\n" +
+                    "/**\n * Generated by Syringe. Decides which executions of the sampled probes run.\n */\n" +
+                    "public final class " + SAMPLER_CLASS + " {\n\n" +
+                    "    public static final double RATE;\n\n" +
+                    "    private static final int PERIOD;\n\n" +
+                    "    private static final long THRESHOLD;\n\n" +
+                    "    private static final int[] HITS = new int[" + counters + "];\n\n" +
+                    "    private static final ThreadLocal<long[]> SEED = new ThreadLocal<long[]>() {\n" +
+                    "        @Override\n" +
+                    "        protected long[] initialValue() {\n" +
+                    "            return new long[]{(System.nanoTime() ^ Thread.currentThread().getId() * 0x9E3779B97F4A7C15L) | 1};\n" +
+                    "        }\n" +
+                    "    };\n\n" +
+                    "    static {\n" +
+                    readProperty(RATE_PROPERTY, propertiesFile) +
+                    "        double rate = 1;\n" +
+                    "        try {\n" +
+                    "            if (value != null) rate = Math.max(0, Math.min(1, Double.parseDouble(value.trim())));\n" +
+                    "        } catch (NumberFormatException e) {\n" +
+                    "            System.err.println(\"Invalid " + RATE_PROPERTY + ": \" + value);\n" +
+                    "        }\n" +
+                    "        RATE = rate;\n" +
+                    "        PERIOD = rate == 0 ? 0 : (int) Math.max(1, Math.min(Integer.MAX_VALUE, Math.round(1 / rate)));\n" +
+                    "        THRESHOLD = (long) (rate * (1L << 53));\n" +
+                    "    }\n\n" +
+                    "    private " + SAMPLER_CLASS + "() {\n" +
+                    "    }\n\n" +
+                    "    /**\n     * Indicates if a hit of a probe is sampled: one out of 1 / RATE\n     */\n" +
+                    "    public static boolean every(int probe) {\n" +
+                    "        if (PERIOD == 0) return false;\n" +
+                    "        int i = probe & (HITS.length - 1);\n" +
+                    "        int h = HITS[i] + 1;\n" +
+                    "        if (h >= PERIOD) {\n" +
+                    "            HITS[i] = 0;\n" +
+                    "            return true;\n" +
+                    "        }\n" +
+                    "        HITS[i] = h;\n" +
+                    "        return false;\n" +
+                    "    }\n\n" +
+                    "    /**\n     * Indicates if a hit is sampled, with probability RATE\n     */\n" +
+                    "    public static boolean randomly() {\n" +
+                    "        long[] seed = SEED.get();\n" +
+                    "        long x = seed[0];\n" +
+                    "        x ^= x << 13;\n" +
+                    "        x ^= x >>> 7;\n" +
+                    "        x ^= x << 17;\n" +
+                    "        seed[0] = x;\n" +
+                    "        return (x >>> 11) < THRESHOLD;\n" +
+                    "    }\n" +
+                    "}\n");
+        } finally {
+            fw.close();
+        }
+    }
+}
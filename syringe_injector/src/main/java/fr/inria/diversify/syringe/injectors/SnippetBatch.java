@@ -0,0 +1,119 @@
+package fr.inria.diversify.syringe.injectors;
+
+import spoon.reflect.code.CtStatement;
+import spoon.reflect.code.CtStatementList;
+import spoon.reflect.declaration.CtElement;
+import spoon.reflect.visitor.filter.TypeFilter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Merges the snippets injected back to back at the same site into a single call.
+ * <p>
+ * Injectors sharing a batch give each snippet an item, such as its id. Once the units are instrumented, snippets of
+ * the same batch following one another in a block are replaced by the template of the batch, whose %items% slot is
+ * given their items separated by commas. A snippet with no batched neighbour is left as it is. For instance, with
+ * <pre>
+ * SnippetBatch batch = new SnippetBatch("fr.inria.Logger.logAll(System.nanoTime(), new int[]{%items%})");
+ * methodInjector.setBatch(batch, "%id%");
+ * loopInjector.setBatch(batch, "%id%");
+ * </pre>
+ * the beginning of a method starting with a loop gets a single logAll call reading the time once, instead of one
+ * call per injector. The logger must provide the batched method.
+ * <p>
+ * Sampled snippets each have their own guard and are never batched. Snippets guarded by the same probe switch are
+ * merged into a snippet with that guard.
+ */
+public class SnippetBatch {
+
+    public static final String ITEMS = "items";
+
+    private final SnippetTemplate template;
+
+    //The template wrapped in each guard of the merged snippets, parsed once
+    private final ConcurrentHashMap<String, SnippetTemplate> guarded = new ConcurrentHashMap<>();
+
+    public SnippetBatch(String template) {
+        this.template = SnippetTemplate.parse(template);
+    }
+
+    public String getTemplate() {
+        return template.getSource();
+    }
+
+    /**
+     * Merges the batched snippets of all the statement lists of an element
+     *
+     * @return The number of snippets merged away
+     */
+    public static int merge(CtElement element) {
+        int merged = 0;
+        for (CtStatementList list : element.getElements(new TypeFilter<>(CtStatementList.class)))
+            merged += mergeList(list);
+        return merged;
+    }
+
+    private static int mergeList(CtStatementList list) {
+        List<CtStatement> statements = list.getStatements();
+        if (statements == null || statements.size() < 2) return 0;
+
+        List<CtStatement> result = new ArrayList<>(statements.size());
+        int merged = 0;
+        int i = 0;
+        while (i < statements.size()) {
+            SnippetBatch batch = batchOf(statements.get(i));
+            int end = i + 1;
+            if (batch != null)
+                while (end < statements.size() && batchOf(statements.get(end)) == batch &&
+                        sameGuard(statements.get(i), statements.get(end))) end++;
+            if (end - i < 2) {
+                result.add(statements.get(i));
+            } else {
+                result.add(batch.build(statements.subList(i, end)));
+                merged += end - i - 1;
+            }
+            i = end;
+        }
+        if (merged > 0) list.setStatements(result);
+        return merged;
+    }
+
+    private static SnippetBatch batchOf(CtStatement statement) {
+        return statement instanceof CtParametrizedSnippetStatement ?
+                ((CtParametrizedSnippetStatement) statement).getBatch() : null;
+    }
+
+    private static boolean sameGuard(CtStatement a, CtStatement b) {
+        String guard = ((CtParametrizedSnippetStatement) a).getGuard();
+        return guard == null ? ((CtParametrizedSnippetStatement) b).getGuard() == null :
+                guard.equals(((CtParametrizedSnippetStatement) b).getGuard());
+    }
+
+    private CtParametrizedSnippetStatement build(List<CtStatement> snippets) {
+        StringBuilder items = new StringBuilder();
+        for (CtStatement s : snippets) {
+            if (items.length() > 0) items.append(", ");
+            items.append(((CtParametrizedSnippetStatement) s).getBatchItem());
+        }
+        HashMap<String, Object> params = new HashMap<>();
+        params.put(ITEMS, items.toString());
+        String guard = ((CtParametrizedSnippetStatement) snippets.get(0)).getGuard();
+        CtParametrizedSnippetStatement result = new CtParametrizedSnippetStatement();
+        result.setFactory(snippets.get(0).getFactory());
+        result.setTemplate(guard == null ? template : guarded(guard), params);
+        result.setGuard(guard);
+        return result;
+    }
+
+    private SnippetTemplate guarded(String guard) {
+        SnippetTemplate result = guarded.get(guard);
+        if (result == null) {
+            result = SnippetTemplate.parse("if (" + guard + ") { " + template.getSource() + "; }");
+            guarded.put(guard, result);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,111 @@
+package fr.inria.diversify.syringe.injectors;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A parsed snippet template: literal text and parameter slots enclosed in percent symbols, like this:
+ * <p/>
+ * log%type%(%value%);
+ * <p/>
+ * Parsed once, then rendered in a single pass for each set of parameters. Values are copied literally, so they may
+ * contain any character, percent symbols included. Slots whose parameter is not given are left as they are.
+ * A slot name is made of letters, digits, underscores, dots and dashes: any other percent symbol is literal text.
+ */
+public class SnippetTemplate {
+
+    private final String source;
+
+    //Even indexes are literal text, odd indexes are parameter names
+    private final String[] segments;
+
+    //Length of the literal text, to size the rendered snippet
+    private final int literalLength;
+
+    private SnippetTemplate(String source, String[] segments, int literalLength) {
+        this.source = source;
+        this.segments = segments;
+        this.literalLength = literalLength;
+    }
+
+    /**
+     * Parses a template
+     */
+    public static SnippetTemplate parse(String template) {
+        List<String> segments = new ArrayList<>();
+        int literalLength = 0;
+        int start = 0;
+        int i = 0;
+        while (i < template.length()) {
+            if (template.charAt(i) != '%') {
+                i++;
+                continue;
+            }
+            int end = i + 1;
+            while (end < template.length() && isNameChar(template.charAt(end))) end++;
+            if (end == i + 1 || end == template.length() || template.charAt(end) != '%') {
+                i++;
+                continue;
+            }
+            segments.add(template.substring(start, i));
+            segments.add(template.substring(i + 1, end));
+            literalLength += i - start;
+            start = end + 1;
+            i = start;
+        }
+        segments.add(template.substring(start));
+        literalLength += template.length() - start;
+        return new SnippetTemplate(template, segments.toArray(new String[segments.size()]), literalLength);
+    }
+
+    private static boolean isNameChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '.' || c == '-';
+    }
+
+    /**
+     * The template as given
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * Indicates if the template has no parameter slot
+     */
+    public boolean isConstant() {
+        return segments.length == 1;
+    }
+
+    /**
+     * Renders the template
+     *
+     * @param parameters Values of the parameters, by name
+     * @throws RuntimeException when a slot parameter has a null value
+     */
+    public String render(Map<String, Object> parameters) {
+        if (isConstant()) return source;
+        StringBuilder sb = new StringBuilder(literalLength + 16 * (segments.length / 2));
+        for (int i = 0; i < segments.length; i++) {
+            if (i % 2 == 0) {
+                sb.append(segments[i]);
+                continue;
+            }
+            String name = segments[i];
+            if (parameters == null || !parameters.containsKey(name)) {
+                sb.append('%').append(name).append('%');
+                continue;
+            }
+            Object value = parameters.get(name);
+            if (value == null)
+                throw new RuntimeException("Null value exception when obtaining value of parameter " + name);
+            sb.append(value.toString());
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+}
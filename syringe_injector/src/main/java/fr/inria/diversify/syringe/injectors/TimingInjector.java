@@ -0,0 +1,115 @@
+package fr.inria.diversify.syringe.injectors;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Records the duration of the methods into a histogram per method, instead of logging each call.
+ * <p>
+ * Listens to MethodDetect.METHOD_TIMED, whose finally block runs however the method exits, early returns and
+ * exceptions included. The injected snippet computes the duration from the entry time held in the "start" parameter,
+ * like this:
+ * <p/>
+ * fr.inria.diversify.syringe.runtime.SyringeTimer.record(12, __syringeStart0)
+ * <p/>
+ * Each method is given a histogram in the ID map (see {@link IndexedInjector}). The histograms have one bucket per
+ * power of two nanoseconds and live in the timer class, written along the instrumented sources once the ID map is
+ * complete (see {@link #writeTimer(File, int)}). They are dumped once, by a shutdown hook, to the file given by the
+ * system property {@link #FILE_PROPERTY}, one line per method called:
+ * <p/>
+ * id calls totalNanos bucket:calls ...
+ * <p/>
+ * where the durations counted in bucket b are in [2^(b-1), 2^b) nanoseconds.
+ */
+public class TimingInjector extends IndexedInjector {
+
+    public static final String FILE_PROPERTY = "syringe.timer.file";
+
+    //Not in the log dir with a .log extension, so the log readers skip it
+    public static final String DEFAULT_FILE = "log/syringe.timer";
+
+    public static final String TIMER_PACKAGE = Sampling.SAMPLER_PACKAGE;
+
+    public static final String TIMER_CLASS = "SyringeTimer";
+
+    public static final int BUCKETS = 64;
+
+    public TimingInjector() {
+        super("probe");
+        setInjectionTemplate(TIMER_PACKAGE + "." + TIMER_CLASS + ".record(%probe%, %start%)");
+        setInjectAt(InjectionPosition.LAST);
+    }
+
+    /**
+     * Writes the timer class
+     *
+     * @param sourceRoot Root of the instrumented sources
+     * @param size       Number of histograms, greater than the last index of the ID map
+     */
+    public static void writeTimer(File sourceRoot, int size) throws IOException {
+        File dir = new File(sourceRoot, TIMER_PACKAGE.replace('.', File.separatorChar));
+        dir.mkdirs();
+        FileWriter fw = new FileWriter(new File(dir, TIMER_CLASS + ".java"));
+        try {
+            fw.write("package " + TIMER_PACKAGE + ";\n\n" +
+                    "/**\n * Generated by Syringe. Histograms of the durations of the probes, indexed by their id in the ID file.\n */\n" +
+                    "public final class " + TIMER_CLASS + " {\n\n" +
+                    "    private static final int BUCKETS = " + BUCKETS + ";\n\n" +
+                    "    private static final java.util.concurrent.atomic.AtomicLongArray HISTOGRAMS =\n" +
+                    "            new java.util.concurrent.atomic.AtomicLongArray(" + size + " * BUCKETS);\n\n" +
+                    "    private static final java.util.concurrent.atomic.AtomicLongArray TOTALS =\n" +
+                    "            new java.util.concurrent.atomic.AtomicLongArray(" + size + ");\n\n" +
+                    "    private static boolean dumped = false;\n\n" +
+                    "    static {\n" +
+                    "        Runtime.getRuntime().addShutdownHook(new Thread() {\n" +
+                    "            @Override\n" +
+                    "            public void run() {\n" +
+                    "                dump();\n" +
+                    "            }\n" +
+                    "        });\n" +
+                    "    }\n\n" +
+                    "    private " + TIMER_CLASS + "() {\n" +
+                    "    }\n\n" +
+                    "    /**\n     * Records the duration of a probe entered at a System.nanoTime()\n     */\n" +
+                    "    public static void record(int probe, long start) {\n" +
+                    "        long duration = Math.max(0, System.nanoTime() - start);\n" +
+                    "        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(duration));\n" +
+                    "        HISTOGRAMS.incrementAndGet(probe * BUCKETS + bucket);\n" +
+                    "        TOTALS.addAndGet(probe, duration);\n" +
+                    "    }\n\n" +
+                    "    /**\n     * Writes the histograms of the probes called, once\n     */\n" +
+                    "    public static synchronized void dump() {\n" +
+                    "        if (dumped) return;\n" +
+                    "        dumped = true;\n" +
+                    "        java.io.File file = new java.io.File(System.getProperty(\"" + FILE_PROPERTY + "\", \"" +
+                    DEFAULT_FILE + "\"));\n" +
+                    "        if (file.getParentFile() != null) file.getParentFile().mkdirs();\n" +
+                    "        try {\n" +
+                    "            java.io.Writer writer = new java.io.BufferedWriter(new java.io.FileWriter(file));\n" +
+                    "            try {\n" +
+                    "                writer.write(\"#Syringe timer: id calls totalNanos bucket:calls...\\n\");\n" +
+                    "                for (int i = 0; i < TOTALS.length(); i++) {\n" +
+                    "                    StringBuilder buckets = new StringBuilder();\n" +
+                    "                    long calls = 0;\n" +
+                    "                    for (int b = 0; b < BUCKETS; b++) {\n" +
+                    "                        long c = HISTOGRAMS.get(i * BUCKETS + b);\n" +
+                    "                        if (c == 0) continue;\n" +
+                    "                        calls += c;\n" +
+                    "                        buckets.append(' ').append(b).append(':').append(c);\n" +
+                    "                    }\n" +
+                    "                    if (calls != 0) writer.write(i + \" \" + calls + \" \" + TOTALS.get(i) + buckets + \"\\n\");\n" +
+                    "                }\n" +
+                    "            } finally {\n" +
+                    "                writer.close();\n" +
+                    "            }\n" +
+                    "        } catch (java.io.IOException e) {\n" +
+                    "            System.err.println(\"Unable to write the Syringe timer to \" + file + \": \" + e);\n" +
+                    "        }\n" +
+                    "    }\n" +
+                    "}\n");
+        } finally {
+            fw.close();
+        }
+    }
+}
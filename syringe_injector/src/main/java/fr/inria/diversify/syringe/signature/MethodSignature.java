@@ -15,8 +15,8 @@ public class MethodSignature implements SignatureGenerator {
     @Override
     public String getSignature(CtElement e) {
         if ( e instanceof CtExecutable ) return methodSignature((CtExecutable)e);
-        e = e.getParent(CtMethod.class);
-        return e == null ? new DefaultSignature().getSignature(e) : methodSignature((CtExecutable)e);
+        CtMethod method = e.getParent(CtMethod.class);
+        return method == null ? new DefaultSignature().getSignature(e) : methodSignature(method);
     }
 
     private String methodSignature(CtExecutable e) {
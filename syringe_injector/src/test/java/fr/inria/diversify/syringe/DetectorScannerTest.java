@@ -0,0 +1,196 @@
+package fr.inria.diversify.syringe;
+
+import fr.inria.diversify.syringe.detectors.AbstractDetector;
+import fr.inria.diversify.syringe.detectors.CaseDetect;
+import fr.inria.diversify.syringe.detectors.Detector;
+import fr.inria.diversify.syringe.detectors.ElementFilter;
+import fr.inria.diversify.syringe.detectors.IfDetector;
+import fr.inria.diversify.syringe.detectors.LoopDetect;
+import fr.inria.diversify.syringe.detectors.MethodDetect;
+import fr.inria.diversify.syringe.events.DetectionEvent;
+import fr.inria.diversify.syringe.events.DetectionListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import spoon.Launcher;
+import spoon.processing.TraversalStrategy;
+import spoon.reflect.code.CtBlock;
+import spoon.reflect.declaration.CtElement;
+import spoon.reflect.declaration.CtExecutable;
+import spoon.reflect.declaration.CtType;
+import spoon.reflect.factory.Factory;
+import spoon.support.QueueProcessingManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DetectorScannerTest {
+
+    /**
+     * Detects the blocks before their statements, unlike the detectors of the repo which run after the children
+     */
+    public static class PreOrderBlockDetector extends AbstractDetector<CtBlock<?>> {
+
+        public static final String BLOCK = "@Block@";
+
+        @Override
+        public TraversalStrategy getTraversalStrategy() {
+            return TraversalStrategy.PRE_ORDER;
+        }
+
+        @Override
+        public void process(CtBlock<?> element) {
+            if (!element.getStatements().isEmpty()) notifyStatementDetection(element, 0);
+        }
+
+        @Override
+        public Collection<String> eventsSupported() {
+            return Arrays.asList(BLOCK);
+        }
+    }
+
+    /**
+     * Records the events of a detector, with the position of the detected element
+     */
+    private static class Recorder implements DetectionListener {
+        private final String event;
+
+        private final List<String> events;
+
+        private Recorder(String event, List<String> events) {
+            this.event = event;
+            this.events = events;
+        }
+
+        @Override
+        public void listen(DetectionEvent data) {
+            CtElement e = data.getDetected();
+            events.add(event + " " + e.getClass().getSimpleName() + " " + data.getSignature() + " " +
+                    (e.getPosition() == null ? "" : e.getPosition().getLine() + ":" + e.getPosition().getColumn()));
+        }
+    }
+
+    /**
+     * Detectors of the test, each recording its events in its own list
+     */
+    private List<Detector> detectors(List<List<String>> events) {
+        List<Detector> result = new ArrayList<>();
+        result.add(new MethodDetect());
+        result.add(new IfDetector());
+        result.add(new LoopDetect());
+        result.add(new CaseDetect());
+        result.add(new PreOrderBlockDetector());
+        String[][] listened = {
+                {MethodDetect.METHOD_BEGIN, MethodDetect.METHOD_END},
+                {IfDetector.IF_DETECTED, IfDetector.IF_BODY, IfDetector.ELSE_BODY},
+                {LoopDetect.LOOP_DETECTED, LoopDetect.LOOP_BLOCK},
+                {CaseDetect.CASE_DETECTED},
+                {PreOrderBlockDetector.BLOCK}};
+        for (int i = 0; i < result.size(); i++) {
+            List<String> list = new ArrayList<>();
+            events.add(list);
+            for (String event : listened[i]) result.get(i).addListener(event, new Recorder(event, list));
+        }
+        return result;
+    }
+
+    private TestProject project;
+
+    @Before
+    public void setUp() throws Exception {
+        project = TestProject.sample();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        project.delete();
+    }
+
+    private Factory model() {
+        Launcher launcher = new Launcher();
+        launcher.getEnvironment().setNoClasspath(true);
+        launcher.addInputResource(project.getDir() + TestProject.SRC);
+        launcher.buildModel();
+        return launcher.getFactory();
+    }
+
+    @Test
+    public void testSameEventsAsOneTraversalPerDetector() throws Exception {
+        Factory factory = model();
+        List<CtType<?>> types = factory.Type().getAll();
+
+        //One traversal per detector, as a processing manager does
+        List<List<String>> expected = new ArrayList<>();
+        for (Detector d : detectors(expected)) {
+            QueueProcessingManager pm = new QueueProcessingManager(factory);
+            pm.addProcessor(d);
+            pm.process(types);
+        }
+
+        //A single traversal
+        List<List<String>> actual = new ArrayList<>();
+        List<Detector> detectors = detectors(actual);
+        for (Detector d : detectors) {
+            d.setFactory(factory);
+            d.init();
+        }
+        DetectorScanner scanner = new DetectorScanner(detectors);
+        for (CtType<?> t : types) scanner.scan(t);
+
+        for (int i = 0; i < expected.size(); i++) {
+            assertFalse(detectors.get(i).getClass().getSimpleName(), expected.get(i).isEmpty());
+            assertEquals(expected.get(i), actual.get(i));
+        }
+    }
+
+    @Test
+    public void testFilterAppliesToItsDetectorOnly() throws Exception {
+        Factory factory = model();
+        List<List<String>> events = new ArrayList<>();
+        List<Detector> detectors = detectors(events);
+        detectors.get(1).setFilter(new ElementFilter() {
+            @Override
+            public boolean accept(CtElement element) {
+                return false;
+            }
+        });
+        DetectorScanner scanner = new DetectorScanner(detectors);
+        for (CtType<?> t : factory.Type().getAll()) scanner.scan(t);
+
+        assertEquals(Collections.emptyList(), events.get(1));
+        assertFalse(events.get(0).isEmpty());
+        assertFalse(events.get(2).isEmpty());
+    }
+
+    @Test
+    public void testPreOrderDetectorSeesTheParentsFirst() throws Exception {
+        Factory factory = model();
+        final List<String> order = new ArrayList<>();
+        MethodDetect methods = new MethodDetect();
+        methods.addListener(MethodDetect.METHOD_BEGIN, new DetectionListener() {
+            @Override
+            public void listen(DetectionEvent data) {
+                order.add("begin " + data.getDetected().getParent(CtExecutable.class).getSignature());
+            }
+        });
+        PreOrderBlockDetector blocks = new PreOrderBlockDetector();
+        blocks.addListener(PreOrderBlockDetector.BLOCK, new DetectionListener() {
+            @Override
+            public void listen(DetectionEvent data) {
+                if (data.getDetected().getParent() instanceof CtExecutable)
+                    order.add("body " + ((CtExecutable<?>) data.getDetected().getParent()).getSignature());
+            }
+        });
+        //The method detector runs once the body is scanned, whatever the order of the detectors
+        DetectorScanner scanner = new DetectorScanner(Arrays.<Detector>asList(methods, blocks));
+        scanner.scan(factory.Type().get("b.Text"));
+        assertEquals(Arrays.asList(
+                "body b.Text()", "begin b.Text()",
+                "body int vowels(java.lang.String)", "begin int vowels(java.lang.String)"), order);
+    }
+}
@@ -0,0 +1,240 @@
+package fr.inria.diversify.syringe;
+
+import fr.inria.diversify.syringe.detectors.BranchCoverageDetector;
+import fr.inria.diversify.syringe.detectors.ProfileFilter;
+import fr.inria.diversify.syringe.injectors.CounterInjector;
+import fr.inria.diversify.syringe.injectors.ProbeSwitch;
+import fr.inria.diversify.syringe.injectors.Sampling;
+import fr.inria.diversify.syringe.injectors.SnippetBatch;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class InstrumentationManifestTest {
+
+    private BranchCoverageDetector detect;
+
+    private CounterInjector counter;
+
+    /**
+     * Configuration counting the branches
+     */
+    private Configuration counting() {
+        Configuration configuration = new Configuration(TestProject.SRC);
+        detect = new BranchCoverageDetector();
+        counter = new CounterInjector();
+        configuration.addDetector(detect);
+        configuration.addInjector(BranchCoverageDetector.BRANCH_PROBE, counter);
+        return configuration;
+    }
+
+    private String fingerprint(Configuration configuration) {
+        return InstrumentationManifest.fingerprint(configuration, 8);
+    }
+
+    @Test
+    public void testFingerprintCoversTheSettings() {
+        HashSet<String> fingerprints = new HashSet<>();
+        String base = fingerprint(counting());
+        assertEquals(base, fingerprint(counting()));
+        assertNotEquals(base, InstrumentationManifest.fingerprint(counting(), 7));
+        fingerprints.add(base);
+
+        Map<String, Long> hits = new HashMap<>();
+        hits.put("a.Arith.sum(int[])", 10L);
+        Configuration configuration = counting();
+        detect.setFilter(ProfileFilter.hottest(hits, 1));
+        assertTrue(fingerprints.add(fingerprint(configuration)));
+        assertFalse(fingerprints.add(fingerprint(configuration)));
+
+        configuration = counting();
+        detect.setFilter(ProfileFilter.hottest(hits, 2));
+        assertTrue(fingerprints.add(fingerprint(configuration)));
+
+        //Same policy over another profile
+        hits.put("a.Arith.sign(int)", 20L);
+        configuration = counting();
+        detect.setFilter(ProfileFilter.hottest(hits, 2));
+        assertTrue(fingerprints.add(fingerprint(configuration)));
+
+        configuration = counting();
+        counter.setSampling(new Sampling(Sampling.Mode.EVERY_NTH));
+        assertTrue(fingerprints.add(fingerprint(configuration)));
+
+        configuration = counting();
+        counter.setSampling(new Sampling(Sampling.Mode.PROBABILITY));
+        assertTrue(fingerprints.add(fingerprint(configuration)));
+
+        configuration = counting();
+        counter.setProbeSwitch(new ProbeSwitch(ProbeSwitch.Mode.STATIC_FINAL));
+        assertTrue(fingerprints.add(fingerprint(configuration)));
+
+        configuration = counting();
+        counter.setBatch(new SnippetBatch("c.Log.all(new int[]{%items%})"), "%counter%");
+        assertTrue(fingerprints.add(fingerprint(configuration)));
+
+        configuration = counting();
+        counter.setPrefix("begin");
+        assertTrue(fingerprints.add(fingerprint(configuration)));
+    }
+
+    /**
+     * Instruments the sources changed since the last run of a project
+     *
+     * @return The ID file
+     */
+    private String incremental(TestProject project, Configuration configuration) throws Exception {
+        SyringeInstrumenterImpl instrumenter = project.instrumenter();
+        instrumenter.setIncremental(true);
+        instrumenter.instrument(configuration);
+        instrumenter.writeIdFile("id.log");
+        return project.log("id.log");
+    }
+
+    @Test
+    public void testUnchangedSourcesAreReused() throws Exception {
+        TestProject project = TestProject.sample();
+        try {
+            String ids = incremental(project, counting());
+            assertTrue(project.output(TestProject.ARITH).contains("SyringeCounters.HITS["));
+
+            //A reused output is not printed again
+            File arith = new File(project.getOutputDir() + TestProject.SRC + "/" + TestProject.ARITH);
+            FileUtils.writeStringToFile(arith, project.output(TestProject.ARITH) + "//Reused\n");
+            String text = project.output(TestProject.TEXT);
+
+            assertEquals(ids, incremental(project, counting()));
+            assertTrue(project.output(TestProject.ARITH).endsWith("//Reused\n"));
+            assertEquals(text, project.output(TestProject.TEXT));
+            project.compile();
+        } finally {
+            project.delete();
+        }
+    }
+
+    @Test
+    public void testChangedSourceKeepsTheOtherIds() throws Exception {
+        TestProject project = TestProject.sample();
+        try {
+            String ids = incremental(project, counting());
+            int last = ids.split("\n").length;
+            File arith = new File(project.getOutputDir() + TestProject.SRC + "/" + TestProject.ARITH);
+            FileUtils.writeStringToFile(arith, project.output(TestProject.ARITH) + "//Reused\n");
+
+            String source = FileUtils.readFileToString(new File(project.getDir() + TestProject.SRC, TestProject.TEXT));
+            project.add(TestProject.TEXT, source.substring(0, source.lastIndexOf('}')) +
+                    "    public static int length(String s) {\n" +
+                    "        if (s == null) return 0;\n" +
+                    "        return s.length();\n" +
+                    "    }\n" +
+                    "}\n");
+            String changed = incremental(project, counting());
+            assertTrue(project.output(TestProject.ARITH).endsWith("//Reused\n"));
+            assertTrue(project.output(TestProject.TEXT).contains("length"));
+
+            //The IDs of the unchanged sources are restored, the new ones come after all the previous ones
+            for (String line : ids.split("\n"))
+                if (!line.contains("b.Text")) assertTrue(changed.contains(line + "\n"));
+            for (String line : changed.split("\n"))
+                if (line.contains("b.Text")) assertTrue(Integer.parseInt(line.split(" ")[0]) > last);
+            project.compile();
+        } finally {
+            project.delete();
+        }
+    }
+
+    @Test
+    public void testChangedConfigurationInstrumentsEverything() throws Exception {
+        TestProject project = TestProject.sample();
+        try {
+            incremental(project, counting());
+            File arith = new File(project.getOutputDir() + TestProject.SRC + "/" + TestProject.ARITH);
+            FileUtils.writeStringToFile(arith, project.output(TestProject.ARITH) + "//Reused\n");
+
+            Configuration configuration = counting();
+            counter.setProbeSwitch(new ProbeSwitch(ProbeSwitch.Mode.STATIC_FINAL));
+            incremental(project, configuration);
+            assertFalse(project.output(TestProject.ARITH).endsWith("//Reused\n"));
+            assertTrue(project.output(TestProject.ARITH).contains("SyringeSwitch.ENABLED"));
+            project.compile();
+        } finally {
+            project.delete();
+        }
+    }
+
+    /**
+     * Numbers of the sampled probes in the instrumented sources of the sample project
+     */
+    private List<Integer> sampledProbes(TestProject project) throws Exception {
+        List<Integer> result = new ArrayList<>();
+        Matcher m = Pattern.compile("SyringeSampler\\.every\\((\\d+)\\)").matcher(project.outputs());
+        while (m.find()) result.add(Integer.parseInt(m.group(1)));
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * Configuration counting the branches of the sampled probes
+     */
+    private Configuration sampled() {
+        Configuration configuration = counting();
+        counter.setSampling(new Sampling(Sampling.Mode.EVERY_NTH));
+        return configuration;
+    }
+
+    @Test
+    public void testSampledProbesArePerInstrumentation() throws Exception {
+        TestProject first = TestProject.sample();
+        TestProject second = TestProject.sample();
+        try {
+            //Numbered from zero whatever ran before
+            incremental(first, sampled());
+            incremental(second, sampled());
+            List<Integer> probes = sampledProbes(first);
+            assertFalse(probes.isEmpty());
+            assertEquals(0, probes.get(0).intValue());
+            assertEquals(probes.size() - 1, probes.get(probes.size() - 1).intValue());
+            assertEquals(probes, sampledProbes(second));
+            assertEquals(first.outputs(), second.outputs());
+        } finally {
+            first.delete();
+            second.delete();
+        }
+    }
+
+    @Test
+    public void testChangedSourceGetsNewSampledProbes() throws Exception {
+        TestProject project = TestProject.sample();
+        try {
+            incremental(project, sampled());
+            int count = sampledProbes(project).size();
+
+            String source = FileUtils.readFileToString(new File(project.getDir() + TestProject.SRC, TestProject.TEXT));
+            project.add(TestProject.TEXT, source.replace("count++;\n                    break;",
+                    "count += 2;\n                    break;"));
+            incremental(project, sampled());
+            assertTrue(project.output(TestProject.TEXT).contains("count += 2;"));
+
+            //The probes of the reused sources keep their numbers, those of the changed one come after them
+            List<Integer> probes = sampledProbes(project);
+            assertEquals(count, probes.size());
+            assertEquals(count, new HashSet<>(probes).size());
+            Matcher m = Pattern.compile("SyringeSampler\\.every\\((\\d+)\\)").matcher(project.output(TestProject.TEXT));
+            while (m.find()) assertTrue(Integer.parseInt(m.group(1)) >= count);
+            project.compile();
+        } finally {
+            project.delete();
+        }
+    }
+}
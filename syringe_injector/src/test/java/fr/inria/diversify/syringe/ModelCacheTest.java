@@ -0,0 +1,113 @@
+package fr.inria.diversify.syringe;
+
+import fr.inria.diversify.syringe.detectors.BranchCoverageDetector;
+import fr.inria.diversify.syringe.injectors.CounterInjector;
+import org.junit.Test;
+import spoon.reflect.code.CtBlock;
+import spoon.reflect.declaration.CtAnonymousExecutable;
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.factory.FactoryImpl;
+import spoon.support.DefaultCoreFactory;
+import spoon.support.StandardEnvironment;
+import spoon.support.reflect.declaration.CtClassImpl;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class ModelCacheTest {
+
+    /**
+     * Instruments the project at once with the model cache
+     *
+     * @return The instrumenter used
+     */
+    private SyringeInstrumenterImpl instrument(TestProject project) throws Exception {
+        Configuration configuration = new Configuration(TestProject.SRC);
+        configuration.addDetector(new BranchCoverageDetector());
+        configuration.addInjector(BranchCoverageDetector.BRANCH_PROBE, new CounterInjector());
+        SyringeInstrumenterImpl instrumenter = project.instrumenter();
+        instrumenter.setModelCache(true);
+        instrumenter.instrument(configuration);
+        instrumenter.writeIdFile("id.log");
+        return instrumenter;
+    }
+
+    @Test
+    public void testCachedModelGivesTheSameOutput() throws Exception {
+        TestProject project = TestProject.sample();
+        try {
+            SyringeInstrumenterImpl built = instrument(project);
+            assertTrue(built.getMetrics().getPhases().containsKey("buildModel"));
+            File cache = new File(project.getOutputDir() + TestProject.SRC, ModelCache.FILE_NAME);
+            assertTrue(cache.exists());
+            String ids = project.log("id.log");
+            String output = project.outputs();
+
+            SyringeInstrumenterImpl loaded = instrument(project);
+            assertFalse(loaded.getMetrics().getPhases().containsKey("buildModel"));
+            assertTrue(loaded.getMetrics().getPhases().containsKey("modelCacheLoad"));
+            assertEquals(ids, project.log("id.log"));
+            assertEquals(output, project.outputs());
+            project.compile();
+        } finally {
+            project.delete();
+        }
+    }
+
+    /**
+     * Type that cannot be serialized, since it holds the test
+     */
+    private class UnserializableClass extends CtClassImpl<Object> {
+    }
+
+    /**
+     * Factory whose model holds a single class
+     */
+    private Factory factory(CtClass<?> type) {
+        Factory factory = new FactoryImpl(new DefaultCoreFactory(), new StandardEnvironment());
+        type.setSimpleName("A");
+        factory.getModel().getRootPackage().addType(type);
+        return factory;
+    }
+
+    @Test
+    public void testFailedSaveLeavesNoFile() throws Exception {
+        File dir = Files.createTempDirectory("cache").toFile();
+        try {
+            File file = new File(dir, ModelCache.FILE_NAME);
+            ModelCache cache = new ModelCache(file);
+            cache.save("saved", factory(new CtClassImpl<Object>()), new String[0]);
+            assertNotNull(cache.load("saved"));
+            long length = file.length();
+
+            //Not serializable
+            cache.save("unserializable", factory(new UnserializableClass()), new String[0]);
+            assertArrayEquals(new String[]{ModelCache.FILE_NAME}, dir.list());
+            assertEquals(length, file.length());
+            assertNull(cache.load("unserializable"));
+            assertNotNull(cache.load("saved"));
+
+            //Too deep to serialize
+            Factory deep = factory(new CtClassImpl<Object>());
+            CtAnonymousExecutable initializer = deep.Core().createAnonymousExecutable();
+            CtBlock<Void> body = deep.Core().createBlock();
+            initializer.setBody(body);
+            deep.Class().get("A").addAnonymousExecutable(initializer);
+            CtBlock<?> block = body;
+            for (int i = 0; i < 100000; i++) {
+                CtBlock<?> inner = deep.Core().createBlock();
+                block.addStatement(inner);
+                block = inner;
+            }
+            cache.save("deep", deep, new String[0]);
+            assertArrayEquals(new String[]{ModelCache.FILE_NAME}, dir.list());
+            assertNotNull(cache.load("saved"));
+        } finally {
+            for (File f : dir.listFiles()) f.delete();
+            dir.delete();
+        }
+    }
+}
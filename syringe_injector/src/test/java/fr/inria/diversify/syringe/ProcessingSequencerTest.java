@@ -0,0 +1,86 @@
+package fr.inria.diversify.syringe;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ProcessingSequencerTest {
+
+    @Test(timeout = 10000)
+    public void testTicketsProcessedInOrder() throws Exception {
+        final int tickets = 200;
+        final ProcessingSequencer sequencer = new ProcessingSequencer(tickets);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+
+        final Random random = new Random(42);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < tickets; i++) {
+            final int ticket = i;
+            //Models take various times to build, so the workers reach their turn out of order
+            final long build = random.nextInt(3);
+            pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(build);
+                        sequencer.await(ticket);
+                        order.add(ticket);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        sequencer.release(ticket);
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(tickets, order.size());
+        for (int i = 0; i < tickets; i++) assertEquals(i, (int) order.get(i));
+    }
+
+    @Test(timeout = 10000)
+    public void testReleaseIsIdempotent() throws Exception {
+        ProcessingSequencer sequencer = new ProcessingSequencer(3);
+        sequencer.release(0);
+        sequencer.release(0);
+        sequencer.await(1);
+        //Ticket 2 is released before its turn: it only counts once ticket 1 is done
+        sequencer.release(2);
+        sequencer.release(2);
+        sequencer.release(1);
+        sequencer.await(2);
+    }
+
+    @Test(timeout = 10000)
+    public void testFailedTicketDoesNotBlockTheNext() throws Exception {
+        final ProcessingSequencer sequencer = new ProcessingSequencer(2);
+        Thread failing = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    throw new IllegalStateException("Model does not build");
+                } finally {
+                    sequencer.release(0);
+                }
+            }
+        };
+        failing.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread t, Throwable e) {
+            }
+        });
+        failing.start();
+        sequencer.await(1);
+        failing.join();
+    }
+}
@@ -0,0 +1,91 @@
+package fr.inria.diversify.syringe;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class StringSimilarityTest {
+
+    /**
+     * The comparison as first written, over lists of pair Strings
+     */
+    private static double reference(String str1, String str2) {
+        List<String> pairs1 = wordLetterPairs(str1.toUpperCase());
+        List<String> pairs2 = wordLetterPairs(str2.toUpperCase());
+
+        double intersection = 0;
+        double union = pairs1.size() + pairs2.size();
+
+        for (int i = 0; i < pairs1.size(); i++) {
+            for (int j = 0; j < pairs2.size(); j++) {
+                if (pairs1.get(i).equals(pairs2.get(j))) {
+                    intersection++;
+                    pairs2.remove(j);
+                    break;
+                }
+            }
+        }
+
+        return (2.0 * intersection) / union;
+    }
+
+    private static List<String> wordLetterPairs(String str) {
+        List<String> allPairs = new ArrayList<>();
+        for (String word : str.split("\\s")) {
+            if (word.isEmpty()) continue;
+            if (word.length() == 1) allPairs.add(word + "€");
+            for (int i = 0; i < word.length() - 1; i++) allPairs.add(word.substring(i, i + 2));
+        }
+        return allPairs;
+    }
+
+    private void assertSameAsReference(String str1, String str2) {
+        double expected = reference(str1, str2);
+        assertEquals("'" + str1 + "' '" + str2 + "'", expected, StringSimilarity.CompareStrings(str1, str2), 0);
+        assertEquals(expected, StringSimilarity.compare(
+                StringSimilarity.fingerprint(str1), StringSimilarity.fingerprint(str2)), 0);
+    }
+
+    @Test
+    public void testEdgeCases() {
+        String[] strings = {"", " ", "\t\n", "a", "A", " a ", "a b", "€", "aa", "aaa", "aaaa", "GG", "GGGG",
+                "abab", "baba", "ababab", "ab ab", "a  b\r\nc", "x.y", "ß", "if (a) b++;", "if (a) { b++; }"};
+        for (String s1 : strings)
+            for (String s2 : strings) assertSameAsReference(s1, s2);
+
+        //Nothing to compare, as before
+        assertTrue(Double.isNaN(StringSimilarity.CompareStrings("", " ")));
+        assertEquals(1.0, StringSimilarity.CompareStrings("a", "A"), 0);
+        assertEquals(0.0, StringSimilarity.CompareStrings("a", "b"), 0);
+        //Each pair matches once
+        assertEquals(2.0 * 1 / 4, StringSimilarity.CompareStrings("GGGG", "GG"), 0);
+    }
+
+    @Test
+    public void testRandomStringsSameAsReference() {
+        Random random = new Random(14);
+        String alphabet = "abAB c\t;€";
+        for (int i = 0; i < 5000; i++) {
+            StringBuilder s1 = new StringBuilder();
+            StringBuilder s2 = new StringBuilder();
+            for (int k = random.nextInt(16); k > 0; k--) s1.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            for (int k = random.nextInt(16); k > 0; k--) s2.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            assertSameAsReference(s1.toString(), s2.toString());
+        }
+    }
+
+    @Test
+    public void testCompareMany() {
+        String[] strings = {"", "a", "aa", "abab", "if (a) b++;"};
+        StringSimilarity.Fingerprint[] candidates = new StringSimilarity.Fingerprint[strings.length];
+        for (int i = 0; i < strings.length; i++) candidates[i] = StringSimilarity.fingerprint(strings[i]);
+        double[] result = new double[strings.length + 1];
+        StringSimilarity.compare(StringSimilarity.fingerprint("ab"), candidates, result);
+        for (int i = 0; i < strings.length; i++) assertEquals(reference("ab", strings[i]), result[i], 0);
+        assertEquals(0.0, result[strings.length], 0);
+    }
+}
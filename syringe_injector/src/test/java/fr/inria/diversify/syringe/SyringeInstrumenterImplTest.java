@@ -0,0 +1,481 @@
+package fr.inria.diversify.syringe;
+
+import fr.inria.diversify.syringe.detectors.BranchCoverageDetector;
+import fr.inria.diversify.syringe.detectors.ElementFilter;
+import fr.inria.diversify.syringe.detectors.MethodDetect;
+import fr.inria.diversify.syringe.events.DetectionEvent;
+import fr.inria.diversify.syringe.events.DetectionListener;
+import fr.inria.diversify.syringe.injectors.CounterInjector;
+import fr.inria.diversify.syringe.injectors.Sampling;
+import org.apache.commons.io.FileUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import spoon.reflect.declaration.CtElement;
+import spoon.reflect.declaration.CtNamedElement;
+import spoon.reflect.declaration.CtType;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+public class SyringeInstrumenterImplTest {
+
+    /**
+     * Configuration counting the branches of the sample project
+     */
+    private Configuration counting() {
+        Configuration configuration = new Configuration(TestProject.SRC);
+        configuration.addDetector(new BranchCoverageDetector());
+        configuration.addInjector(BranchCoverageDetector.BRANCH_PROBE, new CounterInjector());
+        return configuration;
+    }
+
+    /**
+     * Instruments the sample project file by file with a number of workers
+     *
+     * @return The ID file followed by the instrumented sources
+     */
+    private String fileByFile(Configuration configuration, int workers) throws Exception {
+        TestProject project = TestProject.sample();
+        try {
+            SyringeInstrumenterImpl instrumenter = project.instrumenter();
+            instrumenter.setFileByFile(true);
+            instrumenter.setWorkerCount(workers);
+            instrumenter.instrument(configuration);
+            instrumenter.writeIdFile("id.log");
+            project.compile();
+            return project.log("id.log") + project.outputs();
+        } finally {
+            project.delete();
+        }
+    }
+
+    @Test
+    public void testParallelIdsEqualSequential() throws Exception {
+        String sequential = fileByFile(counting(), 1);
+        assertTrue(sequential.contains(BranchCoverageDetector.GRAPH_PREFIX));
+        assertEquals(sequential, fileByFile(counting(), 4));
+    }
+
+    @Test
+    public void testParallelKeepsDetectorFilter() throws Exception {
+        Configuration configuration = new Configuration(TestProject.SRC);
+        MethodDetect detect = new MethodDetect();
+        detect.setFilter(new ElementFilter() {
+            @Override
+            public boolean accept(CtElement element) {
+                return "sum".equals(((CtNamedElement) element).getSimpleName());
+            }
+        });
+        configuration.addDetector(detect);
+        configuration.addInjector(MethodDetect.METHOD_BEGIN, new CounterInjector());
+
+        String result = fileByFile(configuration, 4);
+        assertEquals(1, result.split("SyringeCounters.HITS\\[").length - 1);
+        assertTrue(result.startsWith("1 "));
+        assertTrue(result.contains("HITS[1]++;\n        int s = base;"));
+    }
+
+    /**
+     * Instruments a project at once with the classpath
+     */
+    private void atOnce(TestProject project) throws Exception {
+        SyringeInstrumenterImpl instrumenter = project.instrumenter();
+        instrumenter.setUseClassPath(true);
+        instrumenter.instrument(counting());
+        instrumenter.writeIdFile("id.log");
+    }
+
+    @Test
+    public void testBrokenUnitsAreIsolated() throws Exception {
+        TestProject clean = TestProject.sample();
+        TestProject project = TestProject.sample();
+        //Does not compile with the classpath, but does without
+        project.add("d/Unresolved.java", "package d;\n\n" +
+                "public class Unresolved {\n" +
+                "    public int f(int v) {\n" +
+                "        if (v > 0) return missing(v);\n" +
+                "        return 0;\n" +
+                "    }\n" +
+                "}\n");
+        //Does not compile at all
+        project.add("e/Broken.java", "package e;\n\n" +
+                "public class Broken {\n" +
+                "    public int f(int v) {\n" +
+                "        if (v > 0) return v\n" +
+                "        return 0;\n" +
+                "    }\n" +
+                "}\n");
+        try {
+            atOnce(clean);
+            atOnce(project);
+
+            //The units compiling together are instrumented as if the broken ones were not there
+            assertEquals(clean.output(TestProject.ARITH), project.output(TestProject.ARITH));
+            assertEquals(clean.output(TestProject.TEXT), project.output(TestProject.TEXT));
+            for (String line : clean.log("id.log").split("\n"))
+                if (line.contains("a.Arith#") || line.contains("b.Text#"))
+                    assertTrue(line, project.log("id.log").contains(line + "\n"));
+
+            //The broken units are instrumented in no classpath mode
+            assertTrue(project.output(TestProject.MAIN).contains("SyringeCounters"));
+            assertTrue(project.output("d/Unresolved.java").contains("SyringeCounters.HITS["));
+            assertTrue(project.log("id.log").contains("d.Unresolved#"));
+        } finally {
+            clean.delete();
+            project.delete();
+        }
+    }
+
+    @Test
+    public void testIsolationSplitsTheFailedBuildRightAway() throws Exception {
+        TestProject project = TestProject.sample();
+        //The other packages resolve the sample classes through their compiled classes
+        project.build();
+        project.add("e/Broken.java", "package e;\n\n" +
+                "public class Broken {\n" +
+                "    public int f(int v) {\n" +
+                "        if (v > 0) return v\n" +
+                "        return 0;\n" +
+                "    }\n" +
+                "}\n");
+        try {
+            SyringeInstrumenterImpl instrumenter = project.instrumenter();
+            instrumenter.setUseClassPath(true);
+            instrumenter.setIsolateFailures(true);
+            instrumenter.instrument(counting());
+            assertTrue(project.output(TestProject.ARITH).contains("SyringeCounters.HITS["));
+            assertTrue(project.output(TestProject.MAIN).contains("SyringeCounters.HITS["));
+
+            //The failed build, then a, b | c, e: a, b | c | e, then e in no classpath mode
+            assertEquals(6, instrumenter.getMetrics().getPhases().get("buildModel").getCount());
+        } finally {
+            project.delete();
+        }
+    }
+
+    /**
+     * Instruments the built sample project by chunks of a heap budget, zero to instrument it at once
+     *
+     * @return The ID file followed by the instrumented sources
+     */
+    private String chunked(long budget) throws Exception {
+        TestProject project = TestProject.sample();
+        try {
+            //The chunks resolve the types of the other chunks through the compiled classes
+            project.build();
+            SyringeInstrumenterImpl instrumenter = project.instrumenter();
+            instrumenter.setUseClassPath(true);
+            instrumenter.setChunkHeapBudget(budget);
+            instrumenter.instrument(counting());
+            instrumenter.writeIdFile("id.log");
+            project.compile();
+            return project.log("id.log") + project.outputs();
+        } finally {
+            project.delete();
+        }
+    }
+
+    @Test
+    public void testChunksGiveTheSameOutputAsOneShot() throws Exception {
+        String oneShot = chunked(0);
+        assertTrue(oneShot.contains("b.Text#"));
+        //One package per chunk
+        assertEquals(oneShot, chunked(1));
+    }
+
+    /**
+     * Instruments the branches of the Arith class of the sample project at once
+     */
+    private void arithOnly(TestProject project, boolean link) throws Exception {
+        Configuration configuration = counting();
+        configuration.getDetectors().iterator().next().setFilter(new ElementFilter() {
+            @Override
+            public boolean accept(CtElement element) {
+                CtType<?> type = element.getParent(CtType.class);
+                return type != null && type.getQualifiedName().equals("a.Arith");
+            }
+        });
+        SyringeInstrumenterImpl instrumenter = project.instrumenter();
+        instrumenter.setLinkUnmodified(link);
+        instrumenter.instrument(configuration);
+    }
+
+    @Test
+    public void testOnlyModifiedUnitsArePrinted() throws Exception {
+        TestProject project = TestProject.sample();
+        try {
+            arithOnly(project, false);
+            for (String unit : new String[]{TestProject.TEXT, TestProject.MAIN}) {
+                File source = new File(project.getDir() + TestProject.SRC, unit);
+                File output = new File(project.getOutputDir() + TestProject.SRC, unit);
+                assertArrayEquals(unit, Files.readAllBytes(source.toPath()), Files.readAllBytes(output.toPath()));
+                assertFalse(Files.isSameFile(source.toPath(), output.toPath()));
+            }
+            String arith = project.output(TestProject.ARITH);
+            assertTrue(arith.contains("SyringeCounters.HITS["));
+            project.compile();
+        } finally {
+            project.delete();
+        }
+    }
+
+    @Test
+    public void testUnmodifiedUnitsAreLinked() throws Exception {
+        TestProject project = TestProject.sample();
+        try {
+            arithOnly(project, true);
+            for (String unit : new String[]{TestProject.TEXT, TestProject.MAIN})
+                assertTrue(unit, Files.isSameFile(new File(project.getDir() + TestProject.SRC, unit).toPath(),
+                        new File(project.getOutputDir() + TestProject.SRC, unit).toPath()));
+
+            //Printing a unit modified in a later run does not overwrite its source through the link
+            String text = project.output(TestProject.TEXT);
+            project.instrumenter().instrument(counting());
+            assertTrue(project.output(TestProject.TEXT).contains("SyringeCounters.HITS["));
+            assertEquals(text, FileUtils.readFileToString(new File(project.getDir() + TestProject.SRC, TestProject.TEXT)));
+        } finally {
+            project.delete();
+        }
+    }
+
+    /**
+     * Sample project with a test source dir using the main classes
+     */
+    private TestProject withTests() throws Exception {
+        return TestProject.sample().add(TestProject.TEST_SRC, "t/ArithTest.java", "package t;\n\n" +
+                "import a.Arith;\n\n" +
+                "public class ArithTest {\n" +
+                "    public static int check() {\n" +
+                "        int r = new Arith(2).sign(-3);\n" +
+                "        if (r != -1) throw new AssertionError(r);\n" +
+                "        return r;\n" +
+                "    }\n" +
+                "}\n");
+    }
+
+    /**
+     * Classes of the probes counted in a dump of the counters
+     */
+    private HashSet<String> countedClasses(TestProject project, String dump) throws Exception {
+        HashMap<String, String> keys = new HashMap<>();
+        for (String line : project.log("id.log").split("\n")) {
+            int space = line.indexOf(' ');
+            keys.put(line.substring(0, space), line.substring(space + 1));
+        }
+        HashSet<String> result = new HashSet<>();
+        for (String line : dump.split("\n")) {
+            if (line.startsWith("#")) continue;
+            String key = keys.get(line.split(" ")[0]);
+            result.add(key.substring(key.indexOf('@', 1) + 1, key.indexOf('#')));
+        }
+        return result;
+    }
+
+    @Test
+    public void testSessionWritesTheSampler() throws Exception {
+        TestProject project = withTests();
+        try {
+            Configuration main = counting();
+            ((CounterInjector) main.getInjectors().get(BranchCoverageDetector.BRANCH_PROBE).iterator().next())
+                    .setSampling(new Sampling(Sampling.Mode.EVERY_NTH));
+            Configuration test = new Configuration(TestProject.TEST_SRC);
+            test.addDetector(new BranchCoverageDetector());
+            CounterInjector counter = new CounterInjector();
+            counter.setSampling(new Sampling(Sampling.Mode.PROBABILITY));
+            test.addInjector(BranchCoverageDetector.BRANCH_PROBE, counter);
+
+            SyringeInstrumenterImpl instrumenter = project.instrumenter();
+            instrumenter.instrument(Arrays.asList(main, test));
+            instrumenter.writeIdFile("id.log");
+            for (String root : new String[]{TestProject.SRC, TestProject.TEST_SRC}) {
+                String runtime = project.getOutputDir() + root + "/fr/inria/diversify/syringe/runtime/";
+                assertTrue(root, new File(runtime + "SyringeSampler.java").exists());
+                assertTrue(root, new File(runtime + "SyringeCounters.java").exists());
+            }
+            assertTrue(project.output(TestProject.ARITH).contains("SyringeSampler.every("));
+
+            project.compile(TestProject.SRC);
+            ClassLoader loader = project.compile(TestProject.TEST_SRC, TestProject.SRC);
+            loader.loadClass("t.ArithTest").getMethod("check").invoke(null);
+            //Every hit is sampled by default
+            String dump = project.dump(loader, CounterInjector.COUNTERS_CLASS, CounterInjector.FILE_PROPERTY);
+            assertEquals(new HashSet<>(Arrays.asList("a.Arith", "t.ArithTest")), countedClasses(project, dump));
+        } finally {
+            project.delete();
+        }
+    }
+
+    /**
+     * Configuration counting the branches of the tests of the sample project
+     */
+    private Configuration testCounting() {
+        Configuration configuration = new Configuration(TestProject.TEST_SRC);
+        configuration.addDetector(new BranchCoverageDetector());
+        configuration.addInjector(BranchCoverageDetector.BRANCH_PROBE, new CounterInjector());
+        return configuration;
+    }
+
+    /**
+     * Records the types of the probes of the branch detector of a configuration
+     */
+    private Configuration recording(Configuration configuration, final TreeSet<String> types) {
+        configuration.getDetectors().iterator().next().addListener(BranchCoverageDetector.BRANCH_PROBE,
+                new DetectionListener() {
+                    @Override
+                    public void listen(DetectionEvent data) {
+                        types.add(data.getDetected().getParent(CtType.class).getQualifiedName());
+                    }
+                });
+        return configuration;
+    }
+
+    @Test
+    public void testSessionBuildsOneModel() throws Exception {
+        TestProject project = withTests();
+        try {
+            TreeSet<String> mainTypes = new TreeSet<>();
+            Configuration main = recording(counting(), mainTypes);
+            TreeSet<String> testTypes = new TreeSet<>();
+            Configuration test = recording(testCounting(), testTypes);
+
+            SyringeInstrumenterImpl instrumenter = project.instrumenter();
+            instrumenter.instrument(Arrays.asList(main, test));
+            assertEquals(1, instrumenter.getMetrics().getPhases().get("buildModel").getCount());
+
+            //Each configuration sees the units of its root only
+            assertEquals(new TreeSet<>(Arrays.asList("a.Arith", "b.Text", "c.Main")), mainTypes);
+            assertEquals(new TreeSet<>(Arrays.asList("t.ArithTest")), testTypes);
+
+            //Each root is written to its own output dir
+            String out = project.getOutputDir();
+            assertTrue(project.output(TestProject.ARITH).contains("SyringeCounters.HITS["));
+            assertTrue(FileUtils.readFileToString(new File(out + TestProject.TEST_SRC, "t/ArithTest.java"))
+                    .contains("SyringeCounters.HITS["));
+            assertFalse(new File(out + TestProject.TEST_SRC, TestProject.ARITH).exists());
+            assertFalse(new File(out + TestProject.SRC, "t/ArithTest.java").exists());
+        } finally {
+            project.delete();
+        }
+    }
+
+    @Test
+    public void testSessionRejectsModesBuildingSeveralModels() throws Exception {
+        TestProject project = withTests();
+        try {
+            for (int mode = 0; mode < 4; mode++) {
+                SyringeInstrumenterImpl instrumenter = project.instrumenter();
+                if (mode == 0) instrumenter.setFileByFile(true);
+                if (mode == 1) instrumenter.setIncremental(true);
+                if (mode == 2) instrumenter.setChunkHeapBudget(1);
+                if (mode == 3) instrumenter.setModelCache(true);
+                try {
+                    instrumenter.instrument(Arrays.asList(counting()));
+                    fail("Mode " + mode);
+                } catch (IllegalStateException e) {
+                    assertTrue(e.getMessage().startsWith("A session builds a single model"));
+                }
+            }
+            assertFalse(new File(project.getOutputDir()).exists());
+        } finally {
+            project.delete();
+        }
+    }
+
+    @Test
+    public void testSessionIsolatesFailures() throws Exception {
+        TestProject project = withTests();
+        //The roots resolve the sample classes through their compiled classes
+        project.build();
+        project.add("e/Broken.java", "package e;\n\n" +
+                "public class Broken {\n" +
+                "    public int f(int v) {\n" +
+                "        if (v > 0) return v\n" +
+                "        return 0;\n" +
+                "    }\n" +
+                "}\n");
+        try {
+            SyringeInstrumenterImpl instrumenter = project.instrumenter();
+            instrumenter.setUseClassPath(true);
+            instrumenter.instrument(Arrays.asList(counting(), testCounting()));
+            assertTrue(project.output(TestProject.ARITH).contains("SyringeCounters.HITS["));
+            assertTrue(FileUtils.readFileToString(new File(project.getOutputDir() + TestProject.TEST_SRC,
+                    "t/ArithTest.java")).contains("SyringeCounters.HITS["));
+
+            instrumenter = project.instrumenter();
+            instrumenter.setUseClassPath(true);
+            instrumenter.setIsolateFailures(false);
+            try {
+                instrumenter.instrument(Arrays.asList(counting(), testCounting()));
+                fail();
+            } catch (Exception e) {
+                //The model of the session cannot be built
+            }
+        } finally {
+            project.delete();
+        }
+    }
+
+    @Test
+    public void testMetricsReport() throws Exception {
+        TestProject project = TestProject.sample();
+        try {
+            SyringeInstrumenterImpl impl = project.instrumenter();
+            impl.getMetrics().setSlowestFilesCount(2);
+            SyringeInstrumenter instrumenter = impl;
+            instrumenter.instrument(counting());
+            instrumenter.writeIdFile("id.log");
+            instrumenter.writeMetricsFile("metrics.json");
+            JSONObject report = new JSONObject(project.log("metrics.json"));
+
+            boolean cpu = ManagementFactory.getThreadMXBean().isCurrentThreadCpuTimeSupported();
+            JSONObject phases = report.getJSONObject("phases");
+            for (String phase : new String[]{"buildModel", "process", "print"}) {
+                JSONObject p = phases.getJSONObject(phase);
+                assertEquals(phase, 1, p.getLong("count"));
+                assertTrue(phase, p.getLong("wallNanos") > 0);
+                assertTrue(phase, cpu ? p.getLong("cpuNanos") > 0 : p.getLong("cpuNanos") == 0);
+            }
+
+            //Every probe detected is injected once. The ID file also keys the graph of each method
+            int probes = 0;
+            for (String line : project.log("id.log").split("\n"))
+                if (!line.contains(BranchCoverageDetector.GRAPH_PREFIX)) probes++;
+            JSONObject detector = report.getJSONObject("detectors")
+                    .getJSONObject(BranchCoverageDetector.class.getName());
+            assertEquals(probes, detector.getLong("elements"));
+            assertTrue(detector.getLong("wallNanos") > 0);
+            JSONObject injectors = report.getJSONObject("injectors");
+            assertEquals(1, injectors.length());
+            String injector = (String) injectors.keys().next();
+            assertTrue(injector.startsWith(BranchCoverageDetector.BRANCH_PROBE + " CounterInjector "));
+            assertEquals(probes, injectors.getJSONObject(injector).getLong("count"));
+
+            //The two slowest of the three files, slowest first
+            JSONObject files = report.getJSONObject("files");
+            assertEquals(3, files.getInt("count"));
+            JSONArray slowest = files.getJSONArray("slowest");
+            assertEquals(2, slowest.length());
+            long first = slowest.getJSONObject(0).getLong("wallNanos");
+            long second = slowest.getJSONObject(1).getLong("wallNanos");
+            assertTrue(first >= second);
+            assertTrue(files.getLong("wallNanos") >= first + second);
+            HashSet<String> sample = new HashSet<>();
+            for (String f : new String[]{TestProject.ARITH, TestProject.TEXT, TestProject.MAIN})
+                sample.add(new File(project.getDir() + TestProject.SRC, f).getPath());
+            for (int i = 0; i < slowest.length(); i++) {
+                String file = slowest.getJSONObject(i).getString("file");
+                assertTrue(file, sample.remove(file));
+            }
+        } finally {
+            project.delete();
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package fr.inria.diversify.syringe;
+
+import org.apache.commons.io.FileUtils;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Small project written to a temporary dir, to be instrumented and compiled by the tests
+ */
+public class TestProject {
+
+    public static final String SRC = "/src/main/java";
+
+    public static final String TEST_SRC = "/src/test/java";
+
+    public static final String ARITH = "a/Arith.java";
+
+    public static final String TEXT = "b/Text.java";
+
+    public static final String MAIN = "c/Main.java";
+
+    private final File dir;
+
+    public TestProject() throws IOException {
+        dir = Files.createTempDirectory("syringe").toFile();
+    }
+
+    /**
+     * Project with a few branches, loops and constructors, in three packages. The main class depends on the other two,
+     * so its model cannot be built alone with the classpath.
+     */
+    public static TestProject sample() throws IOException {
+        TestProject project = new TestProject();
+        project.add(ARITH, "package a;\n\n" +
+                "public class Arith {\n" +
+                "    private final int base;\n\n" +
+                "    public Arith() {\n" +
+                "        this(0);\n" +
+                "    }\n\n" +
+                "    public Arith(int base) {\n" +
+                "        super();\n" +
+                "        this.base = base;\n" +
+                "    }\n\n" +
+                "    public int sum(int[] values) {\n" +
+                "        int s = base;\n" +
+                "        for (int v : values) {\n" +
+                "            if (v < 0) continue;\n" +
+                "            s += v;\n" +
+                "        }\n" +
+                "        return s;\n" +
+                "    }\n\n" +
+                "    public int sign(int v) {\n" +
+                "        if (v > 0) return 1;\n" +
+                "        else if (v < 0) return -1;\n" +
+                "        return 0;\n" +
+                "    }\n\n" +
+                "    public int divide(int a, int b) {\n" +
+                "        if (b == 0) throw new IllegalArgumentException(\"b\");\n" +
+                "        return a / b;\n" +
+                "    }\n" +
+                "}\n");
+        project.add(TEXT, "package b;\n\n" +
+                "public class Text {\n" +
+                "    public static int vowels(String s) {\n" +
+                "        int count = 0;\n" +
+                "        int i = 0;\n" +
+                "        while (i < s.length()) {\n" +
+                "            switch (s.charAt(i)) {\n" +
+                "                case 'a':\n" +
+                "                case 'e':\n" +
+                "                    count++;\n" +
+                "                case 'i':\n" +
+                "                    count++;\n" +
+                "                    break;\n" +
+                "                default:\n" +
+                "                    break;\n" +
+                "            }\n" +
+                "            i++;\n" +
+                "        }\n" +
+                "        return count;\n" +
+                "    }\n" +
+                "}\n");
+        project.add(MAIN, "package c;\n\n" +
+                "import a.Arith;\n" +
+                "import b.Text;\n\n" +
+                "public class Main {\n" +
+                "    public static int run() {\n" +
+                "        return new Arith(1).sum(new int[]{1, -2, 3}) + Text.vowels(\"aei\");\n" +
+                "    }\n" +
+                "}\n");
+        return project;
+    }
+
+    /**
+     * Adds a source file
+     *
+     * @param path Path of the file relative to the source dir
+     */
+    public TestProject add(String path, String source) throws IOException {
+        return add(SRC, path, source);
+    }
+
+    /**
+     * Adds a source file to a source dir
+     *
+     * @param root Source dir, relative to the project dir
+     * @param path Path of the file relative to the source dir
+     */
+    public TestProject add(String root, String path, String source) throws IOException {
+        FileUtils.writeStringToFile(new File(dir, root + "/" + path), source);
+        return this;
+    }
+
+    public String getDir() {
+        return dir.getAbsolutePath();
+    }
+
+    public String getOutputDir() {
+        return getDir() + "/out";
+    }
+
+    /**
+     * Instrumenter of the project, writing to the output dir. No dependencies are resolved.
+     */
+    public SyringeInstrumenterImpl instrumenter() {
+        SyringeInstrumenterImpl instrumenter = new SyringeInstrumenterImpl(getDir(), SRC, getOutputDir());
+        instrumenter.setUseClassPath(false);
+        return instrumenter;
+    }
+
+    /**
+     * Instrumented source of a file
+     *
+     * @param path Path of the file relative to the source dir
+     */
+    public String output(String path) throws IOException {
+        return FileUtils.readFileToString(new File(getOutputDir() + SRC + "/" + path));
+    }
+
+    /**
+     * Content of a file of the output log dir, such as the ID file
+     */
+    public String log(String name) throws IOException {
+        return FileUtils.readFileToString(new File(getOutputDir() + "/log/" + name));
+    }
+
+    /**
+     * All the files written in the output source dir, sorted by path, each preceded by its path
+     */
+    public String outputs() throws IOException {
+        StringBuilder result = new StringBuilder();
+        for (Map.Entry<String, File> e : sources(new File(getOutputDir() + SRC)).entrySet())
+            result.append("//").append(e.getKey()).append('\n').append(FileUtils.readFileToString(e.getValue()));
+        return result.toString();
+    }
+
+    /**
+     * Java files under a dir, by path relative to the dir
+     */
+    private TreeMap<String, File> sources(File root) {
+        TreeMap<String, File> result = new TreeMap<>();
+        if (!root.isDirectory()) return result;
+        for (Object f : FileUtils.listFiles(root, new String[]{"java"}, true)) {
+            File file = (File) f;
+            result.put(root.toURI().relativize(file.toURI()).getPath(), file);
+        }
+        return result;
+    }
+
+    /**
+     * Compiles the original sources to target/classes, as the build of the project would
+     */
+    public void build() throws IOException {
+        compile(sources(new File(dir, SRC)).values(), new File(dir, "target/classes"), new ArrayList<File>());
+    }
+
+    /**
+     * Compiles the instrumented sources laid over the original ones, since the unmodified units may be left out of
+     * the output. Fails with the errors of the compiler.
+     *
+     * @return A class loader of the compiled classes
+     */
+    public ClassLoader compile() throws IOException {
+        return compile(SRC);
+    }
+
+    /**
+     * Compiles the instrumented sources of a source dir laid over its original ones, against the classes of source
+     * dirs compiled before, as a build compiles the tests against the main classes
+     *
+     * @param root         Source dir, relative to the project dir
+     * @param dependencies Source dirs compiled before
+     * @return A class loader of the classes of the source dir and its dependencies
+     */
+    public ClassLoader compile(String root, String... dependencies) throws IOException {
+        File classes = classes(root);
+        TreeMap<String, File> sources = sources(new File(dir, root));
+        sources.putAll(sources(new File(getOutputDir() + root)));
+        List<File> classpath = new ArrayList<>();
+        for (String d : dependencies) classpath.add(classes(d));
+        compile(sources.values(), classes, classpath);
+        //Once the dirs exist, so their URLs end with a slash
+        List<URL> urls = new ArrayList<>(Arrays.asList(classes.toURI().toURL()));
+        for (File f : classpath) urls.add(f.toURI().toURL());
+        return new URLClassLoader(urls.toArray(new URL[urls.size()]), getClass().getClassLoader());
+    }
+
+    private File classes(String root) {
+        return new File(dir, "classes" + root);
+    }
+
+    /**
+     * Dumps a runtime class of the compiled project to a file of the project, instead of the default file at exit
+     *
+     * @param runtimeClass Name of the runtime class, such as SyringeCounters
+     * @param fileProperty System property giving the file of the dump
+     * @return The content of the dump
+     */
+    public String dump(ClassLoader loader, String runtimeClass, String fileProperty) throws Exception {
+        File file = new File(dir, runtimeClass + ".dump");
+        System.setProperty(fileProperty, file.getAbsolutePath());
+        try {
+            loader.loadClass("fr.inria.diversify.syringe.runtime." + runtimeClass).getMethod("dump").invoke(null);
+        } finally {
+            System.clearProperty(fileProperty);
+        }
+        return FileUtils.readFileToString(file);
+    }
+
+    private void compile(Collection<File> sources, File classes, List<File> classpath) throws IOException {
+        classes.mkdirs();
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager files = compiler.getStandardFileManager(diagnostics, null, null);
+        List<String> options = new ArrayList<>(Arrays.asList("-d", classes.getAbsolutePath(), "-nowarn"));
+        if (!classpath.isEmpty()) {
+            StringBuilder path = new StringBuilder();
+            for (File f : classpath) path.append(path.length() == 0 ? "" : File.pathSeparator).append(f.getAbsolutePath());
+            options.addAll(Arrays.asList("-cp", path.toString()));
+        }
+        try {
+            boolean success = compiler.getTask(null, files, diagnostics, options, null,
+                    files.getJavaFileObjectsFromFiles(sources)).call();
+            if (!success) {
+                StringBuilder errors = new StringBuilder("The sources do not compile:");
+                for (Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics())
+                    errors.append('\n').append(d);
+                throw new AssertionError(errors.toString());
+            }
+        } finally {
+            files.close();
+        }
+    }
+
+    public void delete() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+}
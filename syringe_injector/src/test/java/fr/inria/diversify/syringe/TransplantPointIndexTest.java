@@ -0,0 +1,117 @@
+package fr.inria.diversify.syringe;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TransplantPointIndexTest {
+
+    private static class Point {
+        private final String className;
+        private final int line;
+        private final String source;
+
+        private Point(String className, int line, String source) {
+            this.className = className;
+            this.line = line;
+            this.source = source;
+        }
+    }
+
+    /**
+     * Matches a statement by comparing it with every point, in the order of the lines
+     */
+    private Point bruteForce(List<Point> points, int lineTolerance, double threshold,
+                             String className, int line, String source) {
+        int window = Math.max(lineTolerance - 1, 0);
+        Point result = null;
+        for (Point p : points) {
+            if (!p.className.equals(className) || Math.abs(p.line - line) > window) continue;
+            if (result != null && Math.abs(p.line - line) >= Math.abs(result.line - line)) continue;
+            if (StringSimilarity.CompareStrings(p.source, source) >= threshold) result = p;
+        }
+        return result;
+    }
+
+    /**
+     * Random source over a small alphabet, so letter pairs repeat a lot
+     */
+    private String source(Random random) {
+        StringBuilder result = new StringBuilder();
+        int length = random.nextInt(24);
+        for (int i = 0; i < length; i++) result.append("ab c;".charAt(random.nextInt(5)));
+        return result.toString();
+    }
+
+    /**
+     * Source differing slightly from another one
+     */
+    private String mutate(Random random, String source) {
+        StringBuilder result = new StringBuilder(source);
+        int edits = random.nextInt(3);
+        for (int i = 0; i < edits && result.length() > 0; i++)
+            result.setCharAt(random.nextInt(result.length()), "ab c;".charAt(random.nextInt(5)));
+        if (random.nextBoolean()) result.append(source);
+        return result.toString();
+    }
+
+    @Test
+    public void testMatchEqualsBruteForce() {
+        Random random = new Random(12);
+        for (int round = 0; round < 200; round++) {
+            int lineTolerance = random.nextInt(4);
+            double threshold = 0.3 + 0.7 * random.nextDouble();
+            TransplantPointIndex index = new TransplantPointIndex(lineTolerance, threshold);
+            List<Point> points = new ArrayList<>();
+            for (int i = 0; i < 30; i++) {
+                Point p = new Point(random.nextBoolean() ? "A" : "B", random.nextInt(20), source(random));
+                points.add(p);
+                index.add(p.className, p.line, p.source);
+            }
+            //Stable: the points of a line stay in their order of addition
+            Collections.sort(points, new Comparator<Point>() {
+                @Override
+                public int compare(Point p1, Point p2) {
+                    return Integer.compare(p1.line, p2.line);
+                }
+            });
+
+            for (int i = 0; i < 30; i++) {
+                String className = random.nextBoolean() ? "A" : "B";
+                int line = random.nextInt(20);
+                Point near = points.get(random.nextInt(points.size()));
+                String source = random.nextBoolean() ? mutate(random, near.source) : source(random);
+
+                Point expected = bruteForce(points, lineTolerance, threshold, className, line, source);
+                TransplantPointIndex.Point actual = index.match(className, line, source);
+                if (expected == null) assertNull(actual);
+                else {
+                    assertNotNull(source, actual);
+                    assertEquals(expected.className, actual.getClassName());
+                    assertEquals(expected.line, actual.getLine());
+                    assertEquals(expected.source, actual.getSource());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRepeatedPairsMatch() {
+        //Similar as multisets of pairs, although they share a single distinct pair
+        String point = "abababababababab x";
+        String statement = "abababababababab y";
+        assertTrue(StringSimilarity.CompareStrings(point, statement) > 0.8);
+
+        TransplantPointIndex index = new TransplantPointIndex(2, 0.8);
+        index.add("A", 10, point);
+        assertEquals(point, index.match("A", 11, statement).getSource());
+        assertNull(index.match("A", 12, statement));
+        assertNull(index.match("B", 10, statement));
+    }
+}
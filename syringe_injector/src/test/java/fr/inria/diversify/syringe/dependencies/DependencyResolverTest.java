@@ -0,0 +1,136 @@
+package fr.inria.diversify.syringe.dependencies;
+
+import fr.inria.diversify.syringe.Configuration;
+import fr.inria.diversify.syringe.TestProject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Resolution of the classpath from the local repository and its classpath file
+ */
+public class DependencyResolverTest {
+
+    private static final String JUNIT = "<dependency>\n" +
+            "            <groupId>junit</groupId>\n" +
+            "            <artifactId>junit</artifactId>\n" +
+            "            <version>4.11</version>\n" +
+            "        </dependency>\n";
+
+    private static final String MISSING = "<dependency>\n" +
+            "            <groupId>fr.inria.missing</groupId>\n" +
+            "            <artifactId>nowhere</artifactId>\n" +
+            "            <version>0.0.1</version>\n" +
+            "        </dependency>\n";
+
+    private TestProject project;
+
+    private ClassLoader contextLoader;
+
+    @Before
+    public void setUp() throws Exception {
+        project = new TestProject();
+        contextLoader = Thread.currentThread().getContextClassLoader();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Thread.currentThread().setContextClassLoader(contextLoader);
+        project.delete();
+    }
+
+    private String pom(String... dependencies) throws Exception {
+        StringBuilder sb = new StringBuilder("<project>\n" +
+                "    <modelVersion>4.0.0</modelVersion>\n" +
+                "    <groupId>fr.inria.test</groupId>\n" +
+                "    <artifactId>sample</artifactId>\n" +
+                "    <version>1.0</version>\n" +
+                "    <dependencies>\n");
+        for (String d : dependencies) sb.append("        ").append(d);
+        sb.append("    </dependencies>\n</project>\n");
+        File pom = new File(project.getDir(), "pom.xml");
+        Files.write(pom.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+        return pom.getAbsolutePath();
+    }
+
+    private File classpathFile() {
+        return new File(project.getDir(), "target/" + DependencyResolver.CLASSPATH_FILE);
+    }
+
+    private static List<String> names(List<String> classpath) {
+        List<String> result = new ArrayList<>();
+        for (String s : classpath) result.add(new File(s).getName());
+        Collections.sort(result);
+        return result;
+    }
+
+    @Test
+    public void testOfflineResolution() throws Exception {
+        //The artifacts in the local repository are resolved, the missing ones are left out
+        List<String> cp = new DependencyResolver().resolve(new Configuration(TestProject.SRC), pom(JUNIT, MISSING),
+                Collections.singletonList("/manual/classes"), classpathFile());
+
+        assertEquals("/manual/classes", cp.get(0));
+        assertEquals(Arrays.asList("classes", "hamcrest-core-1.3.jar", "junit-4.11.jar"), names(cp));
+        assertTrue(classpathFile().exists());
+        assertTrue(Thread.currentThread().getContextClassLoader() instanceof URLClassLoader);
+    }
+
+    @Test
+    public void testSamePomReusesTheClasspathFile() throws Exception {
+        Configuration configuration = new Configuration(TestProject.SRC);
+        String pom = pom(JUNIT);
+        new DependencyResolver().resolve(configuration, pom, null, classpathFile());
+
+        //An entry added to the file shows that another resolver reads it instead of resolving again
+        List<String> lines = Files.readAllLines(classpathFile().toPath(), StandardCharsets.UTF_8);
+        lines.add("/from/the/file");
+        Files.write(classpathFile().toPath(), lines, StandardCharsets.UTF_8);
+
+        DependencyResolver resolver = new DependencyResolver();
+        List<String> cp = resolver.resolve(configuration, pom, null, classpathFile());
+        assertEquals(lines.subList(1, lines.size()), cp);
+        //Then the resolver keeps it in memory
+        assertSame(cp, resolver.resolve(configuration, pom, null, classpathFile()));
+    }
+
+    @Test
+    public void testChangedPomIsResolvedAgain() throws Exception {
+        Configuration configuration = new Configuration(TestProject.SRC);
+        DependencyResolver resolver = new DependencyResolver();
+        assertEquals(Collections.<String>emptyList(), resolver.resolve(configuration, pom(), null, classpathFile()));
+        String key = Files.readAllLines(classpathFile().toPath(), StandardCharsets.UTF_8).get(0);
+
+        List<String> cp = resolver.resolve(configuration, pom(JUNIT), null, classpathFile());
+        assertEquals(Arrays.asList("hamcrest-core-1.3.jar", "junit-4.11.jar"), names(cp));
+        List<String> lines = Files.readAllLines(classpathFile().toPath(), StandardCharsets.UTF_8);
+        assertNotEquals(key, lines.get(0));
+        assertEquals(cp, lines.subList(1, lines.size()));
+    }
+
+    @Test
+    public void testClassLoaderIsReplaced() throws Exception {
+        Configuration configuration = new Configuration(TestProject.SRC);
+        DependencyResolver resolver = new DependencyResolver();
+        resolver.resolve(configuration, pom(), null, classpathFile());
+        ClassLoader first = Thread.currentThread().getContextClassLoader();
+        assertSame(contextLoader, first.getParent());
+
+        //A new classpath replaces the loader of the previous one instead of chaining onto it
+        resolver.resolve(configuration, pom(JUNIT), null, classpathFile());
+        ClassLoader second = Thread.currentThread().getContextClassLoader();
+        assertNotSame(first, second);
+        assertSame(contextLoader, second.getParent());
+    }
+}
@@ -0,0 +1,261 @@
+package fr.inria.diversify.syringe.detectors;
+
+import fr.inria.diversify.syringe.IdMap;
+import fr.inria.diversify.syringe.TestProject;
+import fr.inria.diversify.syringe.events.DetectionEvent;
+import fr.inria.diversify.syringe.events.DetectionListener;
+import fr.inria.diversify.syringe.processor.BranchCoverage;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import spoon.Launcher;
+import spoon.reflect.code.CtBreak;
+import spoon.reflect.code.CtContinue;
+import spoon.reflect.code.CtStatement;
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtExecutable;
+import spoon.reflect.declaration.CtNamedElement;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.visitor.filter.TypeFilter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ControlFlowGraphTest {
+
+    private static TestProject project;
+
+    private static CtClass<?> flow;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        project = new TestProject().add("a/Flow.java", "package a;\n\n" +
+                "public class Flow {\n" +
+                "    private int v;\n\n" +
+                "    public Flow() {\n" +
+                "        this(0);\n" +
+                "    }\n\n" +
+                "    public Flow(int v) {\n" +
+                "        super();\n" +
+                "        this.v = v;\n" +
+                "        if (v < 0) this.v = -v;\n" +
+                "    }\n\n" +
+                "    public int ifElse(int a) {\n" +
+                "        int r;\n" +
+                "        if (a > 0) {\n" +
+                "            r = 1;\n" +
+                "        } else if (a < 0) {\n" +
+                "            r = -1;\n" +
+                "        } else {\n" +
+                "            r = 0;\n" +
+                "        }\n" +
+                "        return r;\n" +
+                "    }\n\n" +
+                "    public int fallthrough(int a) {\n" +
+                "        int r = 0;\n" +
+                "        switch (a) {\n" +
+                "            case 0:\n" +
+                "                r++;\n" +
+                "            case 1:\n" +
+                "                r++;\n" +
+                "                break;\n" +
+                "            case 2:\n" +
+                "            case 3:\n" +
+                "                r += 2;\n" +
+                "            default:\n" +
+                "                r--;\n" +
+                "        }\n" +
+                "        return r;\n" +
+                "    }\n\n" +
+                "    public int labeled(int[][] m) {\n" +
+                "        int s = 0;\n" +
+                "        outer:\n" +
+                "        for (int i = 0; i < m.length; i++) {\n" +
+                "            for (int j = 0; j < m[i].length; j++) {\n" +
+                "                if (m[i][j] < 0) continue outer;\n" +
+                "                if (m[i][j] == 0) break outer;\n" +
+                "                if (m[i][j] > 9) continue;\n" +
+                "                s += m[i][j];\n" +
+                "            }\n" +
+                "        }\n" +
+                "        return s;\n" +
+                "    }\n\n" +
+                "    public int doWhile(int a) {\n" +
+                "        int n = 0;\n" +
+                "        do {\n" +
+                "            a /= 2;\n" +
+                "            n++;\n" +
+                "        } while (a > 0);\n" +
+                "        return n;\n" +
+                "    }\n\n" +
+                "    public int earlyReturn(int a) {\n" +
+                "        if (a == 0) return 0;\n" +
+                "        for (int i = 0; i < a; i++) {\n" +
+                "            if (i * i > a) return i;\n" +
+                "        }\n" +
+                "        return -1;\n" +
+                "    }\n" +
+                "}\n");
+        Launcher launcher = new Launcher();
+        launcher.getEnvironment().setNoClasspath(true);
+        launcher.addInputResource(project.getDir() + TestProject.SRC);
+        launcher.buildModel();
+        Factory factory = launcher.getFactory();
+        flow = factory.Class().get("a.Flow");
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        project.delete();
+    }
+
+    /**
+     * Executable of the Flow class, by name and number of parameters
+     */
+    private CtExecutable<?> executable(String name, int parameters) {
+        for (CtExecutable<?> e : flow.getElements(new TypeFilter<>(CtExecutable.class))) {
+            String simpleName = e instanceof CtNamedElement ? ((CtNamedElement) e).getSimpleName() : "";
+            if (simpleName.equals(name) && e.getParameters().size() == parameters) return e;
+        }
+        throw new AssertionError(name);
+    }
+
+    /**
+     * Builds the graph of a method, checks the number of probes and the counts derived from simulated probe hits
+     *
+     * @return The graph
+     */
+    private ControlFlowGraph check(String name, int parameters) {
+        CtExecutable<?> executable = executable(name, parameters);
+        ControlFlowGraph graph = ControlFlowGraph.build(executable.getBody());
+        assertNotNull(name, graph);
+        assertFalse(graph.isExceptional());
+
+        //One probe per edge outside a spanning tree of the connected graph, each hosted by a statement
+        int probes = 0;
+        for (ControlFlowGraph.Edge e : graph.getEdges()) {
+            if (!e.isChord()) continue;
+            assertNotNull(name + " edge " + e.getIndex(), e.getHost());
+            probes++;
+        }
+        assertEquals(name, graph.getEdges().size() - graph.getNodeCount() + 1, probes);
+
+        //The probes and the graph as the detector registers them
+        BranchCoverageDetector detector = new BranchCoverageDetector();
+        IdMap ids = new IdMap();
+        detector.setIdMap(ids);
+        final List<DetectionEvent> events = new ArrayList<>();
+        detector.addListener(BranchCoverageDetector.BRANCH_PROBE, new DetectionListener() {
+            @Override
+            public void listen(DetectionEvent data) {
+                events.add(data);
+            }
+        });
+        detector.process(executable);
+        assertEquals(probes, events.size());
+        HashMap<Integer, String> idMap = new HashMap<>();
+        for (Map.Entry<String, Integer> e : ids.entrySet()) idMap.put(e.getValue(), e.getKey());
+
+        BranchCoverage coverage = new BranchCoverage(idMap, null);
+        assertEquals(1, coverage.getMethods().size());
+        BranchCoverage.MethodCoverage method = coverage.getMethods().values().iterator().next();
+        assertEquals(graph.getNodeCount(), method.getNodeCount());
+        assertEquals(probes, method.getProbeCount());
+
+        long[] counts = simulate(graph, new Random(name.hashCode()), 200);
+        for (int i = 0; i < counts.length; i++)
+            if (method.getProbe(i) >= 0) coverage.addHits(method.getProbe(i), counts[i]);
+        coverage.reconstruct();
+        assertEquals(new ArrayList<String>(), coverage.getErrors());
+        for (int i = 0; i < counts.length; i++) assertEquals(name + " edge " + i, counts[i], method.getCount(i));
+        assertEquals(200, method.getNodeCount(ControlFlowGraph.ENTRY));
+        return graph;
+    }
+
+    /**
+     * Executions of the edges of a graph over random paths from the entry to the exit
+     *
+     * @param calls Number of paths
+     */
+    private long[] simulate(ControlFlowGraph graph, Random random, int calls) {
+        List<ControlFlowGraph.Edge> edges = graph.getEdges();
+        long[] counts = new long[edges.size()];
+        for (int call = 0; call < calls; call++) {
+            int node = ControlFlowGraph.ENTRY;
+            for (int step = 0; node != ControlFlowGraph.EXIT; step++) {
+                assertTrue("Endless path", step < 10000);
+                List<ControlFlowGraph.Edge> out = new ArrayList<>();
+                for (ControlFlowGraph.Edge e : edges)
+                    if (e.getSource() == node && e.getTarget() != ControlFlowGraph.ENTRY) out.add(e);
+                assertFalse("Dead end at node " + node, out.isEmpty());
+                ControlFlowGraph.Edge e = out.get(random.nextInt(out.size()));
+                counts[e.getIndex()]++;
+                node = e.getTarget();
+            }
+            //Back to the entry through the edge closing the graph
+            for (ControlFlowGraph.Edge e : edges)
+                if (e.getSource() == ControlFlowGraph.EXIT && e.getTarget() == ControlFlowGraph.ENTRY)
+                    counts[e.getIndex()]++;
+        }
+        return counts;
+    }
+
+    /**
+     * Target nodes of the jumps of the statements of a type. A jump statement also hosts the edge entering it when it
+     * is the first statement of a branch, its own edge comes after.
+     */
+    private List<Integer> jumps(ControlFlowGraph graph, Class<?> hostType) {
+        Map<CtStatement, Integer> result = new LinkedHashMap<>();
+        for (ControlFlowGraph.Edge e : graph.getEdges())
+            if (hostType.isInstance(e.getHost())) result.put(e.getHost(), e.getTarget());
+        return new ArrayList<>(result.values());
+    }
+
+    @Test
+    public void testIfElse() {
+        check("ifElse", 1);
+    }
+
+    @Test
+    public void testSwitchFallthrough() {
+        ControlFlowGraph graph = check("fallthrough", 1);
+        //The first case falls into the second, the empty case 2 shares the head of case 3, which falls into default
+        assertEquals(1, jumps(graph, CtBreak.class).size());
+    }
+
+    @Test
+    public void testLabeledBreakAndContinue() {
+        ControlFlowGraph graph = check("labeled", 1);
+        List<Integer> continues = jumps(graph, CtContinue.class);
+        assertEquals(2, continues.size());
+        //Each continue jumps to the condition of its own loop
+        assertNotEquals(continues.get(0), continues.get(1));
+        assertEquals(1, jumps(graph, CtBreak.class).size());
+    }
+
+    @Test
+    public void testDoWhile() {
+        check("doWhile", 1);
+    }
+
+    @Test
+    public void testEarlyReturn() {
+        check("earlyReturn", 1);
+    }
+
+    @Test
+    public void testConstructorCall() {
+        ControlFlowGraph graph = check("<init>", 1);
+        //No probe before super()
+        for (ControlFlowGraph.Edge e : graph.getEdges())
+            assertFalse(e.getHost() != null && e.getHost().toString().startsWith("super("));
+        //Nothing to probe after this()
+        assertNull(ControlFlowGraph.build(executable("<init>", 0).getBody()));
+    }
+}
@@ -3,13 +3,16 @@ package fr.inria.diversify.syringe.detectors;
 import fr.inria.diversify.syringe.injectors.GenericInjector;
 import org.junit.Test;
 
+import static fr.inria.diversify.syringe.detectors.BranchCoverageDetector.BRANCH_PROBE;
 import static fr.inria.diversify.syringe.detectors.IfDetector.ELSE_BODY;
 import static fr.inria.diversify.syringe.detectors.IfDetector.IF_BODY;
 import static fr.inria.diversify.syringe.detectors.IfDetector.IF_DETECTED;
 import static fr.inria.diversify.syringe.detectors.LoopDetect.LOOP_BLOCK;
 import static fr.inria.diversify.syringe.detectors.LoopDetect.LOOP_DETECTED;
+import static fr.inria.diversify.syringe.detectors.LoopDetect.LOOP_TRIPS;
 import static fr.inria.diversify.syringe.detectors.MethodDetect.METHOD_BEGIN;
 import static fr.inria.diversify.syringe.detectors.MethodDetect.METHOD_END;
+import static fr.inria.diversify.syringe.detectors.MethodDetect.METHOD_TIMED;
 import static junit.framework.TestCase.assertEquals;
 
 /**
@@ -27,7 +30,7 @@ public class ListenerSupportTest {
 
     @Test
     public void loopDetect_ListenersSupport() {
-        testListeners(new LoopDetect(), LOOP_DETECTED, LOOP_BLOCK);
+        testListeners(new LoopDetect(), LOOP_DETECTED, LOOP_BLOCK, LOOP_TRIPS);
     }
 
     @Test
@@ -35,13 +38,23 @@ public class ListenerSupportTest {
         testListeners(new TestJunit4Detect(), METHOD_BEGIN, METHOD_END);
     }
 
+    @Test
+    public void junit5Detect_ListenersSupport() {
+        testListeners(new TestJunit5Detect(), METHOD_BEGIN, METHOD_END);
+    }
+
     @Test
     public void methodDetect_ListenersSupport() {
-        testListeners(new MethodDetect(), METHOD_BEGIN, METHOD_END);
+        testListeners(new MethodDetect(), METHOD_BEGIN, METHOD_END, METHOD_TIMED);
     }
 
     @Test
     public void ifDetect_ListenersSupport() {
         testListeners(new IfDetector(), IF_BODY, ELSE_BODY, IF_DETECTED);
     }
+
+    @Test
+    public void branchCoverageDetect_ListenersSupport() {
+        testListeners(new BranchCoverageDetector(), BRANCH_PROBE);
+    }
 }
@@ -1,14 +1,21 @@
 package fr.inria.diversify.syringe.detectors;
 
+import fr.inria.diversify.syringe.Configuration;
+import fr.inria.diversify.syringe.SyringeInstrumenterImpl;
+import fr.inria.diversify.syringe.TestProject;
 import fr.inria.diversify.syringe.events.BlockEvent;
 import fr.inria.diversify.syringe.events.DetectionEvent;
 import fr.inria.diversify.syringe.events.DetectionListener;
+import fr.inria.diversify.syringe.injectors.GenericInjector;
 import org.junit.Before;
 import org.junit.Test;
 import spoon.reflect.code.CtInvocation;
 import spoon.reflect.code.CtLoop;
 import spoon.reflect.code.CtStatement;
 
+import java.util.Arrays;
+import java.util.List;
+
 import static org.junit.Assert.*;
 
 /**
@@ -43,6 +50,101 @@ public class LoopDetectTest extends DetectorTestCase {
         assertEquals(19, eventLaunched);
     }
 
+    /**
+     * Instruments the loops of a project to record their trips, then compiles it
+     *
+     * @return A class loader of the compiled project
+     */
+    private ClassLoader trips(TestProject project) throws Exception {
+        project.add("t/Trips.java", "package t;\n\n" +
+                "public class Trips {\n" +
+                "    public static final java.util.List<Long> TRIPS = new java.util.ArrayList<>();\n\n" +
+                "    public static void record(long trips) {\n" +
+                "        TRIPS.add(trips);\n" +
+                "    }\n" +
+                "}\n");
+        Configuration configuration = new Configuration(TestProject.SRC);
+        configuration.addDetector(new LoopDetect());
+        configuration.addInjector(LoopDetect.LOOP_TRIPS,
+                new GenericInjector("t.Trips.record(%trips%)", null, GenericInjector.InjectionPosition.FIRST));
+        SyringeInstrumenterImpl instrumenter = project.instrumenter();
+        instrumenter.instrument(configuration);
+        return project.compile();
+    }
+
+    /**
+     * Calls a static method of the Loops class, then returns the trips recorded
+     */
+    private List<?> call(ClassLoader loader, String method, Class<?>[] types, Object... args) throws Exception {
+        List<?> trips = (List<?>) loader.loadClass("t.Trips").getField("TRIPS").get(null);
+        trips.clear();
+        loader.loadClass("d.Loops").getMethod(method, types).invoke(null, args);
+        return trips;
+    }
+
+    @Test
+    public void testTripsCounter() throws Exception {
+        TestProject project = new TestProject();
+        try {
+            project.add("d/Loops.java", "package d;\n\n" +
+                    "public class Loops {\n" +
+                    "    public static int breakOut(int n) {\n" +
+                    "        int i = 0;\n" +
+                    "        while (true) {\n" +
+                    "            if (i == n) break;\n" +
+                    "            i++;\n" +
+                    "        }\n" +
+                    "        return i;\n" +
+                    "    }\n\n" +
+                    "    public static int returnOut(int[] a, int v) {\n" +
+                    "        for (int i = 0; i < a.length; i++) if (a[i] == v) return i;\n" +
+                    "        return -1;\n" +
+                    "    }\n\n" +
+                    "    public static int labeled(int n) {\n" +
+                    "        int s = 0;\n" +
+                    "        outer:\n" +
+                    "        for (int i = 0; i < n; i++) {\n" +
+                    "            for (int j = 0; j < n; j++) {\n" +
+                    "                if (j > i) continue outer;\n" +
+                    "                if (i + j > 4) break outer;\n" +
+                    "                s++;\n" +
+                    "            }\n" +
+                    "        }\n" +
+                    "        return s;\n" +
+                    "    }\n" +
+                    "}\n");
+            ClassLoader loader = trips(project);
+            String output = project.output("d/Loops.java");
+
+            //A long counter declared before a try wrapping the loop, counting in the body and recording in the finally
+            assertTrue(output, output.contains("long __syringeTrips0 = 0;\n" +
+                    "        try {\n" +
+                    "            while (true) {\n" +
+                    "                __syringeTrips0++;\n"));
+            assertTrue(output, output.contains("} finally {\n" +
+                    "            t.Trips.record(__syringeTrips0);\n" +
+                    "        }\n" +
+                    "        return i;"));
+            assertFalse(output, output.contains("int __syringeTrips"));
+            //The label stays on the loop, inside the try
+            assertTrue(output, output.contains("try {\n            outer : for"));
+
+            Class<?>[] intArg = {int.class};
+            //Left through a break, then a return: the finally records the trips once
+            assertEquals(Arrays.asList(4L), call(loader, "breakOut", intArg, 3));
+            assertEquals(Arrays.asList(2L), call(loader, "returnOut", new Class<?>[]{int[].class, int.class},
+                    new int[]{5, 6, 7}, 6));
+            assertEquals(Arrays.asList(0L), call(loader, "returnOut", new Class<?>[]{int[].class, int.class},
+                    new int[0], 6));
+            //The inner loop is left by continue outer twice, then completes. The outer loop completes
+            assertEquals(Arrays.asList(2L, 3L, 3L, 3L), call(loader, "labeled", intArg, 3));
+            //Then left by break outer: both loops record once more
+            assertEquals(Arrays.asList(2L, 3L, 4L, 3L, 4L), call(loader, "labeled", intArg, 5));
+        } finally {
+            project.delete();
+        }
+    }
+
     class StatementListener implements DetectionListener {
         @Override
         public void listen(DetectionEvent data) {
@@ -0,0 +1,140 @@
+package fr.inria.diversify.syringe.detectors;
+
+import fr.inria.diversify.syringe.DetectorScanner;
+import fr.inria.diversify.syringe.TestProject;
+import fr.inria.diversify.syringe.events.DetectionEvent;
+import fr.inria.diversify.syringe.events.DetectionListener;
+import fr.inria.diversify.syringe.signature.MethodSignature;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import spoon.reflect.declaration.CtMethod;
+import spoon.reflect.declaration.CtType;
+import spoon.reflect.factory.Factory;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Selection of the elements to detect from the hits of a previous run
+ */
+public class ProfileFilterTest {
+
+    private TestProject project;
+
+    private Factory factory;
+
+    private Map<String, Long> hits;
+
+    @Before
+    public void setUp() throws Exception {
+        project = TestProject.sample();
+        factory = TestIndexTest.model(project);
+        //sum and sign tie, vowels is not in the profile
+        hits = new HashMap<>();
+        hits.put(signature("a.Arith", "sum"), 10L);
+        hits.put(signature("a.Arith", "sign"), 10L);
+        hits.put(signature("a.Arith", "divide"), 3L);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        project.delete();
+    }
+
+    private CtMethod<?> method(String type, String name) {
+        return factory.Type().get(type).getMethodsByName(name).get(0);
+    }
+
+    private String signature(String type, String name) {
+        return new MethodSignature().getSignature(method(type, name));
+    }
+
+    /**
+     * Names of the methods of the sample accepted by a filter
+     */
+    private List<String> accepted(ProfileFilter filter) {
+        List<String> result = new ArrayList<>();
+        for (String name : new String[]{"sum", "sign", "divide"})
+            if (filter.accept(method("a.Arith", name).getBody())) result.add(name);
+        if (filter.accept(method("b.Text", "vowels").getBody())) result.add("vowels");
+        return result;
+    }
+
+    @Test
+    public void testCalledLessThan() {
+        assertEquals(Arrays.asList("divide", "vowels"), accepted(ProfileFilter.calledLessThan(hits, 10)));
+        assertEquals(Arrays.asList("sum", "sign", "divide", "vowels"),
+                accepted(ProfileFilter.calledLessThan(hits, 11)));
+        assertEquals(Collections.emptyList(), accepted(ProfileFilter.calledLessThan(hits, 0)));
+    }
+
+    @Test
+    public void testHottest() {
+        //Ties are broken by signature, so the filter does not depend on the order of the map
+        assertEquals(Arrays.asList("sign"), accepted(ProfileFilter.hottest(hits, 1)));
+        assertEquals(Arrays.asList("sum", "sign"), accepted(ProfileFilter.hottest(hits, 2)));
+        assertEquals(Arrays.asList("sum", "sign", "divide"), accepted(ProfileFilter.hottest(hits, 3)));
+        //More than the profile: the methods out of the profile are not hot
+        assertEquals(Arrays.asList("sum", "sign", "divide"), accepted(ProfileFilter.hottest(hits, 10)));
+        assertEquals(Collections.emptyList(), accepted(ProfileFilter.hottest(hits, 0)));
+    }
+
+    @Test
+    public void testSettingsDependOnTheProfile() {
+        assertEquals(ProfileFilter.hottest(hits, 2).getSettings(),
+                ProfileFilter.hottest(new HashMap<>(hits), 2).getSettings());
+        assertNotEquals(ProfileFilter.hottest(hits, 2).getSettings(), ProfileFilter.hottest(hits, 1).getSettings());
+        Map<String, Long> other = new HashMap<>(hits);
+        other.put(signature("a.Arith", "divide"), 4L);
+        assertNotEquals(ProfileFilter.hottest(hits, 2).getSettings(), ProfileFilter.hottest(other, 2).getSettings());
+    }
+
+    @Test
+    public void testReadProfile() throws Exception {
+        File dir = new File(project.getDir());
+        Files.write(new File(dir, "id.map").toPath(), Arrays.asList(
+                "0 " + signature("a.Arith", "sum"), "1 " + signature("a.Arith", "sign")), StandardCharsets.UTF_8);
+        Files.write(new File(dir, "run.log").toPath(), Arrays.asList("M;1;0", "M;2;1", "B;3;1"),
+                StandardCharsets.UTF_8);
+        Files.write(new File(dir, "counters").toPath(), Arrays.asList("0 7", "1 2"), StandardCharsets.UTF_8);
+
+        Map<String, Long> expected = new HashMap<>();
+        expected.put(signature("a.Arith", "sum"), 1L);
+        expected.put(signature("a.Arith", "sign"), 1L);
+        assertEquals(expected, ProfileFilter.readHits(dir + "/id.map", dir.getPath(), "M"));
+
+        expected.put(signature("a.Arith", "sum"), 7L);
+        expected.put(signature("a.Arith", "sign"), 2L);
+        assertEquals(expected, ProfileFilter.readCounters(dir + "/id.map", dir + "/counters"));
+    }
+
+    @Test
+    public void testFilteredDetectorSkipsElements() {
+        final List<String> detected = new ArrayList<>();
+        IfDetector ifs = new IfDetector();
+        ifs.addListener(IfDetector.IF_DETECTED, new DetectionListener() {
+            @Override
+            public void listen(DetectionEvent data) {
+                detected.add(data.getDetected().getParent(CtMethod.class).getSimpleName());
+            }
+        });
+        DetectorScanner scanner = new DetectorScanner(Collections.<Detector>singletonList(ifs));
+        for (CtType<?> t : factory.Type().getAll()) scanner.scan(t);
+        assertTrue(detected.containsAll(Arrays.asList("sum", "sign", "divide")));
+
+        detected.clear();
+        ifs.setFilter(ProfileFilter.hottest(hits, 1));
+        for (CtType<?> t : factory.Type().getAll()) scanner.scan(t);
+        assertEquals(Arrays.asList("sign", "sign"), detected);
+    }
+}
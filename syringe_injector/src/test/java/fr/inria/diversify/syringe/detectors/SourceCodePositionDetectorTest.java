@@ -0,0 +1,143 @@
+package fr.inria.diversify.syringe.detectors;
+
+import fr.inria.diversify.syringe.CodeFragmentEqualPrinter;
+import fr.inria.diversify.syringe.TestProject;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import spoon.reflect.code.CtStatement;
+import spoon.reflect.declaration.CtElement;
+import spoon.reflect.declaration.CtType;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.visitor.filter.TypeFilter;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Exact matching of the transplant points, rejecting the statements by class and line before printing them
+ */
+public class SourceCodePositionDetectorTest {
+
+    /**
+     * Keeps the statements printed by the detector
+     */
+    private static class PrintRecorder extends SourceCodePositionDetector {
+        private final List<CtStatement> printed = new ArrayList<>();
+
+        private PrintRecorder(JSONArray persistence) {
+            super(persistence, 0);
+        }
+
+        @Override
+        protected String print(CtStatement element) {
+            printed.add(element);
+            return super.print(element);
+        }
+    }
+
+    private TestProject project;
+
+    private Factory factory;
+
+    @Before
+    public void setUp() throws Exception {
+        project = TestProject.sample();
+        factory = TestIndexTest.model(project);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        project.delete();
+    }
+
+    private List<CtStatement> statements(CtElement element) {
+        return element.getElements(new TypeFilter<>(CtStatement.class));
+    }
+
+    private List<CtStatement> statements() {
+        List<CtStatement> result = new ArrayList<>();
+        for (CtType<?> t : factory.Type().getAll()) result.addAll(statements(t));
+        return result;
+    }
+
+    private String print(CtStatement statement) {
+        CodeFragmentEqualPrinter pp = new CodeFragmentEqualPrinter(factory.getEnvironment());
+        statement.accept(pp);
+        return pp.toString();
+    }
+
+    private static JSONObject point(String position, String source) throws Exception {
+        JSONObject result = new JSONObject();
+        result.put("position", position);
+        result.put("sourceCode", source);
+        return result;
+    }
+
+    /**
+     * The statements of sign as transplant points, a point of sum with another source and a point of a missing class
+     */
+    private JSONArray persistence() throws Exception {
+        JSONArray result = new JSONArray();
+        CtType<?> arith = factory.Type().get("a.Arith");
+        for (CtStatement s : statements(arith.getMethodsByName("sign").get(0)))
+            result.put(point("a.Arith:" + s.getPosition().getLine(), print(s)));
+        CtStatement sum = arith.getMethodsByName("sum").get(0).getBody().getStatements().get(0);
+        result.put(point("a.Arith:" + sum.getPosition().getLine(), "int s = 0"));
+        result.put(point("z.Gone:3", "return 0"));
+        return result;
+    }
+
+    /**
+     * isTP as it was before the line tables: every statement is printed and looked up by position
+     */
+    private boolean printAndLookUp(JSONArray persistence, CtStatement statement) throws Exception {
+        String pos = statement.getPosition().getCompilationUnit().getMainType().getQualifiedName() + ":" +
+                statement.getPosition().getLine();
+        String source = print(statement);
+        for (int i = 0; i < persistence.length(); i++) {
+            JSONObject o = persistence.getJSONObject(i);
+            if (o.getString("position").equals(pos) && o.getString("sourceCode").equals(source)) return true;
+        }
+        return false;
+    }
+
+    @Test
+    public void testSameMatchesAsPrintingEveryStatement() throws Exception {
+        JSONArray persistence = persistence();
+        SourceCodePositionDetector detector = new SourceCodePositionDetector(persistence, 0);
+        detector.setFactory(factory);
+
+        List<CtStatement> expected = new ArrayList<>();
+        List<CtStatement> actual = new ArrayList<>();
+        for (CtStatement s : statements()) {
+            if (s.getPosition() == null || s.getPosition().getCompilationUnit() == null) continue;
+            if (printAndLookUp(persistence, s)) expected.add(s);
+            if (detector.isTP(s)) actual.add(s);
+        }
+        assertEquals(statements(factory.Type().get("a.Arith").getMethodsByName("sign").get(0)).size(),
+                expected.size());
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testStatementsOffTheTableAreNotPrinted() throws Exception {
+        PrintRecorder detector = new PrintRecorder(persistence());
+        detector.setFactory(factory);
+        List<CtStatement> statements = statements();
+        for (CtStatement s : statements) detector.isTP(s);
+
+        HashSet<Integer> lines = new HashSet<>(detector.getLineTables().get("a.Arith").keySet());
+        assertFalse(detector.printed.isEmpty());
+        assertTrue(detector.printed.size() < statements.size());
+        for (CtStatement s : detector.printed) {
+            assertEquals("a.Arith", s.getPosition().getCompilationUnit().getMainType().getQualifiedName());
+            assertTrue(lines.contains(s.getPosition().getLine()));
+        }
+    }
+}
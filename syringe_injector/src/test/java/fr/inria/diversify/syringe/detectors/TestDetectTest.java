@@ -1,6 +1,22 @@
 package fr.inria.diversify.syringe.detectors;
 
+import fr.inria.diversify.syringe.DetectorScanner;
+import fr.inria.diversify.syringe.TestProject;
+import fr.inria.diversify.syringe.events.DetectionEvent;
+import fr.inria.diversify.syringe.events.DetectionListener;
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
+import spoon.reflect.declaration.CtExecutable;
+import spoon.reflect.declaration.CtNamedElement;
+import spoon.reflect.declaration.CtType;
+import spoon.reflect.factory.Factory;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
@@ -9,8 +25,139 @@ import static org.junit.Assert.*;
  */
 public class TestDetectTest {
 
+    private TestProject project;
+
+    @Before
+    public void setUp() throws Exception {
+        project = new TestProject()
+                .add("t/Base.java", "package t;\n\n" +
+                        "public class Base extends junit.framework.TestCase {\n" +
+                        "}\n")
+                .add("t/J3.java", "package t;\n\n" +
+                        "public class J3 extends Base {\n" +
+                        "    public void testSum() {\n" +
+                        "        int x = 1;\n" +
+                        "    }\n\n" +
+                        "    public void testEmpty() {\n" +
+                        "    }\n\n" +
+                        "    public void helper() {\n" +
+                        "        int x = 1;\n" +
+                        "    }\n" +
+                        "}\n")
+                .add("t/NotJ3.java", "package t;\n\n" +
+                        "public class NotJ3 {\n" +
+                        "    public void testSum() {\n" +
+                        "        int x = 1;\n" +
+                        "    }\n" +
+                        "}\n")
+                .add("t/Unknown.java", "package t;\n\n" +
+                        "public class Unknown extends missing.Parent {\n" +
+                        "    public void testSum() {\n" +
+                        "        int x = 1;\n" +
+                        "    }\n" +
+                        "}\n")
+                .add("t/J4.java", "package t;\n\n" +
+                        "import org.junit.Before;\n" +
+                        "import org.junit.Test;\n\n" +
+                        "public class J4 {\n" +
+                        "    @Before\n" +
+                        "    public void setUp() {\n" +
+                        "        int x = 1;\n" +
+                        "    }\n\n" +
+                        "    @Test\n" +
+                        "    public void sum() {\n" +
+                        "        int x = 1;\n" +
+                        "    }\n\n" +
+                        "    @Deprecated\n" +
+                        "    public void old() {\n" +
+                        "        int x = 1;\n" +
+                        "    }\n" +
+                        "}\n")
+                .add("t/J5.java", "package t;\n\n" +
+                        "import org.junit.jupiter.api.BeforeEach;\n" +
+                        "import org.junit.jupiter.api.Test;\n" +
+                        "import org.junit.jupiter.params.ParameterizedTest;\n\n" +
+                        "public class J5 {\n" +
+                        "    @BeforeEach\n" +
+                        "    void setUp() {\n" +
+                        "        int x = 1;\n" +
+                        "    }\n\n" +
+                        "    @Test\n" +
+                        "    void sum() {\n" +
+                        "        int x = 1;\n" +
+                        "    }\n\n" +
+                        "    @ParameterizedTest\n" +
+                        "    void each(int v) {\n" +
+                        "        int x = v;\n" +
+                        "    }\n\n" +
+                        "    @Test\n" +
+                        "    void empty() {\n" +
+                        "    }\n" +
+                        "}\n");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        project.delete();
+    }
+
+    /**
+     * Scans a model with a detector
+     *
+     * @return Type and name of the executables detected
+     */
+    private List<String> detect(MethodDetect detector, Factory factory) {
+        final List<String> result = new ArrayList<>();
+        detector.addListener(MethodDetect.METHOD_BEGIN, new DetectionListener() {
+            @Override
+            public void listen(DetectionEvent data) {
+                CtExecutable<?> e = data.getDetected().getParent(CtExecutable.class);
+                result.add(e.getParent(CtType.class).getSimpleName() + "." + ((CtNamedElement) e).getSimpleName());
+            }
+        });
+        detector.setFactory(factory);
+        detector.init();
+        DetectorScanner scanner = new DetectorScanner(Collections.<Detector>singletonList(detector));
+        for (CtType<?> t : factory.Type().getAll()) scanner.scan(t);
+        detector.processingDone();
+        Collections.sort(result);
+        return result;
+    }
+
     @Test
     public void testProcess() throws Exception {
 //        fail();
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testJunit3() {
+        //Named test in a TestCase, or in a class whose hierarchy is not known
+        assertEquals(Arrays.asList("J3.testSum", "Unknown.testSum"),
+                detect(new TestJunit3Detect(), TestIndexTest.model(project)));
+    }
+
+    @Test
+    public void testJunit4() {
+        assertEquals(Arrays.asList("J4.setUp", "J4.sum"), detect(new TestJunit4Detect(), TestIndexTest.model(project)));
+    }
+
+    @Test
+    public void testJunit5() {
+        assertEquals(Arrays.asList("J5.each", "J5.setUp", "J5.sum"),
+                detect(new TestJunit5Detect(), TestIndexTest.model(project)));
+    }
+
+    @Test
+    public void testModelsAreReleased() {
+        TestJunit4Detect detector = new TestJunit4Detect();
+        Factory factory = TestIndexTest.model(project);
+        assertEquals(2, detect(detector, factory).size());
+        WeakReference<Factory> released = new WeakReference<>(factory);
+        factory = null;
+
+        //The detector processes another model, keeping nothing of the first one
+        assertEquals(2, detect(detector, TestIndexTest.model(project)).size());
+        for (int i = 0; i < 20 && released.get() != null; i++) System.gc();
+        assertNull(released.get());
+    }
+}
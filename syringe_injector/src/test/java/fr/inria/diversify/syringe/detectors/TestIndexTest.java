@@ -0,0 +1,110 @@
+package fr.inria.diversify.syringe.detectors;
+
+import fr.inria.diversify.syringe.TestProject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import spoon.Launcher;
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtExecutable;
+import spoon.reflect.declaration.CtMethod;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.visitor.filter.TypeFilter;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+public class TestIndexTest {
+
+    private TestProject project;
+
+    @Before
+    public void setUp() throws Exception {
+        project = new TestProject()
+                .add("t/Base.java", "package t;\n\n" +
+                        "public class Base extends junit.framework.TestCase {\n" +
+                        "}\n")
+                .add("t/Sub.java", "package t;\n\n" +
+                        "public class Sub extends Base implements Runnable {\n" +
+                        "    @org.junit.Test\n" +
+                        "    @Deprecated\n" +
+                        "    public void run() {\n" +
+                        "        new Object() {\n" +
+                        "            @org.junit.After\n" +
+                        "            public void inner() {\n" +
+                        "            }\n" +
+                        "        };\n" +
+                        "    }\n\n" +
+                        "    public void helper() {\n" +
+                        "    }\n" +
+                        "}\n")
+                .add("t/Unknown.java", "package t;\n\n" +
+                        "public class Unknown extends missing.Parent {\n" +
+                        "}\n");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        project.delete();
+    }
+
+    /**
+     * Builds the model of the project without classpath
+     */
+    static Factory model(TestProject project) {
+        Launcher launcher = new Launcher();
+        launcher.getEnvironment().setNoClasspath(true);
+        launcher.addInputResource(project.getDir() + TestProject.SRC);
+        launcher.buildModel();
+        return launcher.getFactory();
+    }
+
+    @Test
+    public void testAncestors() {
+        Factory factory = model(project);
+        TestIndex index = new TestIndex(factory);
+        CtClass<?> sub = factory.Class().get("t.Sub");
+        assertTrue(index.getAncestors(sub.getReference()).containsAll(Arrays.asList(
+                "t.Sub", "t.Base", "junit.framework.TestCase", "junit.framework.Assert", "java.lang.Runnable")));
+        assertFalse(index.isUnresolved(sub.getReference()));
+
+        CtClass<?> unknown = factory.Class().get("t.Unknown");
+        assertEquals(new HashSet<>(Arrays.asList("t.Unknown", "missing.Parent")),
+                index.getAncestors(unknown.getReference()));
+        assertTrue(index.isUnresolved(unknown.getReference()));
+    }
+
+    @Test
+    public void testAnnotations() {
+        Factory factory = model(project);
+        TestIndex index = new TestIndex(factory);
+        CtMethod<?> run = factory.Class().get("t.Sub").getMethodsByName("run").get(0);
+        assertEquals(new HashSet<>(Arrays.asList("org.junit.Test", "java.lang.Deprecated")), index.getAnnotations(run));
+        assertTrue(index.isAnnotated(run, Collections.singleton("org.junit.Test")));
+        assertFalse(index.isAnnotated(run, Collections.singleton("org.junit.Before")));
+
+        //The method of the anonymous class is not indexed, but resolved when asked for
+        CtExecutable<?> inner = null;
+        for (CtMethod<?> m : run.getElements(new TypeFilter<>(CtMethod.class)))
+            if (m.getSimpleName().equals("inner")) inner = m;
+        assertNotNull(inner);
+        assertEquals(Collections.singleton("org.junit.After"), index.getAnnotations(inner));
+        CtMethod<?> helper = factory.Class().get("t.Sub").getMethodsByName("helper").get(0);
+        assertEquals(Collections.emptySet(), index.getAnnotations(helper));
+    }
+
+    @Test
+    public void testOneIndexPerModel() {
+        Factory factory = model(project);
+        CtClass<?> sub = factory.Class().get("t.Sub");
+        TestIndex index = TestIndex.of(null, sub);
+        assertSame(index, TestIndex.of(index, factory.Class().get("t.Base")));
+
+        //Another model gets its own index
+        CtClass<?> other = model(project).Class().get("t.Sub");
+        assertNotSame(index, TestIndex.of(index, other));
+    }
+}
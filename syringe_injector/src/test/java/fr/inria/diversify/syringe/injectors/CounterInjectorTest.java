@@ -0,0 +1,72 @@
+package fr.inria.diversify.syringe.injectors;
+
+import fr.inria.diversify.syringe.Configuration;
+import fr.inria.diversify.syringe.SyringeInstrumenterImpl;
+import fr.inria.diversify.syringe.TestProject;
+import fr.inria.diversify.syringe.detectors.BranchCoverageDetector;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class CounterInjectorTest {
+
+    @Test
+    public void testTemplates() {
+        assertEquals("fr.inria.diversify.syringe.runtime.SyringeCounters.HITS[%counter%]++",
+                new CounterInjector().getInjectionTemplate());
+        assertEquals("fr.inria.diversify.syringe.runtime.SyringeCounters.ATOMIC.incrementAndGet(%counter%)",
+                new CounterInjector(CounterInjector.Mode.ATOMIC).getInjectionTemplate());
+    }
+
+    @Test
+    public void testWriteCounters() throws Exception {
+        File root = Files.createTempDirectory("counters").toFile();
+        try {
+            CounterInjector.writeCounters(root, 42, false);
+            String source = FileUtils.readFileToString(
+                    new File(root, "fr/inria/diversify/syringe/runtime/SyringeCounters.java"));
+            assertTrue(source.contains("new long[42]"));
+            assertTrue(source.contains("AtomicLongArray(0)"));
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+
+    /**
+     * Counts the branches of the sample project, compiles it and runs it
+     *
+     * @param session Instruments through the session entry point
+     * @return The ID file, the instrumented sources and the dump of the counters
+     */
+    private String count(CounterInjector.Mode mode, boolean session) throws Exception {
+        TestProject project = TestProject.sample();
+        try {
+            Configuration configuration = new Configuration(TestProject.SRC);
+            configuration.addDetector(new BranchCoverageDetector());
+            configuration.addInjector(BranchCoverageDetector.BRANCH_PROBE, new CounterInjector(mode));
+            SyringeInstrumenterImpl instrumenter = project.instrumenter();
+            if (session) instrumenter.instrument(Collections.singletonList(configuration));
+            else instrumenter.instrument(configuration);
+            instrumenter.writeIdFile("id.log");
+
+            ClassLoader loader = project.compile();
+            assertEquals(10, loader.loadClass("c.Main").getMethod("run").invoke(null));
+            String dump = project.dump(loader, CounterInjector.COUNTERS_CLASS, CounterInjector.FILE_PROPERTY);
+            assertTrue(dump, dump.split("\n").length > 1);
+            return project.log("id.log") + project.outputs() + dump;
+        } finally {
+            project.delete();
+        }
+    }
+
+    @Test
+    public void testBothEntryPoints() throws Exception {
+        for (CounterInjector.Mode mode : CounterInjector.Mode.values())
+            assertEquals(count(mode, false), count(mode, true));
+    }
+}
@@ -26,4 +26,14 @@ public class CtParametrizedSnippetStatementTest {
         snippet.setParameter("value", 1);
         assertEquals("logdouble(1)", snippet.getValue());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testValuesAreLiteral() throws Exception {
+        CtParametrizedSnippetStatement snippet = new CtParametrizedSnippetStatement();
+        snippet.setValue("log(\"%sig%\", %id%, %missing%)");
+        snippet.setParameter("sig", "a$1\\b%id%");
+        snippet.setParameter("id", 3);
+        assertEquals("log(\"a$1\\b%id%\", 3, %missing%)", snippet.getValue());
+        assertEquals(3, snippet.getParameter("id"));
+    }
+}
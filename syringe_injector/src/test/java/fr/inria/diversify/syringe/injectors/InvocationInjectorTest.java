@@ -0,0 +1,181 @@
+package fr.inria.diversify.syringe.injectors;
+
+import fr.inria.diversify.syringe.TestProject;
+import org.junit.Test;
+import spoon.Launcher;
+import spoon.reflect.code.CtBlock;
+import spoon.reflect.code.CtExpression;
+import spoon.reflect.code.CtIf;
+import spoon.reflect.code.CtInvocation;
+import spoon.reflect.code.CtLiteral;
+import spoon.reflect.code.CtStatement;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.reference.CtTypeReference;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class InvocationInjectorTest {
+
+    @Test
+    public void testValidTemplate() throws Exception {
+        InvocationInjector injector = new InvocationInjector();
+        injector.setInjectionTemplate("fr.inria.Logger.log(%id%, \"%sig%, %type%\", 'c', 1L, -2, true);");
+        assertEquals("fr.inria.Logger.log(%id%, \"%sig%, %type%\", 'c', 1L, -2, true);",
+                injector.getInjectionTemplate());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnqualifiedMethod() throws Exception {
+        new InvocationInjector().setInjectionTemplate("log(%id%)");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testExpressionArgument() throws Exception {
+        new InvocationInjector().setInjectionTemplate("fr.inria.Logger.log(a.b())");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNotAnInvocation() throws Exception {
+        new InvocationInjector().setInjectionTemplate("x++");
+    }
+
+    /**
+     * Model of a logger with overloads and a class to inject into
+     *
+     * @return The first statement of the class to inject into
+     */
+    private CtStatement model(TestProject project) throws Exception {
+        project.add("p/Logger.java", "package p;\n\n" +
+                "public class Logger {\n" +
+                "    public static void log(int id, String signature, boolean branch) {\n" +
+                "    }\n\n" +
+                "    public static void log(int id, String signature, int depth) {\n" +
+                "    }\n\n" +
+                "    public static int count(long id) {\n" +
+                "        return 0;\n" +
+                "    }\n" +
+                "}\n");
+        project.add("p/Target.java", "package p;\n\n" +
+                "public class Target {\n" +
+                "    public int f(int v) {\n" +
+                "        return v;\n" +
+                "    }\n" +
+                "}\n");
+        Launcher launcher = new Launcher();
+        launcher.getEnvironment().setNoClasspath(true);
+        launcher.addInputResource(project.getDir() + TestProject.SRC);
+        launcher.buildModel();
+        Factory factory = launcher.getFactory();
+        return factory.Class().get("p.Target").getMethodsByName("f").get(0).getBody().getStatement(0);
+    }
+
+    private static HashMap<String, Object> params(int id, String signature) {
+        HashMap<String, Object> params = new HashMap<>();
+        params.put("id", id);
+        params.put("sig", signature);
+        return params;
+    }
+
+    private static List<Object> values(CtInvocation<?> invocation) {
+        List<Object> result = new ArrayList<>();
+        for (CtExpression<?> e : invocation.getArguments()) {
+            assertTrue(e.toString(), e instanceof CtLiteral);
+            result.add(((CtLiteral<?>) e).getValue());
+        }
+        return result;
+    }
+
+    private static List<String> types(CtInvocation<?> invocation) {
+        List<String> result = new ArrayList<>();
+        for (CtTypeReference<?> t : invocation.getExecutable().getParameters()) result.add(t.getQualifiedName());
+        return result;
+    }
+
+    @Test
+    public void testBuildStatement() throws Exception {
+        TestProject project = new TestProject();
+        try {
+            CtStatement st = model(project);
+            InvocationInjector injector = new InvocationInjector("p.Logger.log(%id%, \"at %sig%\", 2)", null,
+                    GenericInjector.InjectionPosition.BEFORE);
+            CtInvocation<?> invocation = (CtInvocation<?>) injector.buildStatement(st, params(3, "f"));
+            assertEquals(Arrays.<Object>asList(3, "at f", 2), values(invocation));
+            //The overload taking an int, with the declared types
+            assertEquals(Arrays.asList("int", "java.lang.String", "int"), types(invocation));
+            assertEquals("void", invocation.getExecutable().getType().getQualifiedName());
+            assertSame(st.getFactory(), invocation.getFactory());
+            assertSame(st.getParent(), invocation.getParent());
+
+            //Each element gets its own invocation
+            CtInvocation<?> other = (CtInvocation<?>) injector.buildStatement(st, params(4, "g"));
+            assertEquals(Arrays.<Object>asList(4, "at g", 2), values(other));
+            assertEquals(Arrays.<Object>asList(3, "at f", 2), values(invocation));
+
+            injector.setInjectionTemplate("p.Logger.log(%id%, \"%sig%\", true)");
+            assertEquals(Arrays.asList("int", "java.lang.String", "boolean"),
+                    types((CtInvocation<?>) injector.buildStatement(st, params(3, "f"))));
+            injector.setInjectionTemplate("p.Logger.count(%id%)");
+            invocation = (CtInvocation<?>) injector.buildStatement(st, params(3, "f"));
+            assertEquals(Arrays.asList("long"), types(invocation));
+            assertEquals("int", invocation.getExecutable().getType().getQualifiedName());
+
+            //Not declared in the model: the types are those of the template
+            injector.setInjectionTemplate("q.Missing.log(%id%, 2L)");
+            assertEquals(Arrays.asList("java.lang.Object", "long"),
+                    types((CtInvocation<?>) injector.buildStatement(st, params(3, "f"))));
+        } finally {
+            project.delete();
+        }
+    }
+
+    @Test
+    public void testPrototypePerModel() throws Exception {
+        TestProject project = new TestProject();
+        try {
+            CtStatement first = model(project);
+            CtStatement second = model(project);
+            InvocationInjector injector = new InvocationInjector("p.Logger.count(%id%)", null,
+                    GenericInjector.InjectionPosition.BEFORE);
+            assertSame(first.getFactory(), injector.buildStatement(first, params(1, "f")).getFactory());
+            assertSame(second.getFactory(), injector.buildStatement(second, params(1, "f")).getFactory());
+            assertSame(first.getFactory(), injector.buildStatement(first, params(1, "f")).getFactory());
+        } finally {
+            project.delete();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testUndeclaredArity() throws Exception {
+        TestProject project = new TestProject();
+        try {
+            new InvocationInjector("p.Logger.log(%id%)", null, GenericInjector.InjectionPosition.BEFORE)
+                    .buildStatement(model(project), params(1, "f"));
+        } finally {
+            project.delete();
+        }
+    }
+
+    @Test
+    public void testGuard() throws Exception {
+        TestProject project = new TestProject();
+        try {
+            CtStatement st = model(project);
+            InvocationInjector injector = new InvocationInjector("p.Logger.count(%id%)", null,
+                    GenericInjector.InjectionPosition.BEFORE);
+            injector.setProbeSwitch(new ProbeSwitch(ProbeSwitch.Mode.STATIC_FINAL));
+            CtIf guard = (CtIf) injector.buildStatement(st, params(5, "f"));
+            assertEquals("fr.inria.diversify.syringe.runtime.SyringeSwitch.ENABLED", guard.getCondition().toString());
+            CtStatement then = guard.getThenStatement();
+            CtInvocation<?> invocation = (CtInvocation<?>) ((CtBlock<?>) then).getStatement(0);
+            assertEquals(Arrays.<Object>asList(5), values(invocation));
+            assertSame(st.getParent(), guard.getParent());
+        } finally {
+            project.delete();
+        }
+    }
+}
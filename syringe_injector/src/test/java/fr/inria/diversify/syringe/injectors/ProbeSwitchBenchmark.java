@@ -0,0 +1,115 @@
+package fr.inria.diversify.syringe.injectors;
+
+import fr.inria.diversify.syringe.Configuration;
+import fr.inria.diversify.syringe.TestProject;
+import fr.inria.diversify.syringe.detectors.ElementFilter;
+import fr.inria.diversify.syringe.detectors.MethodDetect;
+import spoon.reflect.declaration.CtElement;
+import spoon.reflect.declaration.CtNamedElement;
+
+import java.lang.reflect.Method;
+
+/**
+ * Measures the cost of the probes left in a build when the switch turns them off. Not a test: run its main method
+ * from the test classpath, with a JDK able to compile the generated sources.
+ * <p>
+ * A small method is called in a loop, with an atomic counter at its beginning, which the JIT cannot move out of the
+ * loop. Each case compiles the loop in its own class loader and prints the best time per call over the rounds:
+ * <ul>
+ * <li>no probe: the source as it is</li>
+ * <li>STATIC_FINAL, off and CALL_SITE, off: switched off by the property</li>
+ * <li>CALL_SITE, off at run: switched on by the property, then off by setEnabled before the rounds</li>
+ * <li>probe on: STATIC_FINAL switched on by the property</li>
+ * </ul>
+ * Arguments: number of calls per round and number of rounds, 200000000 and 15 by default.
+ */
+public class ProbeSwitchBenchmark {
+
+    private static final String SOURCE = "package k;\n\n" +
+            "public class Bench {\n" +
+            "    public static int sink;\n\n" +
+            "    static int mix(int v, int i) {\n" +
+            "        return v * 31 + i;\n" +
+            "    }\n\n" +
+            "    public static void loop(int calls) {\n" +
+            "        int v = 0;\n" +
+            "        for (int i = 0; i < calls; i++) v = mix(v, i);\n" +
+            "        sink = v;\n" +
+            "    }\n" +
+            "}\n";
+
+    /**
+     * Sample project with the loop, instrumented with a switched atomic counter at the beginning of the called method
+     *
+     * @param mode Mode of the switch, null to leave the project as it is
+     */
+    private static TestProject project(ProbeSwitch.Mode mode) throws Exception {
+        TestProject project = new TestProject().add("k/Bench.java", SOURCE);
+        if (mode == null) return project;
+        Configuration configuration = new Configuration(TestProject.SRC);
+        MethodDetect detect = new MethodDetect();
+        detect.setFilter(new ElementFilter() {
+            @Override
+            public boolean accept(CtElement element) {
+                return "mix".equals(((CtNamedElement) element).getSimpleName());
+            }
+        });
+        configuration.addDetector(detect);
+        CounterInjector counter = new CounterInjector(CounterInjector.Mode.ATOMIC);
+        counter.setProbeSwitch(new ProbeSwitch(mode));
+        configuration.addInjector(MethodDetect.METHOD_BEGIN, counter);
+        project.instrumenter().instrument(configuration);
+        return project;
+    }
+
+    /**
+     * Runs the rounds of a case
+     *
+     * @param property Value of the switch property, null for none
+     * @param setOff   Indicates if the CALL_SITE switch is turned off before the rounds
+     * @return The best time per call, in nanoseconds
+     */
+    private static double measure(TestProject project, String property, boolean setOff, int calls, int rounds)
+            throws Exception {
+        if (property != null) System.setProperty(ProbeSwitch.PROPERTY, property);
+        try {
+            ClassLoader loader = project.compile();
+            if (setOff) loader.loadClass("fr.inria.diversify.syringe.runtime.SyringeSwitch")
+                    .getMethod("setEnabled", boolean.class).invoke(null, false);
+            Method loop = loader.loadClass("k.Bench").getMethod("loop", int.class);
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < rounds; i++) {
+                long start = System.nanoTime();
+                loop.invoke(null, calls);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            return (double) best / calls;
+        } finally {
+            System.clearProperty(ProbeSwitch.PROPERTY);
+        }
+    }
+
+    private static void print(String name, double nanos) {
+        System.out.println(String.format("%-24s%8.2f ns/op", name, nanos));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int calls = args.length > 0 ? Integer.parseInt(args[0]) : 200000000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 15;
+
+        TestProject plain = project(null);
+        TestProject staticFinal = project(ProbeSwitch.Mode.STATIC_FINAL);
+        TestProject callSite = project(ProbeSwitch.Mode.CALL_SITE);
+        try {
+            print("no probe", measure(plain, null, false, calls, rounds));
+            print("STATIC_FINAL, off", measure(staticFinal, null, false, calls, rounds));
+            print("CALL_SITE, off", measure(callSite, null, false, calls, rounds));
+            print("CALL_SITE, off at run", measure(callSite, "true", true, calls, rounds));
+            print("probe on", measure(staticFinal, "true", false, calls, rounds));
+        } finally {
+            plain.delete();
+            staticFinal.delete();
+            callSite.delete();
+        }
+    }
+}
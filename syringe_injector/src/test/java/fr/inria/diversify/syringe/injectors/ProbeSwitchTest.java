@@ -0,0 +1,145 @@
+package fr.inria.diversify.syringe.injectors;
+
+import fr.inria.diversify.syringe.Configuration;
+import fr.inria.diversify.syringe.SyringeInstrumenterImpl;
+import fr.inria.diversify.syringe.TestProject;
+import fr.inria.diversify.syringe.detectors.BranchCoverageDetector;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import spoon.Launcher;
+import spoon.reflect.code.CtBlock;
+import spoon.reflect.code.CtStatement;
+import spoon.reflect.factory.Factory;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+
+public class ProbeSwitchTest {
+
+    @Test
+    public void testSwitchGuardsBeforeSampling() {
+        GenericInjector injector = new GenericInjector();
+        assertNull(injector.guardCondition());
+        injector.setProbeSwitch(new ProbeSwitch(ProbeSwitch.Mode.STATIC_FINAL));
+        injector.setSampling(new Sampling(Sampling.Mode.PROBABILITY));
+        assertEquals("fr.inria.diversify.syringe.runtime.SyringeSwitch.ENABLED && " +
+                "fr.inria.diversify.syringe.runtime.SyringeSampler.randomly()", injector.guardCondition());
+    }
+
+    @Test
+    public void testGuardedSnippets() {
+        Factory factory = new Launcher().getFactory();
+        CtBlock<?> block = factory.Core().createBlock();
+        CtStatement site = factory.Code().createCodeSnippetStatement("x++");
+        block.addStatement(site);
+        GenericInjector injector = new GenericInjector("Logger.log(%id%)", null,
+                GenericInjector.InjectionPosition.BEFORE);
+        injector.setProbeSwitch(new ProbeSwitch(ProbeSwitch.Mode.STATIC_FINAL));
+        Sampling sampling = new Sampling(Sampling.Mode.EVERY_NTH);
+        injector.setSampling(sampling);
+
+        //Each snippet samples its own probe, numbered by the sampling
+        int probe = sampling.getProbeCount();
+        assertEquals(0, probe);
+        for (int id = 1; id <= 3; id++) {
+            HashMap<String, Object> params = new HashMap<>();
+            params.put("id", id);
+            CtParametrizedSnippetStatement snippet =
+                    (CtParametrizedSnippetStatement) injector.buildStatement(site, params);
+            String guard = "fr.inria.diversify.syringe.runtime.SyringeSwitch.ENABLED && " +
+                    "fr.inria.diversify.syringe.runtime.SyringeSampler.every(" + (probe + id - 1) + ")";
+            assertEquals(guard, snippet.getGuard());
+            assertEquals("if (" + guard + ") { Logger.log(" + id + "); }", snippet.getValue());
+        }
+        assertEquals(probe + 3, sampling.getProbeCount());
+
+        //A new template is guarded too
+        injector.setInjectionTemplate("Logger.enter(%id%)");
+        HashMap<String, Object> params = new HashMap<>();
+        params.put("id", 4);
+        assertEquals("if (fr.inria.diversify.syringe.runtime.SyringeSwitch.ENABLED && " +
+                        "fr.inria.diversify.syringe.runtime.SyringeSampler.every(" + (probe + 3) + ")) { " +
+                        "Logger.enter(4); }",
+                ((CtParametrizedSnippetStatement) injector.buildStatement(site, params)).getValue());
+    }
+
+    @Test
+    public void testWriteSwitch() throws Exception {
+        File root = Files.createTempDirectory("switch").toFile();
+        File file = new File(root, "fr/inria/diversify/syringe/runtime/SyringeSwitch.java");
+        try {
+            ProbeSwitch.writeSwitch(root, null, false);
+            String source = FileUtils.readFileToString(file);
+            assertTrue(source.contains("public static final boolean ENABLED;"));
+            assertFalse(source.contains("MutableCallSite"));
+
+            ProbeSwitch.writeSwitch(root, "log/logger.properties", true);
+            source = FileUtils.readFileToString(file);
+            assertTrue(source.contains("\"log/logger.properties\""));
+            assertTrue(source.contains("public static boolean enabled()"));
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+
+    /**
+     * Loads the instrumented sample project with the switch property, runs it and dumps the counters
+     *
+     * @param property Value of the switch property, null for none
+     * @param runs     Value of the CALL_SITE switch before each run, null to leave it as loaded
+     */
+    private String run(TestProject project, String property, Boolean... runs) throws Exception {
+        if (property != null) System.setProperty(ProbeSwitch.PROPERTY, property);
+        try {
+            ClassLoader loader = project.compile();
+            Method run = loader.loadClass("c.Main").getMethod("run");
+            Class<?> probeSwitch = loader.loadClass("fr.inria.diversify.syringe.runtime.SyringeSwitch");
+            assertEquals(Boolean.parseBoolean(property), probeSwitch.getField("ENABLED").get(null));
+            for (Boolean enabled : runs) {
+                if (enabled != null) probeSwitch.getMethod("setEnabled", boolean.class).invoke(null, enabled);
+                assertEquals(10, run.invoke(null));
+            }
+            return project.dump(loader, CounterInjector.COUNTERS_CLASS, CounterInjector.FILE_PROPERTY);
+        } finally {
+            System.clearProperty(ProbeSwitch.PROPERTY);
+        }
+    }
+
+    @Test
+    public void testSwitchAtRuntime() throws Exception {
+        for (ProbeSwitch.Mode mode : ProbeSwitch.Mode.values()) {
+            TestProject project = TestProject.sample();
+            try {
+                Configuration configuration = new Configuration(TestProject.SRC);
+                configuration.addDetector(new BranchCoverageDetector());
+                CounterInjector counter = new CounterInjector();
+                counter.setProbeSwitch(new ProbeSwitch(mode));
+                configuration.addInjector(BranchCoverageDetector.BRANCH_PROBE, counter);
+                SyringeInstrumenterImpl instrumenter = project.instrumenter();
+                instrumenter.instrument(Collections.singletonList(configuration));
+                assertTrue(project.output(TestProject.ARITH).contains("if (" + new ProbeSwitch(mode).condition() + ")"));
+
+                //Off unless the property is true
+                String none = "#Syringe counters\n";
+                assertEquals(none, run(project, null, (Boolean) null));
+                assertEquals(none, run(project, "false", (Boolean) null));
+                String on = run(project, "true", (Boolean) null);
+                assertTrue(on, on.split("\n").length > 1);
+
+                if (mode == ProbeSwitch.Mode.CALL_SITE) {
+                    //Turned off then on again while running: only the second run counts
+                    assertEquals(on, run(project, "true", false, true));
+                    assertEquals(none, run(project, "true", false));
+                    assertEquals(on, run(project, "false", true));
+                }
+            } finally {
+                project.delete();
+            }
+        }
+    }
+}
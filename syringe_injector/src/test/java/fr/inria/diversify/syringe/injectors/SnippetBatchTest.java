@@ -0,0 +1,62 @@
+package fr.inria.diversify.syringe.injectors;
+
+import org.junit.Test;
+import spoon.Launcher;
+import spoon.reflect.code.CtBlock;
+import spoon.reflect.code.CtCodeSnippetStatement;
+import spoon.reflect.factory.Factory;
+
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+
+public class SnippetBatchTest {
+
+    private CtParametrizedSnippetStatement snippet(Factory factory, SnippetBatch batch, int id) {
+        HashMap<String, Object> params = new HashMap<>();
+        params.put("id", id);
+        CtParametrizedSnippetStatement result = new CtParametrizedSnippetStatement();
+        result.setFactory(factory);
+        result.setTemplate(SnippetTemplate.parse("Logger.log(%id%)"), params);
+        result.setBatch(batch, String.valueOf(id));
+        return result;
+    }
+
+    @Test
+    public void testMergeAdjacentSnippets() throws Exception {
+        Factory factory = new Launcher().getFactory();
+        SnippetBatch batch = new SnippetBatch("Logger.logAll(System.nanoTime(), new int[]{%items%})");
+        CtBlock<?> block = factory.Core().createBlock();
+        block.addStatement(snippet(factory, batch, 1));
+        block.addStatement(snippet(factory, batch, 2));
+        block.addStatement(snippet(factory, batch, 3));
+        block.addStatement(factory.Code().createCodeSnippetStatement("x++"));
+        block.addStatement(snippet(factory, batch, 4));
+        block.addStatement(snippet(factory, new SnippetBatch("Other.logAll(%items%)"), 5));
+
+        assertEquals(2, SnippetBatch.merge(block));
+        assertEquals(4, block.getStatements().size());
+        assertEquals("Logger.logAll(System.nanoTime(), new int[]{1, 2, 3})",
+                ((CtCodeSnippetStatement) block.getStatement(0)).getValue());
+        assertEquals("Logger.log(4)", ((CtCodeSnippetStatement) block.getStatement(2)).getValue());
+        assertEquals("Logger.log(5)", ((CtCodeSnippetStatement) block.getStatement(3)).getValue());
+    }
+
+    @Test
+    public void testMergeGuardedSnippets() throws Exception {
+        Factory factory = new Launcher().getFactory();
+        SnippetBatch batch = new SnippetBatch("Logger.logAll(new int[]{%items%})");
+        for (String guard : new String[]{"Switch.ENABLED", "Switch.ENABLED", "Switch.enabled()"}) {
+            CtBlock<?> block = factory.Core().createBlock();
+            for (int id = 1; id <= 2; id++) {
+                CtParametrizedSnippetStatement s = snippet(factory, batch, id);
+                s.setGuard(guard);
+                block.addStatement(s);
+            }
+            assertEquals(1, SnippetBatch.merge(block));
+            CtParametrizedSnippetStatement merged = (CtParametrizedSnippetStatement) block.getStatement(0);
+            assertEquals(guard, merged.getGuard());
+            assertEquals("if (" + guard + ") { Logger.logAll(new int[]{1, 2}); }", merged.getValue());
+        }
+    }
+}
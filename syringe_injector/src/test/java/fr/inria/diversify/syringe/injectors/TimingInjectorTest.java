@@ -0,0 +1,154 @@
+package fr.inria.diversify.syringe.injectors;
+
+import fr.inria.diversify.syringe.Configuration;
+import fr.inria.diversify.syringe.SyringeInstrumenterImpl;
+import fr.inria.diversify.syringe.TestProject;
+import fr.inria.diversify.syringe.detectors.MethodDetect;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class TimingInjectorTest {
+
+    @Test
+    public void testTemplate() {
+        TimingInjector injector = new TimingInjector();
+        assertEquals("fr.inria.diversify.syringe.runtime.SyringeTimer.record(%probe%, %start%)",
+                injector.getInjectionTemplate());
+        assertEquals(GenericInjector.InjectionPosition.LAST, injector.getInjectAt());
+    }
+
+    @Test
+    public void testWriteTimer() throws Exception {
+        File root = Files.createTempDirectory("timer").toFile();
+        try {
+            TimingInjector.writeTimer(root, 42);
+            String source = FileUtils.readFileToString(
+                    new File(root, "fr/inria/diversify/syringe/runtime/SyringeTimer.java"));
+            assertTrue(source.contains("AtomicLongArray(42 * BUCKETS)"));
+            assertTrue(source.contains("public static void record(int probe, long start)"));
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+
+    @Test
+    public void testRecordBuckets() throws Exception {
+        TestProject project = new TestProject();
+        try {
+            TimingInjector.writeTimer(new File(project.getDir() + TestProject.SRC), 4);
+            ClassLoader loader = project.compile();
+            Method record = loader.loadClass("fr.inria.diversify.syringe.runtime.SyringeTimer")
+                    .getMethod("record", int.class, long.class);
+            //2^40 nanoseconds and a bit more, in [2^40, 2^41)
+            long before = System.nanoTime();
+            record.invoke(null, 1, before - (1L << 40));
+            record.invoke(null, 1, before - (1L << 40));
+            //2^62 nanoseconds, in the last bucket
+            record.invoke(null, 2, before - (1L << 62));
+            //Entered later than it left: no time
+            record.invoke(null, 3, before + (1L << 40));
+            long elapsed = System.nanoTime() - before;
+
+            String[] lines = project.dump(loader, TimingInjector.TIMER_CLASS, TimingInjector.FILE_PROPERTY).split("\n");
+            assertEquals(4, lines.length);
+            assertTrue(lines[0].startsWith("#"));
+            String[] first = lines[1].split(" ");
+            assertEquals("1", first[0]);
+            assertEquals("2", first[1]);
+            long total = Long.parseLong(first[2]);
+            assertTrue(total >= 2 * (1L << 40) && total <= 2 * ((1L << 40) + elapsed));
+            assertEquals("41:2", first[3]);
+            assertEquals(4, first.length);
+            assertTrue(lines[2].startsWith("2 1 "));
+            assertTrue(lines[2].endsWith(" 63:1"));
+            assertEquals("3 1 0 0:1", lines[3]);
+        } finally {
+            project.delete();
+        }
+    }
+
+    /**
+     * Times the methods of the sample project, compiles it and runs them
+     *
+     * @param session Instruments through the session entry point
+     * @return The ID file, the instrumented sources and the calls recorded by id
+     */
+    private String time(TestProject project, boolean session) throws Exception {
+        Configuration configuration = new Configuration(TestProject.SRC);
+        configuration.addDetector(new MethodDetect());
+        configuration.addInjector(MethodDetect.METHOD_TIMED, new TimingInjector());
+        SyringeInstrumenterImpl instrumenter = project.instrumenter();
+        if (session) instrumenter.instrument(Collections.singletonList(configuration));
+        else instrumenter.instrument(configuration);
+        instrumenter.writeIdFile("id.log");
+
+        ClassLoader loader = project.compile();
+        Class<?> arith = loader.loadClass("a.Arith");
+        Object a = arith.getConstructor().newInstance();
+        Method sign = arith.getMethod("sign", int.class);
+        for (int v : new int[]{1, -1, 0}) sign.invoke(a, v);
+        Method divide = arith.getMethod("divide", int.class, int.class);
+        divide.invoke(a, 4, 2);
+        try {
+            divide.invoke(a, 4, 0);
+            fail();
+        } catch (InvocationTargetException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+
+        StringBuilder calls = new StringBuilder();
+        for (String line : project.dump(loader, TimingInjector.TIMER_CLASS, TimingInjector.FILE_PROPERTY).split("\n"))
+            if (!line.startsWith("#")) calls.append(line.substring(0, line.indexOf(' ', line.indexOf(' ') + 1)))
+                    .append('\n');
+        return project.log("id.log") + project.outputs() + calls;
+    }
+
+    @Test
+    public void testTimedMethods() throws Exception {
+        TestProject project = TestProject.sample();
+        TestProject session = TestProject.sample();
+        try {
+            String result = time(project, false);
+            assertEquals(result, time(session, true));
+
+            //Every method records once in a finally block, after the call to this() or super()
+            String arith = project.output(TestProject.ARITH);
+            assertEquals(5, arith.split("SyringeTimer.record\\(").length - 1);
+            assertEquals(5, arith.split("} finally \\{\n\\s*fr.inria.diversify.syringe.runtime.SyringeTimer.record\\(")
+                    .length - 1);
+            assertTrue(arith, arith.contains("this(0);\n        final long __syringeStart"));
+            assertTrue(arith, arith.contains("super();\n        final long __syringeStart"));
+
+            //One record per call, however the method exits: Arith(), Arith(int), sum, sign, divide by line
+            TreeMap<Integer, String> arithIds = new TreeMap<>();
+            for (String line : project.log("id.log").split("\n"))
+                if (line.contains(">a.Arith:"))
+                    arithIds.put(Integer.parseInt(line.substring(line.lastIndexOf(':') + 1)), line.split(" ")[0]);
+            assertEquals(5, arithIds.size());
+            List<String> ids = new ArrayList<>(arithIds.values());
+            int[] calls = {1, 1, 0, 3, 2};
+            for (int i = 0; i < calls.length; i++) {
+                //The probes never called are not dumped
+                Matcher recorded = Pattern.compile("\n" + ids.get(i) + " (\\d+)\n").matcher(result);
+                assertEquals(result, calls[i] > 0, recorded.find());
+                if (calls[i] > 0) assertEquals(calls[i], Integer.parseInt(recorded.group(1)));
+            }
+        } finally {
+            project.delete();
+            session.delete();
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package fr.inria.diversify.syringe.processor;
+
+import java.util.*;
+
+/**
+ * Recovers the execution counts of every branch and block of the methods instrumented with the minimal probes of the
+ * branch coverage detector, from the counts of the probes.
+ * <p>
+ * The graph of each method is read from the ID map. Probes are only placed on the edges outside a spanning tree of
+ * the graph; since the flow is conserved at every node, the count of a tree edge is the difference between the
+ * counts of the other edges of a node having no other unknown edge. Peeling the leaves of the tree this way derives
+ * all of them.
+ * <p>
+ * Counts that cannot be derived, such as those of the methods handling exceptions, are -1.
+ */
+public class BranchCoverage implements EntryProcessor {
+
+    public static final String GRAPH_PREFIX = "@CFG@";
+
+    /**
+     * Counts of a method
+     */
+    public static class MethodCoverage {
+        private final String method;
+        private final int nodes;
+        private final boolean direct;
+        private final int[] sources;
+        private final int[] targets;
+        //Id of the probe of each edge, -1 if none
+        private final int[] probes;
+        private final long[] counts;
+
+        private MethodCoverage(String method, int nodes, boolean direct, int[] sources, int[] targets, int[] probes) {
+            this.method = method;
+            this.nodes = nodes;
+            this.direct = direct;
+            this.sources = sources;
+            this.targets = targets;
+            this.probes = probes;
+            this.counts = new long[sources.length];
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public int getEdgeCount() {
+            return sources.length;
+        }
+
+        public int getSource(int edge) {
+            return sources[edge];
+        }
+
+        public int getTarget(int edge) {
+            return targets[edge];
+        }
+
+        /**
+         * Id of the probe counting an edge, -1 if the edge has no probe
+         */
+        public int getProbe(int edge) {
+            return probes[edge];
+        }
+
+        /**
+         * Executions of an edge, -1 if unknown
+         */
+        public long getCount(int edge) {
+            return counts[edge];
+        }
+
+        /**
+         * Executions of a node (the sum of its incoming edges), -1 if unknown. The count of the entry node (0) is the
+         * number of calls of the method.
+         */
+        public long getNodeCount(int node) {
+            long result = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (targets[i] != node) continue;
+                if (counts[i] < 0) return -1;
+                result += counts[i];
+            }
+            return result;
+        }
+
+        public int getNodeCount() {
+            return nodes;
+        }
+
+        /**
+         * Number of probes of the method
+         */
+        public int getProbeCount() {
+            int result = 0;
+            for (int p : probes) if (p >= 0) result++;
+            return result;
+        }
+    }
+
+    private final LinkedHashMap<String, MethodCoverage> methods = new LinkedHashMap<>();
+
+    private final HashMap<Integer, Long> hits = new HashMap<>();
+
+    private final String probeType;
+
+    private final List<String> errors = new ArrayList<>();
+
+    /**
+     * @param idMap     ID map of the instrumentation, as read by the SyringeDataReader
+     * @param probeType Type of the log entries of the probes, or null to count all the entries having an id
+     */
+    public BranchCoverage(HashMap<Integer, String> idMap, String probeType) {
+        this.probeType = probeType;
+        for (String key : idMap.values()) {
+            if (!key.startsWith(GRAPH_PREFIX)) continue;
+            try {
+                MethodCoverage m = parse(key.substring(GRAPH_PREFIX.length()));
+                methods.put(m.method, m);
+            } catch (RuntimeException e) {
+                errors.add("Invalid graph " + key + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static MethodCoverage parse(String graph) {
+        String[] parts = graph.split("\\|", -1);
+        if (parts.length != 4) throw new IllegalArgumentException("expected 4 fields, found " + parts.length);
+        String[] edges = parts[3].isEmpty() ? new String[0] : parts[3].split(",");
+        int[] sources = new int[edges.length];
+        int[] targets = new int[edges.length];
+        int[] probes = new int[edges.length];
+        for (int i = 0; i < edges.length; i++) {
+            String e = edges[i];
+            int arrow = e.indexOf('>');
+            int end = e.length();
+            probes[i] = -1;
+            int hash = e.indexOf('#');
+            if (hash >= 0) {
+                probes[i] = Integer.parseInt(e.substring(hash + 1));
+                end = hash;
+            } else if (e.endsWith("?")) end--;
+            sources[i] = Integer.parseInt(e.substring(0, arrow));
+            targets[i] = Integer.parseInt(e.substring(arrow + 1, end));
+        }
+        return new MethodCoverage(parts[0], Integer.parseInt(parts[1]), "direct".equals(parts[2]),
+                sources, targets, probes);
+    }
+
+    /**
+     * Adds executions of a probe
+     */
+    public void addHits(int probe, long count) {
+        Long h = hits.get(probe);
+        hits.put(probe, h == null ? count : h + count);
+    }
+
+    /**
+     * Counts the probe entries and derives the counts of all the methods
+     */
+    @Override
+    public void process(Collection<EntryLog> entries) throws LoadingException {
+        for (EntryLog e : entries) {
+            if (!(e instanceof IdEntry)) continue;
+            if (probeType != null && !probeType.equals(e.getType())) continue;
+            addHits((int) ((IdEntry) e).getId(), 1);
+        }
+        reconstruct();
+    }
+
+    /**
+     * Derives the counts of all the methods from the hits of the probes
+     */
+    public void reconstruct() {
+        for (MethodCoverage m : methods.values()) reconstruct(m);
+    }
+
+    private void reconstruct(MethodCoverage m) {
+        int edges = m.sources.length;
+        int[] unknown = new int[m.nodes];
+        List<List<Integer>> incident = new ArrayList<>();
+        for (int n = 0; n < m.nodes; n++) incident.add(new ArrayList<Integer>());
+        for (int i = 0; i < edges; i++) {
+            if (m.probes[i] >= 0) {
+                Long h = hits.get(m.probes[i]);
+                m.counts[i] = h == null ? 0 : h;
+                continue;
+            }
+            m.counts[i] = -1;
+            if (m.direct) continue;
+            incident.get(m.sources[i]).add(i);
+            incident.get(m.targets[i]).add(i);
+            unknown[m.sources[i]]++;
+            unknown[m.targets[i]]++;
+        }
+        if (m.direct) return;
+
+        //Conservation at each node: the counts of the known edges give the count of the single unknown one
+        for (int i = 0; i < edges; i++) if (m.probes[i] >= 0) {
+            incident.get(m.sources[i]).add(i);
+            incident.get(m.targets[i]).add(i);
+        }
+        Deque<Integer> leaves = new ArrayDeque<>();
+        for (int n = 0; n < m.nodes; n++) if (unknown[n] == 1) leaves.add(n);
+        while (!leaves.isEmpty()) {
+            int n = leaves.poll();
+            if (unknown[n] != 1) continue;
+            int edge = -1;
+            long in = 0, out = 0;
+            for (int i : incident.get(n)) {
+                if (m.counts[i] < 0) {
+                    edge = i;
+                    continue;
+                }
+                if (m.targets[i] == n) in += m.counts[i];
+                if (m.sources[i] == n) out += m.counts[i];
+            }
+            long count = m.targets[edge] == n ? out - in : in - out;
+            if (count < 0) {
+                errors.add("Negative count derived for edge " + edge + " of " + m.method +
+                        ", an exception may have left the method");
+                count = 0;
+            }
+            m.counts[edge] = count;
+            for (int end : new int[]{m.sources[edge], m.targets[edge]}) {
+                unknown[end]--;
+                if (unknown[end] == 1) leaves.add(end);
+            }
+        }
+    }
+
+    /**
+     * Coverage of the methods, by method key
+     */
+    public Map<String, MethodCoverage> getMethods() {
+        return Collections.unmodifiableMap(methods);
+    }
+
+    public MethodCoverage getMethod(String method) {
+        return methods.get(method);
+    }
+
+    @Override
+    public List<String> getErrors() {
+        return errors;
+    }
+}
@@ -0,0 +1,107 @@
+package fr.inria.diversify.syringe.processor;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Counts the hits of each id in the logs of a run, to map them back to the signatures of the ID file.
+ * <p>
+ * The entries must be built by an IdEntryFactory. The counters dumped by a run counting its hits in a static array
+ * are read with {@link #readCounters(String, String)}.
+ */
+public class HitCounter implements EntryProcessor {
+
+    private final HashMap<Long, Long> hits = new HashMap<>();
+
+    private final HashMap<String, Long> signatureHits = new HashMap<>();
+
+    private final String type;
+
+    private final List<String> errors = new ArrayList<>();
+
+    public HitCounter() {
+        this(null);
+    }
+
+    /**
+     * @param type Type of the entries to count, null to count all the entries having an id
+     */
+    public HitCounter(String type) {
+        this.type = type;
+    }
+
+    @Override
+    public void process(Collection<EntryLog> entries) throws LoadingException {
+        for (EntryLog e : entries) {
+            if (!(e instanceof IdEntry)) continue;
+            if (type != null && !type.equals(e.getType())) continue;
+            long id = ((IdEntry) e).getId();
+            add(id, 1, e.getIdMap() == null ? null : e.getIdMap().get((int) id), e.getFileName());
+        }
+    }
+
+    private void add(long id, long count, String signature, String fileName) {
+        Long h = hits.get(id);
+        hits.put(id, h == null ? count : h + count);
+        if (signature == null) {
+            errors.add("Unknown id " + id + " in " + fileName);
+            return;
+        }
+        h = signatureHits.get(signature);
+        signatureHits.put(signature, h == null ? count : h + count);
+    }
+
+    /**
+     * Reads the counters dumped by a run, as "id hits" lines
+     *
+     * @param idFileName       ID file of the run
+     * @param countersFileName Counters file of the run
+     */
+    public static HitCounter readCounters(String idFileName, String countersFileName) throws LoadingException {
+        HitCounter result = new HitCounter();
+        HashMap<Integer, String> ids;
+        try {
+            ids = new SyringeDataReader(result).readIdMap(new FileReader(idFileName));
+        } catch (FileNotFoundException e) {
+            throw new LoadingException(0, idFileName, e);
+        }
+        int iteration = 0;
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(countersFileName));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    iteration++;
+                    if (line.startsWith("#") || line.trim().isEmpty()) continue;
+                    String[] ln = line.trim().split(" ");
+                    int id = Integer.parseInt(ln[0]);
+                    result.add(id, Long.parseLong(ln[1]), ids.get(id), countersFileName);
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (Exception e) {
+            throw new LoadingException(iteration, countersFileName, e);
+        }
+        return result;
+    }
+
+    /**
+     * Hits of each id
+     */
+    public Map<Long, Long> getHits() {
+        return Collections.unmodifiableMap(hits);
+    }
+
+    /**
+     * Hits of each signature of the ID file. Ids sharing a signature add up.
+     */
+    public Map<String, Long> getSignatureHits() {
+        return Collections.unmodifiableMap(signatureHits);
+    }
+
+    @Override
+    public List<String> getErrors() {
+        return errors;
+    }
+}
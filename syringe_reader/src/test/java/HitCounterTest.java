@@ -0,0 +1,100 @@
+import fr.inria.diversify.syringe.processor.HitCounter;
+import fr.inria.diversify.syringe.processor.IdEntryFactory;
+import fr.inria.diversify.syringe.processor.LoadingException;
+import fr.inria.diversify.syringe.processor.SyringeDataReader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Counting of the hits of a run, from its logs or from its counters file
+ */
+public class HitCounterTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("hits").toFile();
+        //Ids 1 and 3 share a signature
+        write("id.map", "1 a.A.m:3", "2 a.A.n:7", "3 a.A.m:3");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (File f : dir.listFiles()) f.delete();
+        dir.delete();
+    }
+
+    private String write(String name, String... lines) throws Exception {
+        File f = new File(dir, name);
+        Files.write(f.toPath(), Arrays.asList(lines), StandardCharsets.UTF_8);
+        return f.getAbsolutePath();
+    }
+
+    private static Map<String, Long> hits(Object... signatureAndHits) {
+        Map<String, Long> result = new HashMap<>();
+        for (int i = 0; i < signatureAndHits.length; i += 2)
+            result.put((String) signatureAndHits[i], ((Number) signatureAndHits[i + 1]).longValue());
+        return result;
+    }
+
+    private HitCounter readLogs(String type) throws Exception {
+        write("log0", "# comment", "M;10;1", "M;11;1", "B;12;2", "M;13;3");
+        write("run.log", "M;14;2", "M;15;9");
+        HitCounter counter = new HitCounter(type);
+        new SyringeDataReader(new IdEntryFactory(), counter).read(new File(dir, "id.map").getPath(), dir.getPath());
+        return counter;
+    }
+
+    @Test
+    public void testReadHits() throws Exception {
+        HitCounter counter = readLogs(null);
+        assertEquals(hits("a.A.m:3", 3, "a.A.n:7", 2), counter.getSignatureHits());
+        assertEquals(Long.valueOf(2), counter.getHits().get(1L));
+        assertEquals(Long.valueOf(1), counter.getHits().get(3L));
+        //An id out of the ID file is counted but has no signature
+        assertEquals(Long.valueOf(1), counter.getHits().get(9L));
+        assertEquals(Arrays.asList("Unknown id 9 in run.log"), counter.getErrors());
+    }
+
+    @Test
+    public void testReadHitsOfAType() throws Exception {
+        assertEquals(hits("a.A.m:3", 3, "a.A.n:7", 1), readLogs("M").getSignatureHits());
+        assertEquals(hits("a.A.n:7", 1), readLogs("B").getSignatureHits());
+    }
+
+    @Test
+    public void testReadCounters() throws Exception {
+        String counters = write("counters", "# id hits", "1 5", "", "2 0", " 3 4 ", "8 2");
+        HitCounter counter = HitCounter.readCounters(new File(dir, "id.map").getPath(), counters);
+        assertEquals(hits("a.A.m:3", 9, "a.A.n:7", 0), counter.getSignatureHits());
+        assertEquals(Long.valueOf(2), counter.getHits().get(8L));
+        assertEquals(1, counter.getErrors().size());
+    }
+
+    @Test
+    public void testMalformedCounters() throws Exception {
+        String counters = write("counters", "1 5", "2 many");
+        try {
+            HitCounter.readCounters(new File(dir, "id.map").getPath(), counters);
+            fail();
+        } catch (LoadingException e) {
+            assertTrue(e.getCause() instanceof NumberFormatException);
+        }
+    }
+
+    @Test(expected = LoadingException.class)
+    public void testMissingIdFile() throws Exception {
+        HitCounter.readCounters(new File(dir, "none.map").getPath(), write("counters", "1 5"));
+    }
+}